@@ -1,8 +1,10 @@
 use std::path;
+use std::sync::Arc;
 use crate::register::CpuFlag::{C, N, H, Z};
 use crate::register::Registers;
 use crate::serial::SerialCallback;
 use crate::mmu::MMU;
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
 pub struct CPU<'a> {
@@ -15,8 +17,8 @@ pub struct CPU<'a> {
 }
 
 impl<'a> CPU<'a> {
-    pub fn new(romdata: Vec<u8>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<CPU<'a>> {
-        let cpu_mmu = MMU::new(romdata, savepath, serial_callback, skip_checksum)?;
+    pub fn new(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<CPU<'a>> {
+        let cpu_mmu = MMU::new(rom, savepath, serial_callback, skip_checksum)?;
         let registers = Registers::new(cpu_mmu.gbmode);
         Ok(CPU {
             reg: registers,
@@ -28,8 +30,8 @@ impl<'a> CPU<'a> {
         })
     }
 
-    pub fn new_cgb(romdata: Vec<u8>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<CPU<'a>> {
-        let cpu_mmu = MMU::new_cgb(romdata, savepath, serial_callback, skip_checksum)?;
+    pub fn new_cgb(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<CPU<'a>> {
+        let cpu_mmu = MMU::new_cgb(rom, savepath, serial_callback, skip_checksum)?;
         let registers = Registers::new(cpu_mmu.gbmode);
         Ok(CPU {
             reg: registers,
@@ -46,6 +48,24 @@ impl<'a> CPU<'a> {
         return self.mmu.do_cycle(ticks);
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        self.reg.save_state(w);
+        w.bool(self.halted);
+        w.bool(self.ime);
+        w.u32(self.setdi);
+        w.u32(self.setei);
+        self.mmu.save_state(w);
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.reg.load_state(r)?;
+        self.halted = r.bool()?;
+        self.ime = r.bool()?;
+        self.setdi = r.u32()?;
+        self.setei = r.u32()?;
+        self.mmu.load_state(r)
+    }
+
     fn docycle(&mut self) -> u32 {
         self.updateime();
         match self.handleinterrupt() {
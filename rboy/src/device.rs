@@ -1,31 +1,49 @@
 use std::path;
+use std::sync::Arc;
+use std::time::Duration;
 use crate::cpu::CPU;
+use crate::frame::Frame;
 use crate::gbmode::GbMode;
+use crate::gpu::DIRTY_WORDS;
 use crate::keypad::KeypadKey;
+use crate::link::LinkPort;
+use crate::mbc::CartRam;
 use crate::printer::GbPrinter;
 use crate::sound;
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
+// Enough for the memory of a colour game with 32KiB of cartridge RAM, so most states never reallocate
+const STATE_CAPACITY: usize = 128 * 1024;
+
 pub struct Device {
     cpu: CPU<'static>,
 }
 
-fn stdoutprinter(v: u8) -> Option<u8> {
+// Prints serial output a line at a time, rather than a write and flush for every byte
+fn stdoutprinter() -> impl FnMut(u8) -> Option<u8> {
     use std::io::Write;
 
-    print!("{}", v as char);
-    let _ = ::std::io::stdout().flush();
-
-    None
+    let mut line = Vec::new();
+    move |v: u8| {
+        line.push(v);
+        if v == b'\n' || line.len() >= 256 {
+            let mut stdout = ::std::io::stdout().lock();
+            let _ = stdout.write_all(&line);
+            let _ = stdout.flush();
+            line.clear();
+        }
+        None
+    }
 }
 
 impl Device {
-    pub fn new(romdata: Vec<u8>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Device> {
-        CPU::new(romdata, savepath, None, skip_checksum).map(|cpu| Device { cpu: cpu })
+    pub fn new(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Device> {
+        CPU::new(rom, savepath, None, skip_checksum).map(|cpu| Device { cpu: cpu })
     }
 
-    pub fn new_cgb(romdata: Vec<u8>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Device> {
-        CPU::new_cgb(romdata, savepath, None, skip_checksum).map(|cpu| Device { cpu: cpu })
+    pub fn new_cgb(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Device> {
+        CPU::new_cgb(rom, savepath, None, skip_checksum).map(|cpu| Device { cpu: cpu })
     }
 
     pub fn do_cycle(&mut self) -> u32 {
@@ -34,13 +52,18 @@ impl Device {
 
     pub fn set_stdout(&mut self, output: bool) {
         if output {
-            self.cpu.mmu.serial.set_callback(Box::new(stdoutprinter));
+            self.cpu.mmu.serial.set_callback(Box::new(stdoutprinter()));
         }
         else {
             self.cpu.mmu.serial.unset_callback();
         }
     }
 
+    /// Connects one end of a link cable to the serial port, taking over from stdout or the printer while connected
+    pub fn set_link(&mut self, link: Option<LinkPort>) {
+        self.cpu.mmu.serial.set_link(link);
+    }
+
     pub fn attach_printer(&mut self) {
         let mut printer = GbPrinter::new();
 
@@ -57,10 +80,29 @@ impl Device {
         result
     }
 
+    /// Whether the frame reported by `check_and_reset_gpu_updated` was drawn, see `set_render_frames`
+    pub fn frame_rendered(&self) -> bool {
+        self.cpu.mmu.gpu.frame_rendered()
+    }
+
+    /// Skips drawing from the next frame on when false, for frames that would never be shown
+    pub fn set_render_frames(&mut self, render: bool) {
+        self.cpu.mmu.gpu.render_frames = render;
+    }
+
     pub fn get_gpu_data(&self) -> &[u8] {
         &self.cpu.mmu.gpu.data
     }
 
+    /// The current frame, as palette indices when `indexed` is set and the frame can be represented that way
+    pub fn get_frame(&self, indexed: bool) -> Frame<'_> {
+        self.cpu.mmu.gpu.frame(indexed)
+    }
+
+    pub fn take_dirty_lines(&mut self) -> [u64; DIRTY_WORDS] {
+        std::mem::replace(&mut self.cpu.mmu.gpu.dirty_lines, [0; DIRTY_WORDS])
+    }
+
     pub fn enable_audio(&mut self, player: Box<dyn sound::AudioPlayer>) {
         match self.cpu.mmu.gbmode {
             GbMode::Classic => {
@@ -72,6 +114,11 @@ impl Device {
         };
     }
 
+    /// Audio produced but not played yet, None without audio or when the player can't tell
+    pub fn audio_queued(&self) -> Option<Duration> {
+        self.cpu.mmu.sound.as_ref().and_then(|sound| sound.queued())
+    }
+
     pub fn sync_audio(&mut self) {
         if let Some(ref mut sound) = self.cpu.mmu.sound {
             sound.sync();
@@ -89,4 +136,86 @@ impl Device {
     pub fn romname(&self) -> String {
         self.cpu.mmu.mbc.romname()
     }
+
+    /// Battery backed cartridge RAM, None when the cartridge has none
+    pub(crate) fn cart_ram(&mut self) -> Option<&mut CartRam> {
+        self.cpu.mmu.mbc.cart_ram()
+    }
+
+    /// Serializes the whole machine, except for the rendered screen which is redrawn by the next frame
+    pub fn save_state(&self) -> Vec<u8> {
+        let mut writer = StateWriter::new(STATE_CAPACITY);
+        self.cpu.save_state(&mut writer);
+        writer.finish()
+    }
+
+    /// Same as `save_state`, reusing the allocation of `buf`
+    pub fn save_state_into(&self, buf: &mut Vec<u8>) {
+        let mut writer = StateWriter::reuse(std::mem::take(buf));
+        self.cpu.save_state(&mut writer);
+        *buf = writer.finish();
+    }
+
+    /// Restores a state made by `save_state` for the same cartridge. The device is left untouched when this fails.
+    pub fn load_state(&mut self, data: &[u8]) -> StrResult<()> {
+        let mut reader = StateReader::new(data)?;
+        let backup = self.save_state();
+        let result = self.cpu.load_state(&mut reader).and_then(|_| reader.finish());
+
+        if result.is_err() {
+            let mut reader = StateReader::new(&backup).unwrap();
+            self.cpu.load_state(&mut reader).expect("Failed to restore the state from before a failed load");
+        }
+        result
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::Device;
+    use crate::entrypoint::CYCLES_PER_FRAME;
+    use crate::link::cable;
+    use std::thread;
+
+    /// A ROM only running `program`, from the entry point
+    fn rom(program: &[u8]) -> Vec<u8> {
+        let mut rom = vec![0; 0x8000];
+        rom[0x100 .. 0x100 + program.len()].copy_from_slice(program);
+        rom[0x143] = 0;
+        rom[0x147] = 0;
+        rom[0x148] = 0;
+        rom
+    }
+
+    fn run(mut device: Device, cycles: u32) -> Device {
+        let mut ran = 0;
+        while ran < cycles {
+            ran += device.do_cycle();
+        }
+        device
+    }
+
+    #[test]
+    fn linked_devices_exchange_a_byte() {
+        // ld a, $17; ldh [SB], a; ld a, $81; ldh [SC], a; jr @
+        let mut master = Device::new(rom(&[0x3E, 0x17, 0xE0, 0x01, 0x3E, 0x81, 0xE0, 0x02, 0x18, 0xFE]).into(), None, true).unwrap();
+        // ld a, $42; ldh [SB], a; ld a, $80; ldh [SC], a; jr @
+        let mut slave = Device::new(rom(&[0x3E, 0x42, 0xE0, 0x01, 0x3E, 0x80, 0xE0, 0x02, 0x18, 0xFE]).into(), None, true).unwrap();
+        let (master_port, slave_port) = cable();
+        master.set_link(Some(master_port));
+        slave.set_link(Some(slave_port));
+
+        // Far enough for the slave to be waiting on the external clock, then both run at once as they would in game
+        let slave = run(slave, 1000);
+        let master = thread::spawn(move || run(master, 2 * CYCLES_PER_FRAME));
+        let slave = thread::spawn(move || run(slave, 2 * CYCLES_PER_FRAME));
+        let master = master.join().unwrap();
+        let slave = slave.join().unwrap();
+
+        for device in [&master, &slave].iter() {
+            assert_eq!(device.cpu.mmu.serial.rb(0xFF02) & 0x80, 0);
+        }
+        assert_eq!(master.cpu.mmu.serial.rb(0xFF01), 0x42);
+        assert_eq!(slave.cpu.mmu.serial.rb(0xFF01), 0x17);
+    }
 }
@@ -1,25 +1,59 @@
 use std::sync::{Arc, Mutex};
+use std::sync::atomic::{AtomicU64, Ordering};
 use crate::device::Device;
-use std::sync::mpsc::{Receiver, SyncSender, TryRecvError, TrySendError};
+use std::sync::mpsc;
+use std::sync::mpsc::{Receiver, Sender, TryRecvError};
 use std::{path, thread};
+use std::time::{Duration, Instant};
 use cpal::traits::{HostTrait, DeviceTrait, StreamTrait};
+use crate::frame::FrameProducer;
+use crate::metrics::Metrics;
+use crate::rewind::Rewind;
+use crate::StrResult;
 
 pub enum GBEvent {
-    KeyUp(crate::KeypadKey),
-    KeyDown(crate::KeypadKey),
+    /// With the input sequence from java, for latency tracking
+    KeyUp(crate::KeypadKey, u64),
+    KeyDown(crate::KeypadKey, u64),
     SpeedUp,
     SpeedDown,
+    RewindStart,
+    RewindStop,
     Stop
 }
 
+/// An entry of an input recording: the cycle since the recording started shifted left by 8 with the
+/// event code from RBoy.java in the low byte, and the frame hash for `RECORDED_FRAME` entries.
+pub type Recorded = [u64; 2];
+/// The event code of a frame hash checkpoint
+pub const RECORDED_FRAME: u64 = 0;
+// Frames between two frame hash checkpoints in a recording
+const CHECKPOINT_FRAMES: u32 = 60;
+
+// The event codes from RBoy.java, key down events then the matching key up events
+fn input_code(key: crate::KeypadKey, down: bool) -> u64 {
+    use crate::KeypadKey::*;
+    let index = match key {
+        A => 0,
+        B => 1,
+        Up => 2,
+        Down => 3,
+        Left => 4,
+        Right => 5,
+        Select => 6,
+        Start => 7,
+    };
+    if down { 1 + index } else { 9 + index }
+}
+
 fn warn(message: &str) {
     eprintln!("{}", message);
 }
 
-pub fn construct_cpu(romdata: Vec<u8>, savepath: Option<path::PathBuf>, classic_mode: bool, output_serial: bool, output_printer: bool, skip_checksum: bool) -> Option<Box<Device>> {
+pub fn construct_cpu(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, classic_mode: bool, output_serial: bool, output_printer: bool, skip_checksum: bool) -> Option<Box<Device>> {
     let opt_c = match classic_mode {
-        true => Device::new(romdata, savepath, skip_checksum),
-        false => Device::new_cgb(romdata, savepath, skip_checksum),
+        true => Device::new(rom, savepath, skip_checksum),
+        false => Device::new_cgb(rom, savepath, skip_checksum),
     };
     let mut c = match opt_c
     {
@@ -37,57 +71,385 @@ pub fn construct_cpu(romdata: Vec<u8>, savepath: Option<path::PathBuf>, classic_
     Some(Box::new(c))
 }
 
-pub fn run_cpu(mut cpu: Box<Device>, sender: SyncSender<Vec<u8>>, receiver: Receiver<GBEvent>) {
-    let periodic = timer_periodic(16);
-    let mut limit_speed = true;
+/// Cycles (at single speed) taken by one scanline
+const CYCLES_PER_LINE: u32 = 456;
+/// Cycles (at single speed) between two frames of a running LCD
+pub const CYCLES_PER_FRAME: u32 = 70224;
+/// Real time taken by CYCLES_PER_FRAME at 4194304Hz
+pub const FRAME_DURATION: Duration = Duration::from_nanos(16_742_706);
 
-    let waitticks = (4194304f64 / 1000.0 * 16.0).round() as u32;
-    let mut ticks = 0;
+/// Slowest supported speed, anything below is clamped to it
+pub const MIN_SPEED: f64 = 0.25;
+// Audio kept queued when pacing to the audio device, and how far the frame rate may be nudged to keep it there
+const AUDIO_SYNC_TARGET: Duration = Duration::from_millis(50);
+const AUDIO_SYNC_RANGE: f64 = 0.005;
+// thread::sleep can overshoot by about this much, the rest of the wait is spent yielding instead
+const SLEEP_SLACK: Duration = Duration::from_millis(1);
 
-    'outer: loop {
-        while ticks < waitticks {
-            ticks += cpu.do_cycle();
-            if cpu.check_and_reset_gpu_updated() {
-                let data = cpu.get_gpu_data().to_vec();
-                if let Err(TrySendError::Disconnected(..)) = sender.try_send(data) {
-                    break 'outer;
-                }
-            }
-        }
+/// Emulation speed relative to real time, shared by a context and its emulator so it can be read without locking.
+/// Infinity runs unthrottled.
+#[derive(Clone)]
+pub struct Speed(Arc<AtomicU64>);
 
-        ticks -= waitticks;
+impl Speed {
+    fn new() -> Speed {
+        Speed(Arc::new(AtomicU64::new(1.0f64.to_bits())))
+    }
+
+    pub fn get(&self) -> f64 {
+        f64::from_bits(self.0.load(Ordering::Relaxed))
+    }
+
+    pub fn set(&self, speed: f64) {
+        let speed = if speed >= MIN_SPEED { speed } else { MIN_SPEED };
+        self.0.store(speed.to_bits(), Ordering::Relaxed);
+    }
+}
+
+/// Everything owned by the emulation side of a context. Only ever driven by one thread at a time.
+pub struct Emulator {
+    pub cpu: Box<Device>,
+    pub frames: FrameProducer,
+    pub events: Receiver<GBEvent>,
+    pub speed: Speed,
+    pub metrics: Arc<Metrics>,
+    /// Nudge the speed to match the rate the audio device plays at, when the audio player can tell
+    pub audio_sync: bool,
+    // Whether the previous slice ran faster than real time
+    was_fast: bool,
+    // When the previous frame ended in real time
+    last_frame: Instant,
+    // The next screen refresh while skipping frames, refreshes are FRAME_DURATION apart
+    next_display: Instant,
+    pub rewind: Option<Rewind>,
+    // Stepping back through the rewind history instead of running forwards
+    rewinding: bool,
+    // Cycles run past the end of the previous slice, taken off the next one
+    overshoot: u32,
+    // Hash of the last frame completed while stepping, or checkpointed while recording
+    frame_hash: u64,
+    // Cycles run since the emulator was created
+    elapsed: u64,
+    recording: Option<Recording>,
+}
 
-        'recv: loop {
-            match receiver.try_recv() {
+struct Recording {
+    sender: Sender<Recorded>,
+    start: u64,
+    frames: u32,
+}
+
+impl Emulator {
+    pub fn new(cpu: Box<Device>, frames: FrameProducer, events: Receiver<GBEvent>) -> Emulator {
+        Emulator {
+            cpu,
+            frames,
+            events,
+            speed: Speed::new(),
+            metrics: Arc::new(Metrics::new()),
+            audio_sync: true,
+            was_fast: false,
+            last_frame: Instant::now(),
+            next_display: Instant::now(),
+            rewind: None,
+            rewinding: false,
+            overshoot: 0,
+            frame_hash: 0,
+            elapsed: 0,
+            recording: None,
+        }
+    }
+
+    /// Applies all pending events, returns false once the emulator has been asked to stop.
+    fn handle_events(&mut self) -> bool {
+        loop {
+            match self.events.try_recv() {
                 Ok(event) => {
                     match event {
-                        GBEvent::KeyUp(key) => cpu.keyup(key),
-                        GBEvent::KeyDown(key) => cpu.keydown(key),
-                        GBEvent::SpeedUp => limit_speed = false,
-                        GBEvent::SpeedDown => { limit_speed = true; cpu.sync_audio(); }
-                        GBEvent::Stop => break 'outer
+                        GBEvent::KeyUp(key, sequence) => {
+                            self.cpu.keyup(key);
+                            self.applied_input(sequence);
+                            self.record(input_code(key, false), 0);
+                        },
+                        GBEvent::KeyDown(key, sequence) => {
+                            self.cpu.keydown(key);
+                            self.applied_input(sequence);
+                            self.record(input_code(key, true), 0);
+                        },
+                        GBEvent::SpeedUp => self.speed.set(f64::INFINITY),
+                        GBEvent::SpeedDown => self.speed.set(1.0),
+                        // Going back in time can't be replayed
+                        GBEvent::RewindStart => self.rewinding = self.recording.is_none(),
+                        GBEvent::RewindStop => self.rewinding = false,
+                        GBEvent::Stop => return false,
                     }
                 },
-                Err(TryRecvError::Empty) => break 'recv,
-                Err(TryRecvError::Disconnected) => break 'outer,
+                Err(TryRecvError::Empty) => return true,
+                Err(TryRecvError::Disconnected) => return false,
+            }
+        }
+    }
+
+    /// Captures the current state and records every input applied from now on, along with a frame hash
+    /// every `CHECKPOINT_FRAMES` frames. Every frame is drawn while recording. Replaces any previous recording.
+    pub fn start_recording(&mut self) -> (Vec<u8>, Receiver<Recorded>) {
+        let (sender, receiver) = mpsc::channel();
+        self.rewinding = false;
+        self.recording = Some(Recording { sender, start: self.elapsed, frames: 0 });
+        (self.cpu.save_state(), receiver)
+    }
+
+    /// Ends the recording, returning the cycles it lasted
+    pub fn stop_recording(&mut self) -> Option<u64> {
+        self.recording.take().map(|recording| self.elapsed - recording.start)
+    }
+
+    fn record(&mut self, code: u64, hash: u64) {
+        if let Some(ref recording) = self.recording {
+            let cycle = self.elapsed - recording.start;
+            if recording.sender.send([cycle << 8 | code, hash]).is_err() {
+                // Nobody is listening anymore
+                self.recording = None;
             }
         }
+    }
+
+    fn applied_input(&mut self, sequence: u64) {
+        if sequence > self.frames.input_sequence {
+            self.frames.input_sequence = sequence;
+        }
+    }
+
+    /// Runs the emulator for the duration of `frames` frames and returns, publishing any frames produced.
+    /// Returns the number of cycles executed, or None when the emulator has been stopped.
+    pub fn run_frames(&mut self, frames: u32) -> Option<u64> {
+        if !self.handle_events() {
+            return None;
+        }
+
+        if self.rewinding {
+            self.step_back(frames);
+        }
+
+        let fast = self.speed.get() > 1.0;
+        if !fast && self.was_fast {
+            self.cpu.sync_audio();
+        }
+        self.was_fast = fast;
+
+        // Recordings are checked against frame hashes, so every frame is drawn
+        let skip_frames = fast && self.recording.is_none();
+        if !skip_frames {
+            self.cpu.set_render_frames(true);
+        }
+
+        let target = (CYCLES_PER_FRAME as u64 * frames as u64).saturating_sub(self.overshoot as u64);
+        let cycles = self.run_cycles(target, skip_frames, false)?;
+        self.overshoot = (cycles - target) as u32;
+        Some(cycles)
+    }
 
-        if limit_speed { let _ = periodic.recv(); }
+    /// Runs for the duration of `frames` frames regardless of the speed, drawing and hashing every frame,
+    /// so the same inputs always end on the same frame. Frames stay aligned with `run_frames`.
+    pub fn step_frames(&mut self, frames: u32) -> Option<u64> {
+        let target = (CYCLES_PER_FRAME as u64 * frames as u64).saturating_sub(self.overshoot as u64);
+        let cycles = self.step_cycles(target)?;
+        self.overshoot = (cycles - target) as u32;
+        Some(cycles)
+    }
+
+    /// Runs at least `cycles` cycles regardless of the speed, drawing and hashing every frame.
+    /// Returns the number of cycles executed, or None when the emulator has been stopped.
+    pub fn step_cycles(&mut self, cycles: u64) -> Option<u64> {
+        if !self.handle_events() {
+            return None;
+        }
+
+        self.cpu.set_render_frames(true);
+        // Unthrottled, so audio is resynced once running in real time again
+        self.was_fast = true;
+        self.run_cycles(cycles, false, true)
+    }
+
+    /// The hash of the last frame completed by `step_frames` or `step_cycles`, 0 before the first one
+    pub fn frame_hash(&self) -> u64 {
+        self.frame_hash
+    }
+
+    fn run_cycles(&mut self, target: u64, skip_frames: bool, hash: bool) -> Option<u64> {
+        let mut cycles = 0u64;
+        let mut next_poll = CYCLES_PER_LINE as u64;
+
+        while cycles < target {
+            let step = self.cpu.do_cycle() as u64;
+            cycles += step;
+            self.elapsed += step;
+
+            // Input arriving while a slice runs is applied at the next scanline, not the next slice
+            if cycles >= next_poll {
+                next_poll = cycles + CYCLES_PER_LINE as u64;
+                if !self.handle_events() {
+                    return None;
+                }
+            }
+
+            if self.cpu.check_and_reset_gpu_updated() {
+                let now = Instant::now();
+                if self.cpu.frame_rendered() {
+                    let checkpoint = match self.recording {
+                        Some(ref mut recording) => {
+                            recording.frames += 1;
+                            recording.frames % CHECKPOINT_FRAMES == 0
+                        },
+                        None => false,
+                    };
+
+                    if hash || checkpoint {
+                        self.frame_hash = crate::frame::hash(self.cpu.get_gpu_data());
+                    }
+                    if checkpoint {
+                        self.record(RECORDED_FRAME, self.frame_hash);
+                    }
+
+                    let dirty_lines = self.cpu.take_dirty_lines();
+                    let indexed = self.frames.wants_indexed();
+                    self.frames.publish(self.cpu.get_frame(indexed), dirty_lines);
+                    Metrics::add(&self.metrics.frames_produced, 1);
+                }
+
+                if skip_frames {
+                    let frame_time = self.frame_time().unwrap_or(now - self.last_frame);
+                    self.cpu.set_render_frames(draw_next_frame(&mut self.next_display, now, frame_time));
+                }
+                self.last_frame = now;
+
+                if !self.rewinding {
+                    if let Some(ref mut rewind) = self.rewind {
+                        rewind.frame(&self.cpu);
+                    }
+                }
+            }
+        }
+
+        Metrics::add(&self.metrics.cycles, cycles);
+        if self.metrics.enabled() {
+            let queued = self.cpu.audio_queued().map_or(u64::MAX, |queued| queued.as_nanos() as u64);
+            self.metrics.audio_queued_nanos.store(queued, Ordering::Relaxed);
+        }
+        Some(cycles)
+    }
+
+    /// How long the next frame should take in real time, None when unthrottled
+    pub fn frame_time(&self) -> Option<Duration> {
+        let speed = self.speed.get();
+        if speed.is_infinite() {
+            return None;
+        }
+
+        let mut frame_time = FRAME_DURATION.div_f64(speed);
+        if self.audio_sync && speed == 1.0 {
+            if let Some(queued) = self.cpu.audio_queued() {
+                // Slow down while more than the target is queued, speed up while less is
+                let error = (queued.as_secs_f64() / AUDIO_SYNC_TARGET.as_secs_f64() - 1.0).max(-1.0).min(1.0);
+                frame_time = frame_time.mul_f64(1.0 + error * AUDIO_SYNC_RANGE);
+            }
+        }
+        Some(frame_time)
+    }
+
+    /// Goes back one rewind snapshot per frame about to be run. The frames are still run afterwards, so the screen
+    /// shows where the history has got to.
+    fn step_back(&mut self, frames: u32) {
+        let rewind = match self.rewind {
+            Some(ref mut rewind) => rewind,
+            None => return,
+        };
+
+        for _ in 1 .. frames.max(1) {
+            rewind.step_back();
+        }
+
+        let result = match rewind.step_back() {
+            Some(state) => self.cpu.load_state(state),
+            None => return,
+        };
+        if let Err(message) = result {
+            warn(message);
+            rewind.clear();
+        }
+    }
+
+    /// Replaces the device state, the rewind history no longer applies afterwards
+    pub fn load_state(&mut self, data: &[u8]) -> StrResult<()> {
+        self.cpu.load_state(data)?;
+        if let Some(ref mut rewind) = self.rewind {
+            rewind.clear();
+        }
+        // The recording no longer follows from its initial state
+        self.recording = None;
+        Ok(())
     }
 }
 
-fn timer_periodic(ms: u64) -> Receiver<()> {
-    let (tx, rx) = std::sync::mpsc::sync_channel(1);
-    thread::spawn(move || {
-        loop {
-            thread::sleep(std::time::Duration::from_millis(ms));
-            if tx.send(()).is_err() {
+/// Runs the emulator on the calling thread until it is stopped, pacing it to real time.
+/// The lock is only held while a frame runs, so save states can be taken in between.
+pub fn run_cpu(emulator: &Mutex<Emulator>) {
+    let mut deadline = Instant::now();
+
+    loop {
+        let frame_time = {
+            let mut emulator = emulator.lock().unwrap();
+            if emulator.run_frames(1).is_none() {
                 break;
             }
+            emulator.frame_time()
+        };
+
+        let frame_time = match frame_time {
+            Some(frame_time) => frame_time,
+            None => {
+                deadline = Instant::now();
+                continue;
+            },
+        };
+
+        deadline += frame_time;
+        let now = Instant::now();
+        if deadline > now {
+            sleep_until(deadline);
+        } else if now - deadline > frame_time * 4 {
+            // Too far behind to catch up, carry on from here
+            deadline = now;
         }
-    });
-    rx
+    }
+}
+
+/// Whether the frame starting at `now` and lasting `frame_time` in real time is the one to be shown at the next screen
+/// refresh, the first to end at or after it. Every refresh until the end of the frame is then taken by it, so each
+/// refresh gets one frame whatever the speed.
+fn draw_next_frame(next_display: &mut Instant, now: Instant, frame_time: Duration) -> bool {
+    let end = now + frame_time;
+    if *next_display > end {
+        return false;
+    }
+    if *next_display + FRAME_DURATION <= now {
+        // Fell behind, such as after a pause
+        *next_display = now;
+    }
+    while *next_display <= end {
+        *next_display += FRAME_DURATION;
+    }
+    true
+}
+
+fn sleep_until(deadline: Instant) {
+    let now = Instant::now();
+    if deadline > now + SLEEP_SLACK {
+        thread::sleep(deadline - now - SLEEP_SLACK);
+    }
+    while Instant::now() < deadline {
+        thread::yield_now();
+    }
 }
 
 pub struct CpalPlayer {
@@ -187,4 +549,30 @@ impl crate::AudioPlayer for CpalPlayer {
     fn underflowed(&self) -> bool {
         (*self.buffer.lock().unwrap()).len() == 0
     }
-}
\ No newline at end of file
+
+    fn queued_frames(&self) -> Option<usize> {
+        Some(self.buffer.lock().unwrap().len())
+    }
+}
+#[cfg(test)]
+mod test {
+    use super::{draw_next_frame, FRAME_DURATION};
+    use std::time::Instant;
+
+    // Frames drawn out of 600 emulated frames run at `speed`
+    fn drawn(speed: f64) -> u32 {
+        let frame_time = FRAME_DURATION.div_f64(speed);
+        let start = Instant::now();
+        let mut next_display = start;
+        (1 ..= 600).filter(|&frame| draw_next_frame(&mut next_display, start + frame_time * frame, frame_time)).count() as u32
+    }
+
+    #[test]
+    fn draws_a_frame_per_refresh() {
+        // 600 frames at 1.5x last 400 refreshes
+        for &(speed, refreshes) in [(1.5, 400), (1.9, 316), (2.0, 300), (4.0, 150)].iter() {
+            let drawn = drawn(speed);
+            assert!(drawn + 1 >= refreshes && drawn <= refreshes + 1, "{} frames drawn at {}x, expected {}", drawn, speed, refreshes);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+use std::borrow::Cow;
+use std::cell::UnsafeCell;
+use std::sync::Arc;
+use std::sync::atomic::{AtomicBool, AtomicU64, AtomicUsize, Ordering};
+
+use crate::gpu::{SCREEN_W, SCREEN_H, DIRTY_WORDS};
+
+const PIXELS: usize = SCREEN_W * SCREEN_H;
+/// Size of a slot, big enough for a frame in any format
+pub const FRAME_SIZE: usize = PIXELS * 3;
+// Indexed slots start with the palette, 3 bytes per colour, followed by the pixels
+const PALETTE_2BPP_SIZE: usize = 4 * 3;
+const PALETTE_8BPP_SIZE: usize = 256 * 3;
+
+/// How a frame is laid out within its slot, the values are shared with java.
+#[derive(Copy, Clone, PartialEq, Debug)]
+pub enum FrameFormat {
+    /// 3 bytes per pixel
+    Rgb = 0,
+    /// 4 colour palette, then 4 pixels per byte with the first pixel in the lowest bits
+    Indexed2bpp = 1,
+    /// 256 colour palette, then a byte per pixel
+    Indexed8bpp = 2,
+}
+
+/// A frame as produced by the GPU, indexed frames have one index per pixel.
+pub enum Frame<'a> {
+    Rgb(&'a [u8]),
+    Indexed2bpp(&'a [[u8; 3]; 4], &'a [u8]),
+    Indexed8bpp(&'a [[u8; 3]], &'a [u8]),
+}
+
+impl<'a> Frame<'a> {
+    pub fn write(&self, slot: &mut [u8]) -> FrameFormat {
+        match *self {
+            Frame::Rgb(data) => {
+                slot.copy_from_slice(data);
+                FrameFormat::Rgb
+            },
+            Frame::Indexed2bpp(palette, indices) => {
+                write_palette(palette, slot);
+                let packed = &mut slot[PALETTE_2BPP_SIZE .. PALETTE_2BPP_SIZE + PIXELS / 4];
+                for (byte, pixels) in packed.iter_mut().zip(indices.chunks_exact(4)) {
+                    *byte = pixels[0] | pixels[1] << 2 | pixels[2] << 4 | pixels[3] << 6;
+                }
+                FrameFormat::Indexed2bpp
+            },
+            Frame::Indexed8bpp(palette, indices) => {
+                debug_assert!(palette.len() <= 256);
+                write_palette(palette, slot);
+                slot[PALETTE_8BPP_SIZE .. PALETTE_8BPP_SIZE + PIXELS].copy_from_slice(indices);
+                FrameFormat::Indexed8bpp
+            },
+        }
+    }
+}
+
+fn write_palette(palette: &[[u8; 3]], slot: &mut [u8]) {
+    for (out, colour) in slot.chunks_exact_mut(3).zip(palette.iter()) {
+        out.copy_from_slice(colour);
+    }
+}
+
+/// Expands a slot holding a frame in the given format to RGB.
+pub fn expand_rgb(format: FrameFormat, slot: &[u8], out: &mut [u8]) {
+    match format {
+        FrameFormat::Rgb => out.copy_from_slice(&slot[.. FRAME_SIZE]),
+        FrameFormat::Indexed2bpp => {
+            for (pixel, rgb) in out.chunks_exact_mut(3).enumerate() {
+                let index = ((slot[PALETTE_2BPP_SIZE + pixel / 4] >> (pixel % 4 * 2)) & 0x03) as usize;
+                rgb.copy_from_slice(&slot[index * 3 .. index * 3 + 3]);
+            }
+        },
+        FrameFormat::Indexed8bpp => {
+            for (pixel, rgb) in out.chunks_exact_mut(3).enumerate() {
+                let index = slot[PALETTE_8BPP_SIZE + pixel] as usize;
+                rgb.copy_from_slice(&slot[index * 3 .. index * 3 + 3]);
+            }
+        },
+    }
+}
+
+/// A cheap 64-bit FNV-1a style hash of a frame, taken a word at a time. Equal frames always hash the same on every platform.
+pub fn hash(data: &[u8]) -> u64 {
+    const PRIME: u64 = 0x100000001B3;
+    let mut hash = 0xCBF29CE484222325u64;
+
+    let words = data.chunks_exact(8);
+    let rest = words.remainder();
+    for word in words {
+        let mut bytes = [0; 8];
+        bytes.copy_from_slice(word);
+        hash = (hash ^ u64::from_le_bytes(bytes)).wrapping_mul(PRIME);
+    }
+    for &byte in rest {
+        hash = (hash ^ byte as u64).wrapping_mul(PRIME);
+    }
+
+    hash ^ (hash >> 32)
+}
+
+// The middle slot index is stored together with a flag telling whether it holds a frame
+// the consumer has not seen yet.
+const FRESH: usize = 0b100;
+const INDEX: usize = 0b011;
+
+struct Shared {
+    // All three slots live in one allocation so it can be handed to java as a single direct buffer.
+    // Its address never changes for the lifetime of the mailbox.
+    memory: *mut u8,
+    sequences: [UnsafeCell<u64>; 3],
+    input_sequences: [UnsafeCell<u64>; 3],
+    formats: [UnsafeCell<FrameFormat>; 3],
+    // Scanlines that changed since the frame the consumer saw before this one
+    dirty_lines: [UnsafeCell<[u64; DIRTY_WORDS]>; 3],
+    middle: AtomicUsize,
+    // Set by the consumer, whether it would like indexed frames when the producer can provide them
+    indexed: AtomicBool,
+    dropped: AtomicU64,
+    duplicated: AtomicU64,
+}
+
+// Each slot is only ever accessed by the side (producer or consumer) that currently owns its index.
+unsafe impl Sync for Shared {}
+unsafe impl Send for Shared {}
+
+impl Shared {
+    fn slot(&self, index: usize) -> *mut u8 {
+        unsafe { self.memory.add(index * FRAME_SIZE) }
+    }
+}
+
+impl Drop for Shared {
+    fn drop(&mut self) {
+        let memory = std::ptr::slice_from_raw_parts_mut(self.memory, FRAME_SIZE * 3);
+        drop(unsafe { Box::from_raw(memory) });
+    }
+}
+
+/// Triple buffered "latest frame" mailbox between the emulator thread and the render thread.
+/// Neither side ever blocks, the producer overwrites frames the consumer did not pick up in time.
+pub fn mailbox() -> (FrameProducer, FrameConsumer) {
+    let memory = vec![255u8; FRAME_SIZE * 3].into_boxed_slice();
+    let shared = Arc::new(Shared {
+        memory: Box::into_raw(memory) as *mut u8,
+        sequences: [UnsafeCell::new(0), UnsafeCell::new(0), UnsafeCell::new(0)],
+        input_sequences: [UnsafeCell::new(0), UnsafeCell::new(0), UnsafeCell::new(0)],
+        formats: [UnsafeCell::new(FrameFormat::Rgb), UnsafeCell::new(FrameFormat::Rgb), UnsafeCell::new(FrameFormat::Rgb)],
+        dirty_lines: [UnsafeCell::new([0; DIRTY_WORDS]), UnsafeCell::new([0; DIRTY_WORDS]), UnsafeCell::new([0; DIRTY_WORDS])],
+        middle: AtomicUsize::new(1),
+        indexed: AtomicBool::new(false),
+        dropped: AtomicU64::new(0),
+        duplicated: AtomicU64::new(0),
+    });
+
+    let producer = FrameProducer { shared: shared.clone(), back: 0, sequence: 0, input_sequence: 0 };
+    let consumer = FrameConsumer { shared, front: 2 };
+    (producer, consumer)
+}
+
+pub struct FrameProducer {
+    shared: Arc<Shared>,
+    back: usize,
+    sequence: u64,
+    /// The latest input applied to the emulator, published along with every frame
+    pub input_sequence: u64,
+}
+
+impl FrameProducer {
+    /// Whether the consumer asked for indexed frames
+    pub fn wants_indexed(&self) -> bool {
+        self.shared.indexed.load(Ordering::Relaxed)
+    }
+
+    pub fn publish(&mut self, frame: Frame, dirty_lines: [u64; DIRTY_WORDS]) {
+        self.sequence += 1;
+
+        let mut dirty_lines = dirty_lines;
+        let middle = self.shared.middle.load(Ordering::Acquire);
+        if middle & FRESH != 0 {
+            // The frame about to be replaced was never seen, so its changes must be carried over.
+            // Should the consumer take it in the meantime this only over reports.
+            let unseen = unsafe { *self.shared.dirty_lines[middle & INDEX].get() };
+            for (line, unseen) in dirty_lines.iter_mut().zip(unseen.iter()) {
+                *line |= *unseen;
+            }
+        }
+
+        unsafe {
+            let slot = std::slice::from_raw_parts_mut(self.shared.slot(self.back), FRAME_SIZE);
+            *self.shared.formats[self.back].get() = frame.write(slot);
+            *self.shared.sequences[self.back].get() = self.sequence;
+            *self.shared.input_sequences[self.back].get() = self.input_sequence;
+            *self.shared.dirty_lines[self.back].get() = dirty_lines;
+        }
+
+        let previous = self.shared.middle.swap(self.back | FRESH, Ordering::AcqRel);
+        if previous & FRESH != 0 {
+            // The consumer never saw the frame we just replaced
+            self.shared.dropped.fetch_add(1, Ordering::Relaxed);
+        }
+        self.back = previous & INDEX;
+    }
+}
+
+pub struct FrameConsumer {
+    shared: Arc<Shared>,
+    front: usize,
+}
+
+impl FrameConsumer {
+    /// Swaps in the latest published frame, returns false when nothing new has arrived since the last call.
+    pub fn latch(&mut self) -> bool {
+        if self.shared.middle.load(Ordering::Acquire) & FRESH == 0 {
+            self.shared.duplicated.fetch_add(1, Ordering::Relaxed);
+            return false;
+        }
+
+        let previous = self.shared.middle.swap(self.front, Ordering::AcqRel);
+        self.front = previous & INDEX;
+        true
+    }
+
+    pub fn front(&self) -> &[u8] {
+        unsafe { std::slice::from_raw_parts(self.shared.slot(self.front), FRAME_SIZE) }
+    }
+
+    pub fn front_format(&self) -> FrameFormat {
+        unsafe { *self.shared.formats[self.front].get() }
+    }
+
+    /// The front frame as RGB, only copied when it is in another format.
+    pub fn front_rgb(&self) -> Cow<[u8]> {
+        match self.front_format() {
+            FrameFormat::Rgb => Cow::Borrowed(self.front()),
+            format => {
+                let mut rgb = vec![0; FRAME_SIZE];
+                expand_rgb(format, self.front(), &mut rgb);
+                Cow::Owned(rgb)
+            },
+        }
+    }
+
+    /// Asks the producer for indexed frames from now on, it keeps sending RGB when a frame can't be indexed.
+    pub fn set_indexed(&self, indexed: bool) {
+        self.shared.indexed.store(indexed, Ordering::Relaxed);
+    }
+
+    pub fn front_sequence(&self) -> u64 {
+        unsafe { *self.shared.sequences[self.front].get() }
+    }
+
+    /// The input sequence of the last key event applied before the front frame was completed
+    pub fn front_input_sequence(&self) -> u64 {
+        unsafe { *self.shared.input_sequences[self.front].get() }
+    }
+
+    /// Scanlines of the front frame that differ from the frame that was in front before the last latch.
+    pub fn front_dirty_lines(&self) -> [u64; DIRTY_WORDS] {
+        unsafe { *self.shared.dirty_lines[self.front].get() }
+    }
+
+    /// Byte offset of the current front slot within `memory()`.
+    pub fn front_offset(&self) -> usize {
+        self.front * FRAME_SIZE
+    }
+
+    /// Base address and length of the memory backing all slots, see `front_offset`.
+    pub fn memory(&self) -> (*mut u8, usize) {
+        (self.shared.memory, FRAME_SIZE * 3)
+    }
+
+    pub fn dropped(&self) -> u64 {
+        self.shared.dropped.load(Ordering::Relaxed)
+    }
+
+    pub fn duplicated(&self) -> u64 {
+        self.shared.duplicated.load(Ordering::Relaxed)
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::{hash, Frame, FRAME_SIZE};
+
+    #[test]
+    fn latest_frame_wins() {
+        let (mut producer, mut consumer) = super::mailbox();
+
+        assert!(!consumer.latch());
+        assert_eq!(consumer.duplicated(), 1);
+
+        producer.publish(Frame::Rgb(&vec![1; FRAME_SIZE]), [0b01, 0, 0]);
+        producer.publish(Frame::Rgb(&vec![2; FRAME_SIZE]), [0b10, 0, 0]);
+        assert!(consumer.latch());
+        assert_eq!(consumer.front_sequence(), 2);
+        assert_eq!(consumer.front()[0], 2);
+        assert_eq!(consumer.front_dirty_lines(), [0b11, 0, 0]);
+        assert_eq!(consumer.dropped(), 1);
+
+        assert!(!consumer.latch());
+        assert_eq!(consumer.front_sequence(), 2);
+        assert_eq!(consumer.duplicated(), 2);
+    }
+
+    #[test]
+    fn hash_covers_every_byte() {
+        let frame = vec![7; FRAME_SIZE + 3];
+        for i in [0, 5, FRAME_SIZE - 1, FRAME_SIZE + 2].iter() {
+            let mut changed = frame.clone();
+            changed[*i] = 8;
+            assert_ne!(hash(&frame), hash(&changed));
+        }
+        assert_eq!(hash(&frame), hash(&frame.clone()));
+    }
+}
@@ -1,10 +1,22 @@
 use std::cmp::Ordering;
+use crate::frame::Frame;
 use crate::gbmode::GbMode;
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
 
 const VRAM_SIZE: usize = 0x4000;
 const VOAM_SIZE: usize = 0xA0;
+/// Tiles in the tile data at 0x8000-0x97FF of each VRAM bank
+const TILES_PER_BANK: usize = 384;
+const TILE_DATA_SIZE: usize = TILES_PER_BANK * 16;
+const TILES: usize = TILES_PER_BANK * 2;
 pub const SCREEN_W: usize = 160;
 pub const SCREEN_H: usize = 144;
+pub const DIRTY_WORDS: usize = (SCREEN_H + 63) / 64;
+const ALL_LINES_DIRTY: [u64; DIRTY_WORDS] = [!0, !0, (1 << (SCREEN_H - 128)) - 1];
+/// Grey level of each of the four DMG shades, from lightest to darkest
+const DMG_SHADES: [u8; 4] = [255, 192, 96, 0];
+const DMG_PALETTE: [[u8; 3]; 4] = [[255; 3], [192; 3], [96; 3], [0; 3]];
 
 #[derive(PartialEq, Copy, Clone)]
 enum PrioType {
@@ -43,6 +55,10 @@ pub struct GPU {
     pal0: [u8; 4],
     pal1: [u8; 4],
     vram: [u8; VRAM_SIZE],
+    // The tiles of both banks decoded to a colour number per pixel, row by row.
+    // Decoded when first drawn after their bit in `tiles_dirty` was set by a VRAM write.
+    tiles: Vec<[u8; 64]>,
+    tiles_dirty: [u64; TILES / 64],
     voam: [u8; VOAM_SIZE],
     cbgpal_inc: bool,
     cbgpal_ind: u8,
@@ -52,8 +68,18 @@ pub struct GPU {
     csprit: [[[u8; 3]; 4]; 8],
     vrambank: usize,
     pub data: Vec<u8>,
+    // The pixels of `data` as indices, a DMG shade or an entry of `frame_palette`
+    indexed: Vec<u8>,
+    frame_palette: FramePalette,
+    // One bit per scanline whose pixels changed since the bitmap was last taken
+    pub dirty_lines: [u64; DIRTY_WORDS],
+    linebuf: [u8; SCREEN_W * 3],
     bgprio: [PrioType; SCREEN_W],
     pub updated: bool,
+    /// Whether the next frame is drawn, its timing and interrupts are the same either way
+    pub render_frames: bool,
+    // Latched from render_frames at the start of each frame
+    rendering: bool,
     pub interrupt: u8,
     pub gbmode: GbMode,
     hblanking: bool,
@@ -87,14 +113,22 @@ impl GPU {
             palbr: 0,
             pal0r: 0,
             pal1r: 1,
-            palb: [0; 4],
-            pal0: [0; 4],
-            pal1: [0; 4],
+            palb: [3; 4],
+            pal0: [3; 4],
+            pal1: [3; 4],
             vram: [0; VRAM_SIZE],
+            tiles: vec![[0; 64]; TILES],
+            tiles_dirty: [0; TILES / 64],
             voam: [0; VOAM_SIZE],
             data: vec![0; SCREEN_W * SCREEN_H * 3],
+            indexed: vec![3; SCREEN_W * SCREEN_H],
+            frame_palette: FramePalette::new(),
+            dirty_lines: ALL_LINES_DIRTY,
+            linebuf: [0; SCREEN_W * 3],
             bgprio: [PrioType::Normal; SCREEN_W],
             updated: false,
+            render_frames: true,
+            rendering: true,
             interrupt: 0,
             gbmode: GbMode::Classic,
             cbgpal_inc: false,
@@ -183,6 +217,54 @@ impl GPU {
         }
     }
 
+    /// Offset in `read_vram`/`write_vram` of the VRAM bank mapped at 0x8000
+    pub fn vram_bank_offset(&self) -> usize {
+        self.vrambank * 0x2000
+    }
+
+    /// VRAM access by offset into both banks, for the MMU's page table
+    #[inline]
+    pub fn read_vram(&self, offset: usize) -> u8 {
+        self.vram[offset]
+    }
+
+    #[inline]
+    pub fn write_vram(&mut self, offset: usize, v: u8) {
+        self.vram[offset] = v;
+
+        let bank_offset = offset & 0x1FFF;
+        if bank_offset < TILE_DATA_SIZE {
+            let tile = (offset >> 13) * TILES_PER_BANK + bank_offset / 16;
+            self.tiles_dirty[tile / 64] |= 1 << (tile % 64);
+        }
+    }
+
+    /// One row of a tile as colour numbers, leftmost pixel first
+    fn tile_row(&mut self, bank: usize, tile: usize, row: usize) -> [u8; 8] {
+        let index = bank * TILES_PER_BANK + tile;
+        if self.tiles_dirty[index / 64] & (1 << (index % 64)) != 0 {
+            self.decode_tile(index);
+        }
+
+        let mut pixels = [0; 8];
+        pixels.copy_from_slice(&self.tiles[index][row * 8 .. row * 8 + 8]);
+        pixels
+    }
+
+    fn decode_tile(&mut self, index: usize) {
+        let base = (index / TILES_PER_BANK) * 0x2000 + (index % TILES_PER_BANK) * 16;
+        let tile = &mut self.tiles[index];
+        for row in 0 .. 8 {
+            let b1 = self.vram[base + row * 2];
+            let b2 = self.vram[base + row * 2 + 1];
+            for x in 0 .. 8 {
+                let bit = 7 - x;
+                tile[row * 8 + x] = (b1 >> bit) & 1 | ((b2 >> bit) & 1) << 1;
+            }
+        }
+        self.tiles_dirty[index / 64] &= !(1 << (index % 64));
+    }
+
     pub fn rb(&self, a: u16) -> u8 {
         match a {
             0x8000 ..= 0x9FFF => self.vram[(self.vrambank * 0x2000) | (a as usize & 0x1FFF)],
@@ -255,7 +337,7 @@ impl GPU {
 
     pub fn wb(&mut self, a: u16, v: u8) {
         match a {
-            0x8000 ..= 0x9FFF => self.vram[(self.vrambank * 0x2000) | (a as usize & 0x1FFF)] = v,
+            0x8000 ..= 0x9FFF => self.write_vram((self.vrambank * 0x2000) | (a as usize & 0x1FFF), v),
             0xFE00 ..= 0xFE9F => self.voam[a as usize - 0xFE00] = v,
             0xFF40 => {
                 let orig_lcd_on = self.lcd_on;
@@ -330,6 +412,11 @@ impl GPU {
         for v in self.data.iter_mut() {
             *v = 255;
         }
+        for v in self.indexed.iter_mut() {
+            *v = 0;
+        }
+        self.frame_palette.clear_to_white();
+        self.dirty_lines = ALL_LINES_DIRTY;
         self.updated = true;
     }
 
@@ -341,28 +428,51 @@ impl GPU {
         }
     }
 
+    /// Returns the shade, an index into DMG_SHADES
     fn get_monochrome_pal_val(value: u8, index: usize) -> u8 {
-        match (value >> 2*index) & 0x03 {
-            0 => 255,
-            1 => 192,
-            2 => 96,
-            _ => 0
-        }
+        (value >> 2*index) & 0x03
+    }
+
+    /// Whether the frame that has just ended was drawn, the screen still shows an earlier frame if not
+    pub fn frame_rendered(&self) -> bool {
+        self.rendering
     }
 
     fn renderscan(&mut self) {
+        if self.line == 0 {
+            self.rendering = self.render_frames;
+        }
+        if !self.rendering {
+            return;
+        }
+
+        let start = self.line as usize * SCREEN_W * 3;
+        let end = start + SCREEN_W * 3;
+        self.linebuf.copy_from_slice(&self.data[start .. end]);
+
+        if self.line == 0 {
+            self.frame_palette.begin_frame();
+        }
+
         for x in 0 .. SCREEN_W {
-            self.setcolor(x, 255);
+            self.setcolor(x, 0);
             self.bgprio[x] = PrioType::Normal;
         }
         self.draw_bg();
         self.draw_sprites();
+
+        if self.data[start .. end] != self.linebuf[..] {
+            self.dirty_lines[self.line as usize / 64] |= 1 << (self.line as usize % 64);
+        }
+        self.frame_palette.lines += 1;
     }
 
-    fn setcolor(&mut self, x: usize, color: u8) {
+    fn setcolor(&mut self, x: usize, shade: u8) {
+        let color = DMG_SHADES[shade as usize];
         self.data[self.line as usize * SCREEN_W * 3 + x * 3 + 0] = color;
         self.data[self.line as usize * SCREEN_W * 3 + x * 3 + 1] = color;
         self.data[self.line as usize * SCREEN_W * 3 + x * 3 + 2] = color;
+        self.indexed[self.line as usize * SCREEN_W + x] = shade;
     }
 
     fn setrgb(&mut self, x: usize, r: u8, g: u8, b: u8) {
@@ -375,9 +485,28 @@ impl GPU {
         let g = g as u32;
         let b = b as u32;
 
-        self.data[baseidx + 0] = ((r * 13 + g * 2 + b) >> 1) as u8;
-        self.data[baseidx + 1] = ((g * 3 + b) << 1) as u8;
-        self.data[baseidx + 2] = ((r * 3 + g * 2 + b * 11) >> 1) as u8;
+        let rgb = [
+            ((r * 13 + g * 2 + b) >> 1) as u8,
+            ((g * 3 + b) << 1) as u8,
+            ((r * 3 + g * 2 + b * 11) >> 1) as u8,
+        ];
+        self.data[baseidx .. baseidx + 3].copy_from_slice(&rgb);
+
+        let colour = (r | g << 5 | b << 10) as usize;
+        self.indexed[self.line as usize * SCREEN_W + x] = self.frame_palette.index(colour, rgb);
+    }
+
+    /// The current frame, as palette indices when `indexed` is set and the frame can be represented that way.
+    pub fn frame(&self, indexed: bool) -> Frame<'_> {
+        if !indexed {
+            Frame::Rgb(&self.data)
+        } else if self.gbmode != GbMode::Color {
+            Frame::Indexed2bpp(&DMG_PALETTE, &self.indexed)
+        } else if self.frame_palette.complete() {
+            Frame::Indexed8bpp(self.frame_palette.colours(), &self.indexed)
+        } else {
+            Frame::Rgb(&self.data)
+        }
     }
 
     fn draw_bg(&mut self) {
@@ -401,6 +530,13 @@ impl GPU {
         let bgy = self.scy.wrapping_add(self.line);
         let bgtiley = (bgy as u16 >> 3) & 31;
 
+        // The tile under the previous pixel, decoded once for all of its pixels on this line
+        let mut current = None;
+        let mut pixels = [0u8; 8];
+        let mut palnr = 0;
+        let mut xflip = false;
+        let mut prio = false;
+
         for x in 0 .. SCREEN_W {
             let winx = - ((self.winx as i32) - 7) + (x as i32);
             let bgx = self.scx as u32 + x as u32;
@@ -421,42 +557,38 @@ impl GPU {
                 continue;
             };
 
-            let tilenr: u8 = self.rbvram0(tilemapbase + tiley * 32 + tilex);
+            let key = (tilemapbase, tiley, tilex, pixely);
+            if current != Some(key) {
+                current = Some(key);
 
-            let (palnr, vram1, xflip, yflip, prio) = if self.gbmode == GbMode::Color {
-                let flags = self.rbvram1(tilemapbase + tiley * 32 + tilex) as usize;
-                (flags & 0x07,
-                flags & (1 << 3) != 0,
-                flags & (1 << 5) != 0,
-                flags & (1 << 6) != 0,
-                flags & (1 << 7) != 0)
-            } else {
-                (0, false, false, false, false)
-            };
-
-            let tileaddress = self.tilebase
-            + (if self.tilebase == 0x8000 {
-                tilenr as u16
-            } else {
-                (tilenr as i8 as i16 + 128) as u16
-            }) * 16;
+                let tilenr: u8 = self.rbvram0(tilemapbase + tiley * 32 + tilex);
 
-            let a0 = match yflip {
-                false => tileaddress + (pixely * 2),
-                true => tileaddress + (14 - (pixely * 2)),
-            };
+                let (flags_palnr, vram1, flags_xflip, yflip, flags_prio) = if self.gbmode == GbMode::Color {
+                    let flags = self.rbvram1(tilemapbase + tiley * 32 + tilex) as usize;
+                    (flags & 0x07,
+                    flags & (1 << 3) != 0,
+                    flags & (1 << 5) != 0,
+                    flags & (1 << 6) != 0,
+                    flags & (1 << 7) != 0)
+                } else {
+                    (0, false, false, false, false)
+                };
+                palnr = flags_palnr;
+                xflip = flags_xflip;
+                prio = flags_prio;
+
+                let tileaddress = self.tilebase
+                + (if self.tilebase == 0x8000 {
+                    tilenr as u16
+                } else {
+                    (tilenr as i8 as i16 + 128) as u16
+                }) * 16;
 
-            let (b1, b2) = match vram1 {
-                false => (self.rbvram0(a0), self.rbvram0(a0 + 1)),
-                true => (self.rbvram1(a0), self.rbvram1(a0 + 1)),
-            };
+                let row = if yflip { 7 - pixely } else { pixely } as usize;
+                pixels = self.tile_row(vram1 as usize, (tileaddress - 0x8000) as usize / 16, row);
+            }
 
-            let xbit = match xflip {
-                true => pixelx,
-                false => 7 - pixelx,
-            } as u32;
-            let colnr = if b1 & (1 << xbit) != 0 { 1 } else { 0 }
-                | if b2 & (1 << xbit) != 0 { 2 } else { 0 };
+            let colnr = pixels[if xflip { 7 - pixelx } else { pixelx } as usize] as usize;
 
             self.bgprio[x] =
                 if colnr == 0 { PrioType::Color0 }
@@ -519,19 +651,14 @@ impl GPU {
                 (line - spritey) as u16
             };
 
-            let tileaddress = 0x8000u16 + tilenum * 16 + tiley * 2;
-            let (b1, b2) = if c_vram1 && self.gbmode == GbMode::Color {
-                (self.rbvram1(tileaddress), self.rbvram1(tileaddress + 1))
-            } else {
-                (self.rbvram0(tileaddress), self.rbvram0(tileaddress + 1))
-            };
+            // 8x16 sprites continue into the next tile
+            let bank = (c_vram1 && self.gbmode == GbMode::Color) as usize;
+            let pixels = self.tile_row(bank, (tilenum + tiley / 8) as usize, (tiley % 8) as usize);
 
             'xloop: for x in 0 .. 8 {
                 if spritex + x < 0 || spritex + x >= (SCREEN_W as i32) { continue }
 
-                let xbit = 1 << (if xflip { x } else { 7 - x } as u32);
-                let colnr = (if b1 & xbit != 0 { 1 } else { 0 }) |
-                    (if b2 & xbit != 0 { 2 } else { 0 });
+                let colnr = pixels[if xflip { 7 - x } else { x } as usize] as usize;
                 if colnr == 0 { continue }
 
                 if self.gbmode == GbMode::Color {
@@ -551,6 +678,88 @@ impl GPU {
         }
     }
 
+    /// Everything but the rendered screen, which is redrawn within a frame of loading
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.u8(self.mode);
+        w.u32(self.modeclock);
+        w.u8(self.line);
+        w.u8(self.lyc);
+        w.bool(self.lcd_on);
+        w.u16(self.win_tilemap);
+        w.bool(self.win_on);
+        w.u16(self.tilebase);
+        w.u16(self.bg_tilemap);
+        w.u32(self.sprite_size);
+        w.bool(self.sprite_on);
+        w.bool(self.lcdc0);
+        w.bool(self.lyc_inte);
+        w.bool(self.m0_inte);
+        w.bool(self.m1_inte);
+        w.bool(self.m2_inte);
+        w.bytes(&[self.scy, self.scx, self.winy, self.winx]);
+        w.bool(self.wy_trigger);
+        w.i32(self.wy_pos);
+        w.bytes(&[self.palbr, self.pal0r, self.pal1r]);
+        w.bytes(&self.vram);
+        w.bytes(&self.voam);
+        w.bool(self.cbgpal_inc);
+        w.u8(self.cbgpal_ind);
+        save_cgb_palettes(w, &self.cbgpal);
+        w.bool(self.csprit_inc);
+        w.u8(self.csprit_ind);
+        save_cgb_palettes(w, &self.csprit);
+        w.u8(self.vrambank as u8);
+        w.u8(self.interrupt);
+        w.bool(self.hblanking);
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.mode = r.u8()?;
+        self.modeclock = r.u32()?;
+        self.line = r.u8()?;
+        self.lyc = r.u8()?;
+        self.lcd_on = r.bool()?;
+        self.win_tilemap = r.u16()?;
+        self.win_on = r.bool()?;
+        self.tilebase = r.u16()?;
+        self.bg_tilemap = r.u16()?;
+        self.sprite_size = r.u32()?;
+        self.sprite_on = r.bool()?;
+        self.lcdc0 = r.bool()?;
+        self.lyc_inte = r.bool()?;
+        self.m0_inte = r.bool()?;
+        self.m1_inte = r.bool()?;
+        self.m2_inte = r.bool()?;
+        let v = r.bytes(4)?;
+        self.scy = v[0];
+        self.scx = v[1];
+        self.winy = v[2];
+        self.winx = v[3];
+        self.wy_trigger = r.bool()?;
+        self.wy_pos = r.i32()?;
+        let v = r.bytes(3)?;
+        self.palbr = v[0];
+        self.pal0r = v[1];
+        self.pal1r = v[2];
+        self.update_pal();
+        r.bytes_into(&mut self.vram)?;
+        self.tiles_dirty = [!0; TILES / 64];
+        r.bytes_into(&mut self.voam)?;
+        self.cbgpal_inc = r.bool()?;
+        self.cbgpal_ind = r.u8()?;
+        load_cgb_palettes(r, &mut self.cbgpal)?;
+        self.csprit_inc = r.bool()?;
+        self.csprit_ind = r.u8()?;
+        load_cgb_palettes(r, &mut self.csprit)?;
+        self.vrambank = (r.u8()? & 0x01) as usize;
+        self.interrupt = r.u8()?;
+        self.hblanking = r.bool()?;
+
+        self.dirty_lines = ALL_LINES_DIRTY;
+        self.updated = false;
+        Ok(())
+    }
+
     pub fn may_hdma(&self) -> bool {
         return self.hblanking;
     }
@@ -558,6 +767,91 @@ impl GPU {
 
 // Functions to determine the order of sprites. Input is a tuple x-coord, OAM position
 // These function ensures that sprites with a higher priority are 'larger'
+fn save_cgb_palettes(w: &mut StateWriter, palettes: &[[[u8; 3]; 4]; 8]) {
+    for colour in palettes.iter().flatten() {
+        w.bytes(colour);
+    }
+}
+
+fn load_cgb_palettes(r: &mut StateReader, palettes: &mut [[[u8; 3]; 4]; 8]) -> StrResult<()> {
+    for colour in palettes.iter_mut().flatten() {
+        r.bytes_into(colour)?;
+    }
+    Ok(())
+}
+
+/// Gives every distinct colour drawn during a CGB frame an index, so the frame can be handed out as 8 bit indices.
+struct FramePalette {
+    colours: [[u8; 3]; 256],
+    len: usize,
+    // Per 15 bit CGB colour, the generation it was last given an index in (high 24 bits) and that index
+    lookup: Vec<u32>,
+    generation: u32,
+    // Lines drawn since the palette was last reset, the indices are only usable once the whole screen is covered
+    lines: usize,
+    overflowed: bool,
+}
+
+impl FramePalette {
+    fn new() -> FramePalette {
+        FramePalette {
+            colours: [[0; 3]; 256],
+            len: 0,
+            lookup: vec![0; 1 << 15],
+            generation: 1,
+            lines: 0,
+            overflowed: false,
+        }
+    }
+
+    fn begin_frame(&mut self) {
+        self.generation += 1;
+        if self.generation >= 1 << 24 {
+            for entry in self.lookup.iter_mut() {
+                *entry = 0;
+            }
+            self.generation = 1;
+        }
+        self.len = 0;
+        self.lines = 0;
+        self.overflowed = false;
+    }
+
+    /// A blank screen, every index is 0
+    fn clear_to_white(&mut self) {
+        self.begin_frame();
+        self.colours[0] = [255; 3];
+        self.len = 1;
+        self.lines = SCREEN_H;
+    }
+
+    fn index(&mut self, colour: usize, rgb: [u8; 3]) -> u8 {
+        let entry = self.lookup[colour];
+        if entry >> 8 == self.generation {
+            return entry as u8;
+        }
+        if self.len == self.colours.len() {
+            // More colours than fit in 8 bits, the frame will be handed out as RGB
+            self.overflowed = true;
+            return 0;
+        }
+
+        let index = self.len;
+        self.colours[index] = rgb;
+        self.len += 1;
+        self.lookup[colour] = self.generation << 8 | index as u32;
+        index as u8
+    }
+
+    fn complete(&self) -> bool {
+        !self.overflowed && self.lines >= SCREEN_H
+    }
+
+    fn colours(&self) -> &[[u8; 3]] {
+        &self.colours[.. self.len]
+    }
+}
+
 fn dmg_sprite_order(a: &(i32, i32, u8), b: &(i32, i32, u8)) -> Ordering {
     // DMG order: prioritize on x-coord, and then by OAM position.
     if a.0 != b.0 {
@@ -570,3 +864,105 @@ fn cgb_sprite_order(a: &(i32, i32, u8), b: &(i32, i32, u8)) -> Ordering {
     // CGB order: only prioritize based on OAM position.
     return b.2.cmp(&a.2);
 }
+
+#[cfg(test)]
+mod test {
+    use super::{GPU, SCREEN_H, SCREEN_W};
+    use crate::frame::{expand_rgb, Frame, FRAME_SIZE};
+    use crate::gbmode::GbMode;
+
+    // Fills VRAM, OAM and the palettes with noise and turns the LCD on with background and sprites enabled
+    fn noisy_gpu(gbmode: GbMode) -> GPU {
+        let mut gpu = GPU::new();
+        gpu.gbmode = gbmode;
+
+        let mut seed = 0x1234_5678u32;
+        let mut next = move || {
+            seed ^= seed << 13;
+            seed ^= seed >> 17;
+            seed ^= seed << 5;
+            seed as u8
+        };
+
+        for bank in 0 .. 2 {
+            gpu.wb(0xFF4F, bank);
+            for a in 0x8000 ..= 0x9FFF {
+                gpu.wb(a, next());
+            }
+        }
+        for a in 0xFE00 ..= 0xFE9F {
+            gpu.wb(a, next());
+        }
+        gpu.wb(0xFF47, 0xE4);
+        gpu.wb(0xFF48, 0xD2);
+        gpu.wb(0xFF49, 0x1B);
+        gpu.wb(0xFF68, 0x80);
+        gpu.wb(0xFF6A, 0x80);
+        for _ in 0 .. 64 {
+            gpu.wb(0xFF69, next());
+            gpu.wb(0xFF6B, next());
+        }
+        gpu.wb(0xFF40, 0x93);
+        gpu
+    }
+
+    fn assert_indexed_matches_rgb(gbmode: GbMode) {
+        let mut gpu = noisy_gpu(gbmode);
+        // Two frames, so the second starts from a fresh palette
+        for _ in 0 .. 2 {
+            gpu.do_cycle(70224);
+        }
+
+        let mut slot = vec![0; FRAME_SIZE];
+        let format = gpu.frame(true).write(&mut slot);
+        assert!(!matches!(gpu.frame(true), Frame::Rgb(_)), "Frame could not be indexed");
+
+        let mut rgb = vec![0; SCREEN_W * SCREEN_H * 3];
+        expand_rgb(format, &slot, &mut rgb);
+        assert!(rgb == gpu.data, "Indexed frame differs from the RGB frame");
+    }
+
+    #[test]
+    fn indexed_classic_matches_rgb() {
+        assert_indexed_matches_rgb(GbMode::Classic);
+    }
+
+    #[test]
+    fn indexed_color_matches_rgb() {
+        assert_indexed_matches_rgb(GbMode::Color);
+    }
+
+    // Rewrites the tile data of both banks, bank 1 last so the writes go through the selected bank
+    fn rewrite_tiles(gpu: &mut GPU) {
+        for bank in 0 .. 2 {
+            gpu.wb(0xFF4F, bank);
+            for a in 0x8000 .. 0x9800u16 {
+                gpu.wb(a, (a as u8).wrapping_mul(37) ^ bank);
+            }
+        }
+    }
+
+    fn assert_tile_writes_invalidate(gbmode: GbMode) {
+        // Draws from cached tiles before the rewrite
+        let mut cached = noisy_gpu(gbmode);
+        cached.do_cycle(70224 * 2);
+        rewrite_tiles(&mut cached);
+        cached.do_cycle(70224 * 2);
+
+        let mut fresh = noisy_gpu(gbmode);
+        rewrite_tiles(&mut fresh);
+        fresh.do_cycle(70224 * 4);
+
+        assert!(cached.data == fresh.data, "Frame drawn from stale tiles");
+    }
+
+    #[test]
+    fn tile_writes_invalidate_classic() {
+        assert_tile_writes_invalidate(GbMode::Classic);
+    }
+
+    #[test]
+    fn tile_writes_invalidate_color() {
+        assert_tile_writes_invalidate(GbMode::Color);
+    }
+}
@@ -1,45 +1,58 @@
+use std::sync::{Arc, Mutex};
+use std::sync::atomic::{AtomicU64, Ordering};
 use std::sync::mpsc;
-use std::sync::mpsc::{Receiver, Sender, SyncSender};
+use std::sync::mpsc::{Receiver, Sender, TryRecvError};
 
 use jni::{JavaVM, JNIEnv};
-use jni::objects::{JByteArray, JClass, JValue};
-use jni::sys::{jboolean, jint, jlong, jsize};
+use jni::objects::{GlobalRef, JByteArray, JByteBuffer, JClass, JLongArray, JMethodID, JObject, JValue};
+use jni::signature::{Primitive, ReturnType};
+use jni::sys::{jboolean, jdouble, jint, jlong, jsize};
 
-use crate::device::Device;
-use crate::entrypoint::{construct_cpu, GBEvent, run_cpu};
+use crate::entrypoint::{construct_cpu, Emulator, GBEvent, Recorded, run_cpu, Speed};
+use crate::frame::FrameConsumer;
+use crate::metrics::{Call, Metrics};
+use crate::rewind::Rewind;
 
+/// Freed by destroy_cpu, java makes sure no other call is in progress by then
 struct Context {
-    cpu_context_ptr: jlong,
-    gpu_receiver: Receiver<Vec<u8>>,
+    // Shared so run_cpu can lock it for the whole time it runs
+    emulator: Arc<Mutex<Emulator>>,
+    frames: FrameConsumer,
+    speed: Speed,
+    metrics: Arc<Metrics>,
     event_sender: Sender<GBEvent>,
+    // Pages of cartridge RAM written since java last flushed it, once attached
+    save_ram_dirty: Option<Arc<AtomicU64>>,
+    // Entries of the input recording not yet taken by java
+    recording: Option<Receiver<Recorded>>,
     _cpal_audio_stream: Option<cpal::Stream>
 }
 
-struct CpuContext {
-    cpu: Box<Device>,
-    gpu_sender: SyncSender<Vec<u8>>,
-    event_receiver: Receiver<GBEvent>
-}
-
 #[no_mangle]
-pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_construct_1cpu<'local>(env: JNIEnv<'local>,
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_construct_1cpu<'local>(mut env: JNIEnv<'local>,
                                                               _class: JClass<'local>,
-                                                              rom_data: JByteArray<'local>,
-                                                              use_native_audio: jboolean) -> jlong {
-    let rom_data = env.convert_byte_array(&rom_data).unwrap();
+                                                              rom_data: JByteBuffer<'local>,
+                                                              use_native_audio: jboolean,
+                                                              audio_batch_frames: jint,
+                                                              events: JObject<'local>) -> jlong {
+    // Read in place, only copied when no other context has loaded the same ROM
+    let address = env.get_direct_buffer_address(&rom_data).unwrap();
+    let capacity = env.get_direct_buffer_capacity(&rom_data).unwrap();
+    let rom = crate::rom_cache::get(std::slice::from_raw_parts(address, capacity));
 
+    // Serial output only goes to stdout once asked for, see set_serial_output
     let cpu = construct_cpu(
-        rom_data,
+        rom,
         None,
         false,
-        true,
+        false,
         false,
         false
     );
     if cpu.is_none() { return 0 as jlong; }
 
     let (event_sender, event_receiver) = mpsc::channel();
-    let (gpu_sender, gpu_receiver) = mpsc::sync_channel(1);
+    let (frame_producer, frame_consumer) = crate::frame::mailbox();
 
     let mut cpu = cpu.unwrap();
 
@@ -57,31 +70,306 @@ pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_construct_1cpu<'local
         }
     } else {
         // Use JNI audio player, and let the host handle it
-        let audio_player = JniAudioPlayer{java_vm: env.get_java_vm().expect("Failed to get java_vm")};
+        let audio_player = JniAudioPlayer::new(&mut env, &events, audio_batch_frames.max(0) as usize);
         cpu.enable_audio(Box::new(audio_player));
     }
 
-
-
-    // The CPU context's ownership is moved to the cpu thread.
-    let cpu_context = CpuContext {cpu, gpu_sender, event_receiver};
+    let emulator = Emulator::new(cpu, frame_producer, event_receiver);
     let context = Context {
-        cpu_context_ptr: Box::into_raw(Box::new(cpu_context)) as jlong,
-        gpu_receiver,
+        speed: emulator.speed.clone(),
+        metrics: emulator.metrics.clone(),
+        emulator: Arc::new(Mutex::new(emulator)),
+        frames: frame_consumer,
         event_sender,
+        save_ram_dirty: None,
+        recording: None,
         _cpal_audio_stream: cpal_audio_stream
     };
 
     return Box::into_raw(Box::new(context)) as jlong;
 }
 
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_destroy_1cpu<'local>(_env: JNIEnv<'local>,
+                                                                 _class: JClass<'local>,
+                                                                 context_ptr: jlong) {
+    drop(Box::from_raw(context_ptr as *mut Context));
+    crate::rom_cache::trim();
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1rom_1cache_1stats<'local>(env: JNIEnv<'local>,
+                                                                       _class: JClass<'local>,
+                                                                       stats: JLongArray<'local>) {
+    let values = crate::rom_cache::stats().map(|v| v as jlong);
+    env.set_long_array_region(&stats, 0, &values).unwrap();
+}
+
 #[no_mangle]
 pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_run_1cpu<'local>(_env: JNIEnv<'local>,
                                                                _class: JClass<'local>,
                                                                context_ptr: jlong) {
+    let context = &*(context_ptr as *const Context);
+    let emulator = context.emulator.clone();
+    run_cpu(&emulator);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_save_1state<'local>(env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong) -> JByteArray<'local> {
+    let context = &*(context_ptr as *const Context);
+    // Waits for the frame being run to finish
+    let state = context.emulator.lock().unwrap().cpu.save_state();
+    env.byte_array_from_slice(&state).unwrap()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_load_1state<'local>(mut env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong,
+                                                                state: JByteArray<'local>) {
+    let context = &*(context_ptr as *const Context);
+    let state = env.convert_byte_array(&state).unwrap();
+    let result = context.emulator.lock().unwrap().load_state(&state);
+    if let Err(message) = result {
+        env.throw_new("java/lang/IllegalArgumentException", message).unwrap();
+    }
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_start_1recording<'local>(env: JNIEnv<'local>,
+                                                                     _class: JClass<'local>,
+                                                                     context_ptr: jlong) -> JByteArray<'local> {
+    let context = &mut *(context_ptr as *mut Context);
+    let (state, receiver) = context.emulator.lock().unwrap().start_recording();
+    context.recording = Some(receiver);
+    env.byte_array_from_slice(&state).unwrap()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_stop_1recording<'local>(_env: JNIEnv<'local>,
+                                                                    _class: JClass<'local>,
+                                                                    context_ptr: jlong) -> jlong {
+    let context = &*(context_ptr as *const Context);
+    context.emulator.lock().unwrap().stop_recording().map_or(-1, |cycles| cycles as jlong)
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_take_1recording<'local>(env: JNIEnv<'local>,
+                                                                    _class: JClass<'local>,
+                                                                    context_ptr: jlong,
+                                                                    entries: JLongArray<'local>) -> jint {
+    let context = &mut *(context_ptr as *mut Context);
+    let receiver = match context.recording {
+        Some(ref receiver) => receiver,
+        None => return -1,
+    };
+
+    let capacity = env.get_array_length(&entries).unwrap() as usize / 2;
+    let mut values = Vec::with_capacity(capacity * 2);
+    while values.len() < capacity * 2 {
+        match receiver.try_recv() {
+            Ok(entry) => values.extend(entry.iter().map(|v| *v as jlong)),
+            Err(TryRecvError::Empty) => break,
+            Err(TryRecvError::Disconnected) => {
+                if values.is_empty() {
+                    // Everything has been taken from a recording that has ended
+                    context.recording = None;
+                    return -1;
+                }
+                break;
+            },
+        }
+    }
+
+    env.set_long_array_region(&entries, 0, &values).unwrap();
+    (values.len() / 2) as jint
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1save_1ram_1size<'local>(_env: JNIEnv<'local>,
+                                                                     _class: JClass<'local>,
+                                                                     context_ptr: jlong) -> jint {
+    let context = &*(context_ptr as *const Context);
+    let mut emulator = context.emulator.lock().unwrap();
+    emulator.cpu.cart_ram().map_or(0, |ram| ram.len() as jint)
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_attach_1save_1ram<'local>(env: JNIEnv<'local>,
+                                                                  _class: JClass<'local>,
+                                                                  context_ptr: jlong,
+                                                                  buffer: JByteBuffer<'local>,
+                                                                  existing: jboolean) -> jboolean {
     let context = &mut *(context_ptr as *mut Context);
-    let context = Box::from_raw(context.cpu_context_ptr as *mut CpuContext);
-    run_cpu(context.cpu, context.gpu_sender, context.event_receiver);
+    let address = env.get_direct_buffer_address(&buffer).unwrap();
+    let capacity = env.get_direct_buffer_capacity(&buffer).unwrap();
+    // Keeps the mapping alive for as long as the emulator uses it, even after java has let go of it
+    let owner = env.new_global_ref(&buffer).unwrap();
+
+    let mut emulator = context.emulator.lock().unwrap();
+    let dirty = match emulator.cpu.cart_ram() {
+        Some(ram) if capacity >= ram.len() => {
+            ram.attach(address, Box::new(owner), existing != 0);
+            ram.dirty_pages()
+        },
+        _ => return 0,
+    };
+    drop(emulator);
+
+    context.save_ram_dirty = Some(dirty);
+    1
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_take_1save_1ram_1dirty_1pages<'local>(_env: JNIEnv<'local>,
+                                                                              _class: JClass<'local>,
+                                                                              context_ptr: jlong) -> jlong {
+    let context = &*(context_ptr as *const Context);
+    context.save_ram_dirty.as_ref().map_or(0, |dirty| dirty.swap(0, Ordering::AcqRel) as jlong)
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1speed<'local>(_env: JNIEnv<'local>,
+                                                               _class: JClass<'local>,
+                                                               context_ptr: jlong,
+                                                               speed: jdouble) {
+    let context = &*(context_ptr as *const Context);
+    context.speed.set(speed);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1speed<'local>(_env: JNIEnv<'local>,
+                                                               _class: JClass<'local>,
+                                                               context_ptr: jlong) -> jdouble {
+    let context = &*(context_ptr as *const Context);
+    context.speed.get()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1audio_1sync<'local>(_env: JNIEnv<'local>,
+                                                                    _class: JClass<'local>,
+                                                                    context_ptr: jlong,
+                                                                    audio_sync: jboolean) {
+    let context = &*(context_ptr as *const Context);
+    context.emulator.lock().unwrap().audio_sync = audio_sync != 0;
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1serial_1output<'local>(_env: JNIEnv<'local>,
+                                                                     _class: JClass<'local>,
+                                                                     context_ptr: jlong,
+                                                                     output: jboolean) {
+    let context = &*(context_ptr as *const Context);
+    context.emulator.lock().unwrap().cpu.set_stdout(output != 0);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_connect_1link<'local>(_env: JNIEnv<'local>,
+                                                                 _class: JClass<'local>,
+                                                                 context_ptr: jlong,
+                                                                 other_ptr: jlong) {
+    let context = &*(context_ptr as *const Context);
+    let other = &*(other_ptr as *const Context);
+    let (port, other_port) = crate::link::cable();
+    // Locked one at a time, the other end may be waiting on a transfer of its own
+    context.emulator.lock().unwrap().cpu.set_link(Some(port));
+    other.emulator.lock().unwrap().cpu.set_link(Some(other_port));
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_disconnect_1link<'local>(_env: JNIEnv<'local>,
+                                                                    _class: JClass<'local>,
+                                                                    context_ptr: jlong) {
+    let context = &*(context_ptr as *const Context);
+    context.emulator.lock().unwrap().cpu.set_link(None);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1rewind<'local>(_env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong,
+                                                                budget: jlong,
+                                                                interval: jint) {
+    let context = &*(context_ptr as *const Context);
+    let mut emulator = context.emulator.lock().unwrap();
+    emulator.rewind = if budget > 0 && interval > 0 {
+        Some(Rewind::new(budget as usize, interval as u32))
+    } else {
+        None
+    };
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1rewind_1stats<'local>(env: JNIEnv<'local>,
+                                                                   _class: JClass<'local>,
+                                                                   context_ptr: jlong,
+                                                                   stats: JLongArray<'local>) {
+    let context = &*(context_ptr as *const Context);
+    let values = match context.emulator.lock().unwrap().rewind {
+        Some(ref rewind) => {
+            let stats = rewind.stats();
+            [
+                stats.snapshots as jlong,
+                stats.bytes_used as jlong,
+                stats.budget as jlong,
+                stats.interval as jlong,
+                stats.captures as jlong,
+                stats.capture_nanos as jlong,
+            ]
+        },
+        None => [0; 6],
+    };
+    env.set_long_array_region(&stats, 0, &values).unwrap();
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_run_1frames<'local>(_env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong,
+                                                                frames: jint) -> jlong {
+    let context = &*(context_ptr as *const Context);
+    let mut emulator = context.emulator.lock().unwrap();
+    match emulator.run_frames(frames.max(0) as u32) {
+        Some(cycles) => cycles as jlong,
+        None => -1,
+    }
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_step_1frames<'local>(env: JNIEnv<'local>,
+                                                                 _class: JClass<'local>,
+                                                                 context_ptr: jlong,
+                                                                 frames: jint,
+                                                                 result: JLongArray<'local>) -> jboolean {
+    let context = &*(context_ptr as *const Context);
+    let mut emulator = context.emulator.lock().unwrap();
+    let cycles = emulator.step_frames(frames.max(0) as u32);
+    step_result(env, &emulator, cycles, result)
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_step_1cycles<'local>(env: JNIEnv<'local>,
+                                                                 _class: JClass<'local>,
+                                                                 context_ptr: jlong,
+                                                                 cycles: jlong,
+                                                                 result: JLongArray<'local>) -> jboolean {
+    let context = &*(context_ptr as *const Context);
+    let mut emulator = context.emulator.lock().unwrap();
+    let cycles = emulator.step_cycles(cycles.max(0) as u64);
+    step_result(env, &emulator, cycles, result)
+}
+
+/// Fills in the cycles executed and the frame hash, false once the emulator has been stopped
+fn step_result(env: JNIEnv, emulator: &Emulator, cycles: Option<u64>, result: JLongArray) -> jboolean {
+    match cycles {
+        Some(cycles) => {
+            env.set_long_array_region(&result, 0, &[cycles as jlong, emulator.frame_hash() as jlong]).unwrap();
+            1
+        },
+        None => 0,
+    }
 }
 
 #[no_mangle]
@@ -89,10 +377,128 @@ pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1gpu_1data<'local
                                                                _class: JClass<'local>,
                                                                context_ptr: jlong) -> JByteArray<'local> {
     let context = &mut *(context_ptr as *mut Context);
-    return match context.gpu_receiver.recv() {
-        Ok(data) => env.byte_array_from_slice(&data).unwrap(),
-        Err(..) => env.new_byte_array(0).unwrap(), // No new screen data
+    // Never blocks, when nothing new has been produced the previous frame is returned again
+    context.frames.latch();
+    env.byte_array_from_slice(&context.frames.front_rgb()).unwrap()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_poll_1gpu_1data<'local>(env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong) -> JByteArray<'local> {
+    let context = &mut *(context_ptr as *mut Context);
+    if !context.frames.latch() {
+        // No new screen data
+        return JObject::null().into();
     }
+    env.byte_array_from_slice(&context.frames.front_rgb()).unwrap()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1frame_1buffer<'local>(env: JNIEnv<'local>,
+                                                                   _class: JClass<'local>,
+                                                                   context_ptr: jlong) -> JByteBuffer<'local> {
+    let context = &*(context_ptr as *const Context);
+    let (memory, len) = context.frames.memory();
+    env.new_direct_byte_buffer(memory, len).unwrap()
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_poll_1frame<'local>(_env: JNIEnv<'local>,
+                                                            _class: JClass<'local>,
+                                                            context_ptr: jlong) -> jint {
+    let context = &mut *(context_ptr as *mut Context);
+    let metrics = context.metrics.clone();
+    metrics.time(Call::PollFrame, || {
+        if !context.frames.latch() {
+            return -1;
+        }
+        context.frames.front_offset() as jint
+    })
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1frame_1format<'local>(_env: JNIEnv<'local>,
+                                                                   _class: JClass<'local>,
+                                                                   context_ptr: jlong) -> jint {
+    let context = &*(context_ptr as *const Context);
+    context.frames.front_format() as jint
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1indexed_1frames<'local>(_env: JNIEnv<'local>,
+                                                                     _class: JClass<'local>,
+                                                                     context_ptr: jlong,
+                                                                     indexed: jboolean) {
+    let context = &*(context_ptr as *const Context);
+    context.frames.set_indexed(indexed != 0);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1frame_1dirty_1rows<'local>(env: JNIEnv<'local>,
+                                                                       _class: JClass<'local>,
+                                                                       context_ptr: jlong,
+                                                                       rows: JLongArray<'local>) {
+    let context = &*(context_ptr as *const Context);
+    let dirty_lines = context.frames.front_dirty_lines().map(|v| v as jlong);
+    env.set_long_array_region(&rows, 0, &dirty_lines).unwrap();
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1frame_1input_1sequence<'local>(_env: JNIEnv<'local>,
+                                                                            _class: JClass<'local>,
+                                                                            context_ptr: jlong) -> jlong {
+    let context = &*(context_ptr as *const Context);
+    context.frames.front_input_sequence() as jlong
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1frame_1stats<'local>(env: JNIEnv<'local>,
+                                                                  _class: JClass<'local>,
+                                                                  context_ptr: jlong,
+                                                                  stats: JLongArray<'local>) {
+    let context = &*(context_ptr as *const Context);
+    let values = [
+        context.frames.front_sequence() as jlong,
+        context.frames.dropped() as jlong,
+        context.frames.duplicated() as jlong,
+    ];
+    env.set_long_array_region(&stats, 0, &values).unwrap();
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_set_1metrics_1enabled<'local>(_env: JNIEnv<'local>,
+                                                                      _class: JClass<'local>,
+                                                                      context_ptr: jlong,
+                                                                      enabled: jboolean) {
+    let context = &*(context_ptr as *const Context);
+    context.metrics.set_enabled(enabled != 0);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_get_1metrics<'local>(env: JNIEnv<'local>,
+                                                             _class: JClass<'local>,
+                                                             context_ptr: jlong,
+                                                             metrics: JLongArray<'local>) {
+    let context = &*(context_ptr as *const Context);
+    let poll_frame = context.metrics.call(Call::PollFrame);
+    let send_event = context.metrics.call(Call::SendEvent);
+    let audio_queued = context.metrics.audio_queued_nanos.load(Ordering::Relaxed);
+    let values = [
+        context.metrics.cycles.load(Ordering::Relaxed) as jlong,
+        context.metrics.frames_produced.load(Ordering::Relaxed) as jlong,
+        context.frames.front_sequence() as jlong,
+        context.frames.dropped() as jlong,
+        context.frames.duplicated() as jlong,
+        if audio_queued == u64::MAX { -1 } else { audio_queued as jlong },
+        poll_frame[0] as jlong,
+        poll_frame[1] as jlong,
+        poll_frame[2] as jlong,
+        send_event[0] as jlong,
+        send_event[1] as jlong,
+        send_event[2] as jlong,
+    ];
+    env.set_long_array_region(&metrics, 0, &values).unwrap();
 }
 
 #[no_mangle]
@@ -100,47 +506,123 @@ pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_send_1event<'local>(_
                                                                                _class: JClass<'local>,
                                                                                context_ptr: jlong,
                                                                                event_code: jint) {
+    send(context_ptr, event_code, 0);
+}
+
+#[no_mangle]
+pub unsafe extern "system" fn Java_retromachines_rboy_RBoy_send_1input<'local>(_env: JNIEnv<'local>,
+                                                                _class: JClass<'local>,
+                                                                context_ptr: jlong,
+                                                                event_code: jint,
+                                                                input_sequence: jlong) {
+    send(context_ptr, event_code, input_sequence as u64);
+}
+
+/// `input_sequence` is reported back with the first frame completed after a key event has been applied, 0 for none
+unsafe fn send(context_ptr: jlong, event_code: jint, input_sequence: u64) {
     let context = &mut *(context_ptr as *mut Context);
     let event = match event_code {
-        KEY_A_DOWN => GBEvent::KeyDown(crate::KeypadKey::A),
-        KEY_B_DOWN => GBEvent::KeyDown(crate::KeypadKey::B),
-        KEY_UP_DOWN => GBEvent::KeyDown(crate::KeypadKey::Up),
-        KEY_DOWN_DOWN => GBEvent::KeyDown(crate::KeypadKey::Down),
-        KEY_LEFT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Left),
-        KEY_RIGHT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Right),
-        KEY_SELECT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Select),
-        KEY_START_DOWN => GBEvent::KeyDown(crate::KeypadKey::Start),
-        KEY_A_UP => GBEvent::KeyUp(crate::KeypadKey::A),
-        KEY_B_UP => GBEvent::KeyUp(crate::KeypadKey::B),
-        KEY_UP_UP => GBEvent::KeyUp(crate::KeypadKey::Up),
-        KEY_DOWN_UP => GBEvent::KeyUp(crate::KeypadKey::Down),
-        KEY_LEFT_UP => GBEvent::KeyUp(crate::KeypadKey::Left),
-        KEY_RIGHT_UP => GBEvent::KeyUp(crate::KeypadKey::Right),
-        KEY_SELECT_UP => GBEvent::KeyUp(crate::KeypadKey::Select),
-        KEY_START_UP => GBEvent::KeyUp(crate::KeypadKey::Start),
+        KEY_A_DOWN => GBEvent::KeyDown(crate::KeypadKey::A, input_sequence),
+        KEY_B_DOWN => GBEvent::KeyDown(crate::KeypadKey::B, input_sequence),
+        KEY_UP_DOWN => GBEvent::KeyDown(crate::KeypadKey::Up, input_sequence),
+        KEY_DOWN_DOWN => GBEvent::KeyDown(crate::KeypadKey::Down, input_sequence),
+        KEY_LEFT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Left, input_sequence),
+        KEY_RIGHT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Right, input_sequence),
+        KEY_SELECT_DOWN => GBEvent::KeyDown(crate::KeypadKey::Select, input_sequence),
+        KEY_START_DOWN => GBEvent::KeyDown(crate::KeypadKey::Start, input_sequence),
+        KEY_A_UP => GBEvent::KeyUp(crate::KeypadKey::A, input_sequence),
+        KEY_B_UP => GBEvent::KeyUp(crate::KeypadKey::B, input_sequence),
+        KEY_UP_UP => GBEvent::KeyUp(crate::KeypadKey::Up, input_sequence),
+        KEY_DOWN_UP => GBEvent::KeyUp(crate::KeypadKey::Down, input_sequence),
+        KEY_LEFT_UP => GBEvent::KeyUp(crate::KeypadKey::Left, input_sequence),
+        KEY_RIGHT_UP => GBEvent::KeyUp(crate::KeypadKey::Right, input_sequence),
+        KEY_SELECT_UP => GBEvent::KeyUp(crate::KeypadKey::Select, input_sequence),
+        KEY_START_UP => GBEvent::KeyUp(crate::KeypadKey::Start, input_sequence),
         STOP => { GBEvent::Stop },
         SPEED_UP => GBEvent::SpeedUp,
         SPEED_DOWN => GBEvent::SpeedDown,
+        REWIND_START => GBEvent::RewindStart,
+        REWIND_STOP => GBEvent::RewindStop,
         _ => panic!("Unknown event"),
     };
 
-    context.event_sender.send(event).expect("Failed to send event");
-
-    if event_code == STOP {
-        // Free the context ptr
-        let ctx = Box::from_raw(context_ptr as *mut Context);
-        drop(ctx);
-    }
+    // The receiver lives in the emulator, which outlives the context
+    context.metrics.time(Call::SendEvent, || context.event_sender.send(event)).expect("Failed to send event");
 }
 
-struct JniAudioPlayer  {
-    java_vm: JavaVM
+struct JniAudioPlayer {
+    java_vm: JavaVM,
+    // The context's RBoyEvents, so every emulator has its own listeners
+    events: GlobalRef,
+    batch_method: JMethodID,
+    legacy_method: JMethodID,
+    // Interleaved 16-bit stereo frames, shared with java through `java_buffer`
+    samples: Vec<i16>,
+    java_buffer: GlobalRef,
+    batch_frames: usize,
+    frames: usize,
+    attached: bool,
 }
 
-impl crate::AudioPlayer for JniAudioPlayer {
-    fn play(&mut self, left_channel: &[f32], right_channel: &[f32]) {
-        let mut env = self.java_vm.attach_current_thread().unwrap();
-        let class = env.find_class("retromachines/rboy/RBoyEvents").unwrap();
+impl JniAudioPlayer {
+    /// A batch size of 0 passes every chunk to the legacy float[] callback instead
+    fn new(env: &mut JNIEnv, events: &JObject, batch_frames: usize) -> JniAudioPlayer {
+        let class = env.get_object_class(events).unwrap();
+        let batch_method = env.get_method_id(&class, "audio_batch", "(Ljava/nio/ByteBuffer;I)V").unwrap();
+        let legacy_method = env.get_method_id(&class, "audio_callback", "([F[F)V").unwrap();
+        let events = env.new_global_ref(events).unwrap();
+
+        // The vec's heap allocation never moves, so the direct buffer stays valid for as long as the player lives
+        let mut samples = vec![0i16; batch_frames.max(1) * 2];
+        let java_buffer = unsafe { env.new_direct_byte_buffer(samples.as_mut_ptr() as *mut u8, samples.len() * 2) }.unwrap();
+        let java_buffer = env.new_global_ref(java_buffer).unwrap();
+
+        JniAudioPlayer {
+            java_vm: env.get_java_vm().expect("Failed to get java_vm"),
+            events,
+            batch_method,
+            legacy_method,
+            samples,
+            java_buffer,
+            batch_frames,
+            frames: 0,
+            attached: false,
+        }
+    }
+
+    fn attach(&mut self) {
+        if !self.attached {
+            // Attach once, the emulator thread stays attached for its whole lifetime
+            self.java_vm.attach_current_thread_permanently().unwrap();
+            self.attached = true;
+        }
+    }
+
+    fn flush(&mut self) {
+        let frames = self.frames as jint;
+        self.frames = 0;
+        self.attach();
+
+        let mut env = self.java_vm.get_env().unwrap();
+        if pending_exception(&env) {
+            return;
+        }
+
+        // An exception thrown by the callback is left pending, to be rethrown once the frame returns to java
+        let _ = unsafe {
+            env.call_method_unchecked(self.events.as_obj(), self.batch_method, ReturnType::Primitive(Primitive::Void), &[
+                JValue::Object(self.java_buffer.as_obj()).as_jni(),
+                JValue::Int(frames).as_jni()
+            ])
+        };
+    }
+
+    fn play_legacy(&mut self, left_channel: &[f32], right_channel: &[f32]) {
+        self.attach();
+        let mut env = self.java_vm.get_env().unwrap();
+        if pending_exception(&env) {
+            return;
+        }
 
         let j_left_channel = env.new_float_array(left_channel.len() as jsize).unwrap();
         env.set_float_array_region(&j_left_channel, 0, left_channel).unwrap();
@@ -148,10 +630,44 @@ impl crate::AudioPlayer for JniAudioPlayer {
         let j_right_channel = env.new_float_array(right_channel.len() as jsize).unwrap();
         env.set_float_array_region(&j_right_channel, 0, right_channel).unwrap();
 
-        env.call_static_method(class, "audio_callback", "([F[F)V", &[
-            JValue::Object(&j_left_channel),
-            JValue::Object(&j_right_channel)
-        ]).unwrap();
+        // Left pending as in flush, DeleteLocalRef is one of the calls allowed while it is
+        let _ = unsafe {
+            env.call_method_unchecked(self.events.as_obj(), self.legacy_method, ReturnType::Primitive(Primitive::Void), &[
+                JValue::Object(&j_left_channel).as_jni(),
+                JValue::Object(&j_right_channel).as_jni()
+            ])
+        };
+
+        env.delete_local_ref(j_left_channel).unwrap();
+        env.delete_local_ref(j_right_channel).unwrap();
+    }
+}
+
+/// Whether an earlier callback in this frame threw, no other calls into java may be made until it is handled there.
+fn pending_exception(env: &JNIEnv) -> bool {
+    env.exception_check().unwrap_or(true)
+}
+
+fn to_pcm(sample: f32) -> i16 {
+    (sample.max(-1.0).min(1.0) * i16::MAX as f32) as i16
+}
+
+impl crate::AudioPlayer for JniAudioPlayer {
+    fn play(&mut self, left_channel: &[f32], right_channel: &[f32]) {
+        if self.batch_frames == 0 {
+            self.play_legacy(left_channel, right_channel);
+            return;
+        }
+
+        for (l, r) in left_channel.iter().zip(right_channel) {
+            self.samples[self.frames * 2] = to_pcm(*l);
+            self.samples[self.frames * 2 + 1] = to_pcm(*r);
+            self.frames += 1;
+
+            if self.frames == self.batch_frames {
+                self.flush();
+            }
+        }
     }
 
     fn samples_rate(&self) -> u32 {
@@ -181,5 +697,7 @@ const KEY_RIGHT_UP: jint = 14;
 const KEY_SELECT_UP: jint = 15;
 const KEY_START_UP: jint = 16;
 const STOP: jint = 101;
-const SPEED_UP: jint = 202;
-const SPEED_DOWN: jint = 203;
\ No newline at end of file
+const SPEED_UP: jint = 102;
+const SPEED_DOWN: jint = 103;
+const REWIND_START: jint = 104;
+const REWIND_STOP: jint = 105;
\ No newline at end of file
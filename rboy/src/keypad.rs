@@ -1,3 +1,6 @@
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
+
 pub struct Keypad {
     row0: u8,
     row1: u8,
@@ -31,6 +34,19 @@ impl Keypad {
         self.data
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.bytes(&[self.row0, self.row1, self.data, self.interrupt]);
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        let v = r.bytes(4)?;
+        self.row0 = v[0];
+        self.row1 = v[1];
+        self.data = v[2];
+        self.interrupt = v[3];
+        Ok(())
+    }
+
     pub fn wb(&mut self, value: u8) {
         self.data = (self.data & 0xCF) | (value & 0x30);
         self.update();
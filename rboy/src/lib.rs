@@ -11,6 +11,7 @@ mod cpu;
 mod gbmode;
 mod gpu;
 mod keypad;
+mod link;
 mod mbc;
 mod mmu;
 mod printer;
@@ -20,5 +21,10 @@ mod sound;
 mod timer;
 mod jni;
 mod entrypoint;
+mod frame;
+mod metrics;
+mod rewind;
+mod rom_cache;
+mod state;
 
 pub type StrResult<T> = Result<T, &'static str>;
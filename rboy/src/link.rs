@@ -0,0 +1,159 @@
+use std::sync::Arc;
+use std::sync::atomic::{AtomicBool, AtomicU32, AtomicU64, Ordering};
+use crate::entrypoint::CYCLES_PER_FRAME;
+
+/// Cycles (at single speed) taken to shift a byte at the 8192Hz internal clock
+pub const TRANSFER_CYCLES: u32 = 4096;
+// Longest a transfer on the internal clock waits for the other end to catch up, in emulated cycles of this end.
+// As far behind as the scheduler lets a context fall, only reached when the other end is not being run.
+const MAX_WAIT_CYCLES: u64 = 4 * CYCLES_PER_FRAME as u64;
+
+// Set in `offer` and `inbox` when they hold a byte
+const FULL: u32 = 0x100;
+
+/// The state of one end of a cable, written by the emulator at that end and read by the other
+struct End {
+    // Cycles run since the cable was connected
+    clock: AtomicU64,
+    // The byte waiting to be clocked in by the other end, while transferring on the external clock
+    offer: AtomicU32,
+    // A byte clocked in by the other end, not yet taken
+    inbox: AtomicU32,
+    connected: AtomicBool,
+}
+
+impl End {
+    fn new() -> Arc<End> {
+        Arc::new(End {
+            clock: AtomicU64::new(0),
+            offer: AtomicU32::new(0),
+            inbox: AtomicU32::new(0),
+            connected: AtomicBool::new(true),
+        })
+    }
+}
+
+/// One end of an in-process link cable. Bytes are exchanged through atomics without locking or blocking. The two
+/// emulators are only kept in step around transfers on the internal clock, which last until the other end has
+/// caught up in emulated time.
+pub struct LinkPort {
+    ours: Arc<End>,
+    theirs: Arc<End>,
+    clock: u64,
+}
+
+/// Connects two ports with a new cable
+pub fn cable() -> (LinkPort, LinkPort) {
+    let a = End::new();
+    let b = End::new();
+    (LinkPort { ours: a.clone(), theirs: b.clone(), clock: 0 },
+     LinkPort { ours: b, theirs: a, clock: 0 })
+}
+
+impl LinkPort {
+    pub fn tick(&mut self, cycles: u32) {
+        self.clock += cycles as u64;
+        self.ours.clock.store(self.clock, Ordering::Release);
+    }
+
+    /// Offers a byte to be clocked in by the other end, or withdraws the offer
+    pub fn offer(&self, byte: Option<u8>) {
+        self.ours.offer.store(byte.map_or(0, |b| FULL | b as u32), Ordering::Release);
+    }
+
+    /// Takes a byte clocked in by the other end since the last call
+    pub fn receive(&self) -> Option<u8> {
+        let value = self.ours.inbox.swap(0, Ordering::Acquire);
+        if value & FULL != 0 { Some(value as u8) } else { None }
+    }
+
+    /// Cycles run since the cable was connected
+    pub fn clock(&self) -> u64 {
+        self.clock
+    }
+
+    /// Clocks `byte` out to the other end for a transfer on the internal clock started at `started`, returning the byte
+    /// clocked in. Never blocks: returns None while the other end has nothing to offer but may still, because it has not
+    /// yet run as far as this end had when the transfer started. Call again as this end runs, the transfer takes longer
+    /// than usual meanwhile. Reads 0xFF when nothing answers, as a cable with nothing on the other end would.
+    pub fn exchange(&self, byte: u8, started: u64) -> Option<u8> {
+        // Read before the offer, an offer made before the other end got this far is then always seen
+        let their_clock = self.theirs.clock.load(Ordering::Acquire);
+
+        if self.theirs.offer.load(Ordering::Acquire) & FULL != 0 {
+            let offer = self.theirs.offer.swap(0, Ordering::AcqRel);
+            if offer & FULL != 0 {
+                self.theirs.inbox.store(FULL | byte as u32, Ordering::Release);
+                return Some(offer as u8);
+            }
+        }
+
+        if !self.theirs.connected.load(Ordering::Acquire)
+            || their_clock >= started + TRANSFER_CYCLES as u64
+            || self.clock >= started + MAX_WAIT_CYCLES {
+            return Some(0xFF);
+        }
+        None
+    }
+}
+
+impl Drop for LinkPort {
+    fn drop(&mut self) {
+        // Stops the other end from waiting on this one
+        self.ours.connected.store(false, Ordering::Release);
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::*;
+
+    #[test]
+    fn bytes_cross_once() {
+        let (mut master, mut slave) = cable();
+        master.tick(100);
+        slave.tick(100);
+
+        slave.offer(Some(0x42));
+        assert_eq!(master.exchange(0x17, 100), Some(0x42));
+        assert_eq!(slave.receive(), Some(0x17));
+        assert_eq!(slave.receive(), None);
+
+        // The offer was taken by the first transfer, and the other end has run past the end of this one
+        slave.tick(TRANSFER_CYCLES);
+        assert_eq!(master.exchange(0x18, 100), Some(0xFF));
+    }
+
+    #[test]
+    fn waits_for_the_other_end() {
+        let (mut master, mut slave) = cable();
+        master.tick(TRANSFER_CYCLES);
+        let started = master.clock();
+
+        // The other end has not got this far yet, so it may still offer something
+        assert_eq!(master.exchange(0x17, started), None);
+        master.tick(TRANSFER_CYCLES);
+        assert_eq!(master.exchange(0x17, started), None);
+
+        slave.tick(TRANSFER_CYCLES + TRANSFER_CYCLES / 2);
+        slave.offer(Some(0x42));
+        assert_eq!(master.exchange(0x17, started), Some(0x42));
+        assert_eq!(slave.receive(), Some(0x17));
+    }
+
+    #[test]
+    fn gives_up_on_an_idle_end() {
+        let (mut master, _slave) = cable();
+        let started = master.clock();
+        master.tick(MAX_WAIT_CYCLES as u32);
+        assert_eq!(master.exchange(0x17, started), Some(0xFF));
+    }
+
+    #[test]
+    fn unplugged_reads_ff() {
+        let (mut master, slave) = cable();
+        master.tick(100);
+        drop(slave);
+        assert_eq!(master.exchange(0x17, 0), Some(0xFF));
+    }
+}
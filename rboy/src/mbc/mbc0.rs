@@ -1,18 +1,20 @@
 use crate::StrResult;
+use std::sync::Arc;
 use crate::mbc::MBC;
 
 pub struct MBC0 {
-    rom: Vec<u8>,
+    rom: Arc<[u8]>,
 }
 
 impl MBC0 {
-    pub fn new(data: Vec<u8>) -> StrResult<MBC0> {
+    pub fn new(data: Arc<[u8]>) -> StrResult<MBC0> {
         Ok(MBC0 { rom: data })
     }
 }
 
 impl MBC for MBC0 {
     fn readrom(&self, a: u16) -> u8 { self.rom[a as usize] }
+    fn rom_offsets(&self) -> [usize; 2] { [0, 0x4000] }
     fn readram(&self, _a: u16) -> u8 { 0 }
     fn writerom(&mut self, _a: u16, _v: u8) { () }
     fn writeram(&mut self, _a: u16, _v: u8) { () }
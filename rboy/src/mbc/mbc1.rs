@@ -1,12 +1,14 @@
 use std::io::prelude::*;
 use std::{path, fs, io};
+use std::sync::Arc;
 
-use crate::mbc::{MBC, ram_banks, rom_banks};
+use crate::mbc::{CartRam, MBC, ram_banks, rom_banks};
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
 pub struct MBC1 {
-    rom: Vec<u8>,
-    ram: Vec<u8>,
+    rom: Arc<[u8]>,
+    ram: CartRam,
     ram_on: bool,
     banking_mode: u8,
     rombank: usize,
@@ -17,7 +19,7 @@ pub struct MBC1 {
 }
 
 impl MBC1 {
-    pub fn new(data: Vec<u8>, savepath: Option<path::PathBuf>) -> StrResult<MBC1> {
+    pub fn new(data: Arc<[u8]>, savepath: Option<path::PathBuf>) -> StrResult<MBC1> {
         let (svpath, rambanks) = match data[0x147] {
             0x02 => (None, ram_banks(data[0x149])),
             0x03 => (savepath.map(|file| file.with_extension("gbsave")), ram_banks(data[0x149])),
@@ -28,7 +30,7 @@ impl MBC1 {
 
         let mut res = MBC1 {
             rom: data,
-            ram: ::std::iter::repeat(0u8).take(ramsize).collect(),
+            ram: CartRam::new(ramsize),
             ram_on: false,
             banking_mode: 0,
             rombank: 1,
@@ -49,7 +51,7 @@ impl MBC1 {
                 {
                     Err(ref e) if e.kind() == io::ErrorKind::NotFound => Ok(()),
                     Err(_) => Err("Could not open save file"),
-                    Ok(..) => { self.ram = data; Ok(()) },
+                    Ok(..) => { self.ram = CartRam::from_vec(data); Ok(()) },
                 }
             },
         }
@@ -84,6 +86,10 @@ impl MBC for MBC1 {
         let idx = bank * 0x4000 | ((a as usize) & 0x3FFF);
         *self.rom.get(idx).unwrap_or(&0xFF)
     }
+    fn rom_offsets(&self) -> [usize; 2] {
+        let bank0 = if self.banking_mode == 0 { 0 } else { self.rombank & 0xE0 };
+        [bank0 * 0x4000, self.rombank * 0x4000]
+    }
     fn readram(&self, a: u16) -> u8 {
         if !self.ram_on { return 0xFF }
         let rambank = if self.banking_mode == 1 { self.rambank } else { 0 };
@@ -114,12 +120,39 @@ impl MBC for MBC1 {
         }
     }
 
+    fn cart_ram(&mut self) -> Option<&mut CartRam> {
+        if self.ram.is_empty() { None } else { Some(&mut self.ram) }
+    }
+
+    fn save_state(&self, w: &mut StateWriter) {
+        w.sized_bytes(&self.ram);
+        w.bool(self.ram_on);
+        w.u8(self.banking_mode);
+        w.u32(self.rombank as u32);
+        w.u32(self.rambank as u32);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        r.sized_bytes_into(self.ram.all_mut())?;
+        self.ram_on = r.bool()?;
+        self.banking_mode = r.u8()?;
+        self.rombank = r.u32()? as usize;
+        self.rambank = r.u32()? as usize;
+        if self.rombank >= self.rombanks {
+            return Err("Save state selects a ROM bank the cartridge does not have");
+        }
+        if self.rambank >= self.rambanks.max(1) {
+            return Err("Save state selects a RAM bank the cartridge does not have");
+        }
+        Ok(())
+    }
+
     fn writeram(&mut self, a: u16, v: u8) {
         if !self.ram_on { return }
         let rambank = if self.banking_mode == 1 { self.rambank } else { 0 };
         let address = (rambank * 0x2000) | ((a & 0x1FFF) as usize);
         if address < self.ram.len() {
-            self.ram[address] = v;
+            self.ram.write(address, v);
         }
     }
 }
@@ -1,12 +1,14 @@
 use std::io::prelude::*;
 use std::{path, fs, io};
+use std::sync::Arc;
 
-use crate::mbc::{MBC, rom_banks};
+use crate::mbc::{CartRam, MBC, rom_banks};
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
 pub struct MBC2 {
-    rom: Vec<u8>,
-    ram: Vec<u8>,
+    rom: Arc<[u8]>,
+    ram: CartRam,
     ram_on: bool,
     rombank: usize,
     savepath: Option<path::PathBuf>,
@@ -14,7 +16,7 @@ pub struct MBC2 {
 }
 
 impl MBC2 {
-    pub fn new(data: Vec<u8>, savepath: Option<path::PathBuf>) -> StrResult<MBC2> {
+    pub fn new(data: Arc<[u8]>, savepath: Option<path::PathBuf>) -> StrResult<MBC2> {
         let svpath = match data[0x147] {
             0x05 => None,
             0x06 => savepath.map(|file| file.with_extension("gbsave")),
@@ -24,7 +26,7 @@ impl MBC2 {
 
         let mut res = MBC2 {
             rom: data,
-            ram: vec![0; 512],
+            ram: CartRam::new(512),
             ram_on: false,
             rombank: 1,
             savepath: svpath,
@@ -42,7 +44,7 @@ impl MBC2 {
                 {
                     Err(ref e) if e.kind() == io::ErrorKind::NotFound => Ok(()),
                     Err(_) => Err("Could not open save file"),
-                    Ok(..) => { self.ram = data; Ok(()) },
+                    Ok(..) => { self.ram = CartRam::from_vec(data); Ok(()) },
                 }
             },
         }
@@ -72,6 +74,7 @@ impl MBC for MBC2 {
         let idx = bank * 0x4000 | ((a as usize) & 0x3FFF);
         *self.rom.get(idx).unwrap_or(&0xFF)
     }
+    fn rom_offsets(&self) -> [usize; 2] { [0, self.rombank * 0x4000] }
     fn readram(&self, a: u16) -> u8 {
         if !self.ram_on { return 0xFF }
         self.ram[(a as usize) & 0x1FF] | 0xF0
@@ -96,6 +99,26 @@ impl MBC for MBC2 {
 
     fn writeram(&mut self, a: u16, v: u8) {
         if !self.ram_on { return }
-        self.ram[(a as usize) & 0x1FF] = v | 0xF0;
+        self.ram.write((a as usize) & 0x1FF, v | 0xF0);
+    }
+
+    fn cart_ram(&mut self) -> Option<&mut CartRam> {
+        if self.ram.is_empty() { None } else { Some(&mut self.ram) }
+    }
+
+    fn save_state(&self, w: &mut StateWriter) {
+        w.sized_bytes(&self.ram);
+        w.bool(self.ram_on);
+        w.u32(self.rombank as u32);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        r.sized_bytes_into(self.ram.all_mut())?;
+        self.ram_on = r.bool()?;
+        self.rombank = r.u32()? as usize;
+        if self.rombank >= self.rombanks {
+            return Err("Save state selects a ROM bank the cartridge does not have");
+        }
+        Ok(())
     }
 }
@@ -1,13 +1,18 @@
-use crate::mbc::{MBC, ram_banks};
+use crate::mbc::{CartRam, MBC, ram_banks};
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
 use std::path;
+use std::sync::Arc;
 use std::io::prelude::*;
 use std::{io, fs, time};
 
+// Cycles in a second of the RTC
+const RTC_SECOND: u32 = 4194304;
+
 pub struct MBC3 {
-    rom: Vec<u8>,
-    ram: Vec<u8>,
+    rom: Arc<[u8]>,
+    ram: CartRam,
     rombank: usize,
     rambank: usize,
     rambanks: usize,
@@ -16,11 +21,15 @@ pub struct MBC3 {
     savepath: Option<path::PathBuf>,
     rtc_ram: [u8; 5],
     rtc_ram_latch: [u8; 5],
+    // Cycles run since the RTC last counted a second
+    rtc_cycles: u32,
+    // When the RTC read zero, in wall-clock seconds since the unix epoch. Only used to account for the time passed
+    // while the save file was closed, the RTC counts emulated time while running so replays and save states follow.
     rtc_zero: Option<u64>,
 }
 
 impl MBC3 {
-    pub fn new(data: Vec<u8>, savepath: Option<path::PathBuf>) -> StrResult<MBC3> {
+    pub fn new(data: Arc<[u8]>, savepath: Option<path::PathBuf>) -> StrResult<MBC3> {
         let subtype = data[0x147];
         let svpath = match subtype {
             0x0F | 0x10 | 0x13 => savepath.map(|file| file.with_extension("gbsave")),
@@ -38,7 +47,7 @@ impl MBC3 {
 
         let mut res = MBC3 {
             rom: data,
-            ram: ::std::iter::repeat(0u8).take(ramsize).collect(),
+            ram: CartRam::new(ramsize),
             rombank: 1,
             rambank: 0,
             rambanks: rambanks,
@@ -47,6 +56,7 @@ impl MBC3 {
             savepath: svpath,
             rtc_ram: [0u8; 5],
             rtc_ram_latch: [0u8; 5],
+            rtc_cycles: 0,
             rtc_zero: rtc,
         };
         res.loadram().map(|_| res)
@@ -64,21 +74,43 @@ impl MBC3 {
                 let mut rtc_bytes = [0; 8];
                 file.read_exact(&mut rtc_bytes).map_err(|_| "Could not read RTC")?;
                 let rtc = u64::from_be_bytes(rtc_bytes);
-                if self.rtc_zero.is_some() { self.rtc_zero = Some(rtc); }
+                if self.rtc_zero.is_some() {
+                    self.rtc_zero = Some(rtc);
+                    self.calc_rtc_reg();
+                }
                 let mut data = vec![];
                 match file.read_to_end(&mut data) {
                     Err(..) => Err("Could not read ROM"),
-                    Ok(..) => { self.ram = data; Ok(()) },
+                    Ok(..) => { self.ram = CartRam::from_vec(data); Ok(()) },
                 }
             },
         }
     }
 
     fn latch_rtc_reg(&mut self) {
-        self.calc_rtc_reg();
         self.rtc_ram_latch.clone_from_slice(&self.rtc_ram);
     }
 
+    // Counts a second, carrying as the hardware does. Out of range values count up to the width of their register
+    // and wrap without carrying.
+    fn tick_rtc(&mut self) {
+        self.rtc_ram[0] = match self.rtc_ram[0] { 59 => 0, s => (s + 1) & 0x3F };
+        if self.rtc_ram[0] != 0 { return }
+        self.rtc_ram[1] = match self.rtc_ram[1] { 59 => 0, m => (m + 1) & 0x3F };
+        if self.rtc_ram[1] != 0 { return }
+        self.rtc_ram[2] = match self.rtc_ram[2] { 23 => 0, h => (h + 1) & 0x1F };
+        if self.rtc_ram[2] != 0 { return }
+        self.rtc_ram[3] = self.rtc_ram[3].wrapping_add(1);
+        if self.rtc_ram[3] != 0 { return }
+        if self.rtc_ram[4] & 0x01 == 0 {
+            self.rtc_ram[4] |= 0x01;
+        } else {
+            // Day counter overflow
+            self.rtc_ram[4] = (self.rtc_ram[4] & 0xFE) | 0x80;
+        }
+    }
+
+    // Sets the registers from the wall-clock time since `rtc_zero`
     fn calc_rtc_reg(&mut self) {
         // Do not modify regs when halted
         if self.rtc_ram[4] & 0x40 == 0x40 { return }
@@ -105,7 +137,6 @@ impl MBC3 {
         self.rtc_ram[4] = (self.rtc_ram[4] & 0xFE) | (((days >> 8) & 0x01) as u8);
         if days >= 512 {
             self.rtc_ram[4] |= 0x80;
-            self.calc_rtc_zero();
         }
     }
 
@@ -122,10 +153,6 @@ impl MBC3 {
         difftime -= days * 3600 * 24;
         Some(difftime)
     }
-
-    fn calc_rtc_zero(&mut self) {
-        self.rtc_zero = self.compute_difftime();
-    }
 }
 
 impl Drop for MBC3 {
@@ -137,7 +164,7 @@ impl Drop for MBC3 {
                     Ok(f) => f,
                     Err(..) => return,
                 };
-                let rtc = match self.rtc_zero {
+                let rtc = match self.compute_difftime() {
                     Some(t) => t,
                     None => 0,
                 };
@@ -155,6 +182,16 @@ impl MBC for MBC3 {
         else { self.rombank * 0x4000 | ((a as usize) & 0x3FFF) };
         *self.rom.get(idx).unwrap_or(&0xFF)
     }
+    fn rom_offsets(&self) -> [usize; 2] { [0, self.rombank * 0x4000] }
+    fn do_cycle(&mut self, ticks: u32) {
+        // Stopped when halted
+        if self.rtc_zero.is_none() || self.rtc_ram[4] & 0x40 == 0x40 { return }
+        self.rtc_cycles += ticks;
+        while self.rtc_cycles >= RTC_SECOND {
+            self.rtc_cycles -= RTC_SECOND;
+            self.tick_rtc();
+        }
+    }
     fn readram(&self, a: u16) -> u8 {
         if !self.ram_on { return 0xFF }
         if !self.selectrtc && self.rambank < self.rambanks {
@@ -182,9 +219,8 @@ impl MBC for MBC3 {
     fn writeram(&mut self, a: u16, v: u8) {
         if !self.ram_on { return }
         if !self.selectrtc && self.rambank < self.rambanks {
-            self.ram[self.rambank * 0x2000 | ((a as usize) & 0x1FFF)] = v;
+            self.ram.write(self.rambank * 0x2000 | ((a as usize) & 0x1FFF), v);
         } else if self.selectrtc && self.rambank < 5 {
-            self.calc_rtc_reg();
             let vmask = match self.rambank {
                 0 | 1 => 0x3F,
                 2 => 0x1F,
@@ -192,7 +228,97 @@ impl MBC for MBC3 {
                 _ => 0xFF,
             };
             self.rtc_ram[self.rambank] = v & vmask;
-            self.calc_rtc_zero();
+            // Writing the seconds restarts the second being counted
+            if self.rambank == 0 { self.rtc_cycles = 0; }
         }
     }
+
+    fn cart_ram(&mut self) -> Option<&mut CartRam> {
+        if self.ram.is_empty() { None } else { Some(&mut self.ram) }
+    }
+
+    fn save_state(&self, w: &mut StateWriter) {
+        w.sized_bytes(&self.ram);
+        w.u32(self.rombank as u32);
+        w.u32(self.rambank as u32);
+        w.bool(self.selectrtc);
+        w.bool(self.ram_on);
+        w.bytes(&self.rtc_ram);
+        w.bytes(&self.rtc_ram_latch);
+        w.u32(self.rtc_cycles);
+        // The clock runs on from the saved registers, only whether the cartridge has one is stored
+        w.bool(self.rtc_zero.is_some());
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        r.sized_bytes_into(self.ram.all_mut())?;
+        self.rombank = r.u32()? as usize;
+        self.rambank = r.u32()? as usize;
+        // Bounded by the bank registers rather than the cartridge, reads past either end return 0xFF
+        if self.rombank == 0 || self.rombank > 0x7F || self.rambank > 0x7 {
+            return Err("Save state selects a bank the cartridge cannot select");
+        }
+        self.selectrtc = r.bool()?;
+        self.ram_on = r.bool()?;
+        r.bytes_into(&mut self.rtc_ram)?;
+        r.bytes_into(&mut self.rtc_ram_latch)?;
+        self.rtc_cycles = r.u32()?.min(RTC_SECOND - 1);
+        if r.bool()? != self.rtc_zero.is_some() {
+            return Err("Save state does not match the cartridge");
+        }
+        Ok(())
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::{MBC3, RTC_SECOND};
+    use crate::mbc::MBC;
+
+    fn rtc_cart() -> MBC3 {
+        let mut rom = vec![0; 0x8000];
+        rom[0x147] = 0x0F;
+        let mut mbc = MBC3::new(rom.into(), None).unwrap();
+        mbc.writerom(0x0000, 0x0A);
+        mbc
+    }
+
+    fn write_rtc(mbc: &mut MBC3, reg: u8, v: u8) {
+        mbc.writerom(0x4000, 0x08 | reg);
+        mbc.writeram(0xA000, v);
+    }
+
+    fn read_rtc(mbc: &mut MBC3) -> [u8; 5] {
+        mbc.writerom(0x6000, 0);
+        mbc.writerom(0x6000, 1);
+        let mut regs = [0; 5];
+        for reg in 0 .. 5 {
+            mbc.writerom(0x4000, 0x08 | reg as u8);
+            regs[reg] = mbc.readram(0xA000);
+        }
+        regs
+    }
+
+    #[test]
+    fn rtc_counts_emulated_time() {
+        let mut mbc = rtc_cart();
+        mbc.do_cycle(RTC_SECOND - 1);
+        assert_eq!(read_rtc(&mut mbc), [0, 0, 0, 0, 0]);
+        mbc.do_cycle(1);
+        assert_eq!(read_rtc(&mut mbc), [1, 0, 0, 0, 0]);
+
+        write_rtc(&mut mbc, 0, 59);
+        write_rtc(&mut mbc, 1, 59);
+        write_rtc(&mut mbc, 2, 23);
+        write_rtc(&mut mbc, 3, 0xFF);
+        write_rtc(&mut mbc, 4, 0x01);
+        mbc.do_cycle(RTC_SECOND);
+        // Day 511 rolls over to 0 with the carry set
+        assert_eq!(read_rtc(&mut mbc), [0, 0, 0, 0, 0x80]);
+
+        // Halted
+        write_rtc(&mut mbc, 4, 0x40);
+        mbc.do_cycle(RTC_SECOND * 2);
+        assert_eq!(read_rtc(&mut mbc)[0], 0);
+    }
 }
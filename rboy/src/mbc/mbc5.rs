@@ -1,13 +1,15 @@
-use crate::mbc::{MBC, ram_banks, rom_banks};
+use crate::mbc::{CartRam, MBC, ram_banks, rom_banks};
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 
 use std::fs::File;
 use std::{io, path};
+use std::sync::Arc;
 use std::io::prelude::*;
 
 pub struct MBC5 {
-    rom: Vec<u8>,
-    ram: Vec<u8>,
+    rom: Arc<[u8]>,
+    ram: CartRam,
     rombank: usize,
     rambank: usize,
     ram_on: bool,
@@ -17,7 +19,7 @@ pub struct MBC5 {
 }
 
 impl MBC5 {
-    pub fn new(data: Vec<u8>, savepath: Option<path::PathBuf>) -> StrResult<MBC5> {
+    pub fn new(data: Arc<[u8]>, savepath: Option<path::PathBuf>) -> StrResult<MBC5> {
         let subtype = data[0x147];
         let svpath = match subtype {
             0x1B | 0x1E => savepath.map(|file| file.with_extension("gbsave")),
@@ -32,7 +34,7 @@ impl MBC5 {
 
         let mut res = MBC5 {
             rom: data,
-            ram: ::std::iter::repeat(0u8).take(ramsize).collect(),
+            ram: CartRam::new(ramsize),
             rombank: 1,
             rambank: 0,
             ram_on: false,
@@ -51,7 +53,7 @@ impl MBC5 {
                 match File::open(&savepath).and_then(|mut f| f.read_to_end(&mut data)) {
                     Err(ref e) if e.kind() == io::ErrorKind::NotFound => Ok(()),
                     Err(_) => Err("Could not read RAM"),
-                    Ok(..) => { self.ram = data; Ok(()) },
+                    Ok(..) => { self.ram = CartRam::from_vec(data); Ok(()) },
                 }
             },
         }
@@ -76,6 +78,7 @@ impl MBC for MBC5 {
         else { self.rombank * 0x4000 | ((a as usize) & 0x3FFF) };
         *self.rom.get(idx).unwrap_or(&0)
     }
+    fn rom_offsets(&self) -> [usize; 2] { [0, self.rombank * 0x4000] }
     fn readram(&self, a: u16) -> u8 {
         if !self.ram_on { return 0 }
         self.ram[self.rambank * 0x2000 | ((a as usize) & 0x1FFF)]
@@ -92,6 +95,31 @@ impl MBC for MBC5 {
     }
     fn writeram(&mut self, a: u16, v: u8) {
         if self.ram_on == false { return }
-        self.ram[self.rambank * 0x2000 | ((a as usize) & 0x1FFF)] = v;
+        self.ram.write(self.rambank * 0x2000 | ((a as usize) & 0x1FFF), v);
+    }
+
+    fn cart_ram(&mut self) -> Option<&mut CartRam> {
+        if self.ram.is_empty() { None } else { Some(&mut self.ram) }
+    }
+
+    fn save_state(&self, w: &mut StateWriter) {
+        w.sized_bytes(&self.ram);
+        w.u32(self.rombank as u32);
+        w.u32(self.rambank as u32);
+        w.bool(self.ram_on);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        r.sized_bytes_into(self.ram.all_mut())?;
+        self.rombank = r.u32()? as usize;
+        self.rambank = r.u32()? as usize;
+        self.ram_on = r.bool()?;
+        if self.rombank >= self.rombanks {
+            return Err("Save state selects a ROM bank the cartridge does not have");
+        }
+        if self.rambank >= self.rambanks.max(1) {
+            return Err("Save state selects a RAM bank the cartridge does not have");
+        }
+        Ok(())
     }
 }
@@ -1,17 +1,35 @@
+use crate::state::{StateReader, StateWriter};
 use crate::StrResult;
 use std::path;
+use std::sync::Arc;
+
+pub use self::ram::CartRam;
 
 mod mbc0;
 mod mbc1;
 mod mbc2;
 mod mbc3;
 mod mbc5;
+mod ram;
 
 pub trait MBC : Send {
     fn readrom(&self, a: u16) -> u8;
     fn readram(&self, a: u16) -> u8;
     fn writerom(&mut self, a: u16, v: u8);
     fn writeram(&mut self, a: u16, v: u8);
+    /// Offsets in the ROM of the banks mapped at 0x0000 and 0x4000, for the MMU's page table.
+    /// Reads within the ROM at these offsets must match `readrom`.
+    fn rom_offsets(&self) -> [usize; 2];
+
+    /// Runs clocks on the cartridge for `ticks` cycles of the 4194304Hz clock
+    fn do_cycle(&mut self, _ticks: u32) {}
+
+    /// Cartridge RAM, if the cartridge has any
+    fn cart_ram(&mut self) -> Option<&mut CartRam> { None }
+
+    /// Banking registers and cartridge RAM, for save states
+    fn save_state(&self, _w: &mut StateWriter) {}
+    fn load_state(&mut self, _r: &mut StateReader) -> StrResult<()> { Ok(()) }
 
     fn romname(&self) -> String {
         const TITLE_START : u16 = 0x134;
@@ -35,7 +53,7 @@ pub trait MBC : Send {
     }
 }
 
-pub fn get_mbc(data: Vec<u8>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Box<dyn MBC+'static>> {
+pub fn get_mbc(data: Arc<[u8]>, savepath: Option<path::PathBuf>, skip_checksum: bool) -> StrResult<Box<dyn MBC+'static>> {
     if data.len() < 0x150 { return Err("Rom size to small"); }
     if !skip_checksum {
         check_checksum(&data)?;
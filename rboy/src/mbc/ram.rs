@@ -0,0 +1,84 @@
+use std::any::Any;
+use std::ops::Deref;
+use std::sync::Arc;
+use std::sync::atomic::{AtomicU64, Ordering};
+
+/// Granularity of the dirty page bitmap, the usual OS page size so flushes line up with pages of a mapped file
+pub const PAGE_SIZE: usize = 4096;
+
+/// Cartridge RAM, owned or backed by memory handed over by the host such as a memory mapped save file.
+/// Every write sets the bit of its page in a bitmap shared with whoever persists the RAM.
+pub struct CartRam {
+    storage: Storage,
+    dirty: Arc<AtomicU64>,
+}
+
+enum Storage {
+    Owned(Vec<u8>),
+    // `owner` keeps the memory alive
+    External { ptr: *mut u8, len: usize, _owner: Box<dyn Any + Send> },
+}
+
+// The external memory is only ever accessed through this, like the vec it replaces
+unsafe impl Send for CartRam {}
+
+impl CartRam {
+    pub fn new(len: usize) -> CartRam {
+        CartRam::from_vec(vec![0; len])
+    }
+
+    pub fn from_vec(data: Vec<u8>) -> CartRam {
+        CartRam { storage: Storage::Owned(data), dirty: Arc::new(AtomicU64::new(0)) }
+    }
+
+    pub fn write(&mut self, index: usize, v: u8) {
+        self.slice_mut()[index] = v;
+
+        // Pages beyond 63 share the last bit, cartridge RAM is at most 32 pages
+        let bit = 1 << (index / PAGE_SIZE).min(63);
+        if self.dirty.load(Ordering::Relaxed) & bit == 0 {
+            self.dirty.fetch_or(bit, Ordering::Release);
+        }
+    }
+
+    /// Mutable access to all of the RAM, which is marked dirty
+    pub fn all_mut(&mut self) -> &mut [u8] {
+        self.dirty.store(u64::MAX, Ordering::Release);
+        self.slice_mut()
+    }
+
+    /// One bit per page written since the bits were last taken, with the first page in the lowest bit
+    pub fn dirty_pages(&self) -> Arc<AtomicU64> {
+        self.dirty.clone()
+    }
+
+    /// Moves the RAM to memory provided by the host, `ptr` must point to at least `self.len()` bytes that stay valid
+    /// for as long as `owner` lives. The memory's current contents become the RAM when `keep_contents` is set,
+    /// otherwise they are overwritten with the current RAM.
+    pub unsafe fn attach(&mut self, ptr: *mut u8, owner: Box<dyn Any + Send>, keep_contents: bool) {
+        let len = self.len();
+        if !keep_contents {
+            std::ptr::copy_nonoverlapping(self.as_ptr(), ptr, len);
+            self.dirty.store(u64::MAX, Ordering::Release);
+        }
+        self.storage = Storage::External { ptr, len, _owner: owner };
+    }
+
+    fn slice_mut(&mut self) -> &mut [u8] {
+        match self.storage {
+            Storage::Owned(ref mut data) => data,
+            Storage::External { ptr, len, .. } => unsafe { std::slice::from_raw_parts_mut(ptr, len) },
+        }
+    }
+}
+
+impl Deref for CartRam {
+    type Target = [u8];
+
+    fn deref(&self) -> &[u8] {
+        match self.storage {
+            Storage::Owned(ref data) => data,
+            Storage::External { ptr, len, .. } => unsafe { std::slice::from_raw_parts(ptr, len) },
+        }
+    }
+}
@@ -0,0 +1,82 @@
+use std::sync::atomic::{AtomicBool, AtomicU64, Ordering};
+use std::time::Instant;
+
+/// Counters describing how an emulator is doing, shared between the emulator and the JNI context.
+/// The counters that fall out of emulation are always kept, they cost an add per slice; the timing of JNI calls
+/// is only measured once enabled.
+pub struct Metrics {
+    enabled: AtomicBool,
+    pub cycles: AtomicU64,
+    pub frames_produced: AtomicU64,
+    /// Audio waiting to be played as of the last slice, u64::MAX when unknown. Only updated when enabled.
+    pub audio_queued_nanos: AtomicU64,
+    calls: [CallMetrics; CALLS],
+}
+
+/// JNI calls that are timed
+#[derive(Clone, Copy)]
+pub enum Call {
+    PollFrame = 0,
+    SendEvent = 1,
+}
+
+const CALLS: usize = 2;
+
+#[derive(Default)]
+struct CallMetrics {
+    count: AtomicU64,
+    nanos: AtomicU64,
+    max_nanos: AtomicU64,
+}
+
+impl Metrics {
+    pub fn new() -> Metrics {
+        Metrics {
+            enabled: AtomicBool::new(false),
+            cycles: AtomicU64::new(0),
+            frames_produced: AtomicU64::new(0),
+            audio_queued_nanos: AtomicU64::new(u64::MAX),
+            calls: Default::default(),
+        }
+    }
+
+    pub fn set_enabled(&self, enabled: bool) {
+        self.enabled.store(enabled, Ordering::Relaxed);
+    }
+
+    pub fn enabled(&self) -> bool {
+        self.enabled.load(Ordering::Relaxed)
+    }
+
+    pub fn add(counter: &AtomicU64, value: u64) {
+        // Each counter only has a single writer
+        counter.store(counter.load(Ordering::Relaxed) + value, Ordering::Relaxed);
+    }
+
+    /// Runs `f`, recording how long it took when enabled
+    pub fn time<T, F: FnOnce() -> T>(&self, call: Call, f: F) -> T {
+        if !self.enabled() {
+            return f();
+        }
+
+        let start = Instant::now();
+        let result = f();
+        let nanos = start.elapsed().as_nanos() as u64;
+
+        let metrics = &self.calls[call as usize];
+        metrics.count.fetch_add(1, Ordering::Relaxed);
+        metrics.nanos.fetch_add(nanos, Ordering::Relaxed);
+        metrics.max_nanos.fetch_max(nanos, Ordering::Relaxed);
+        result
+    }
+
+    /// Count, total nanos and max nanos of the call
+    pub fn call(&self, call: Call) -> [u64; 3] {
+        let metrics = &self.calls[call as usize];
+        [
+            metrics.count.load(Ordering::Relaxed),
+            metrics.nanos.load(Ordering::Relaxed),
+            metrics.max_nanos.load(Ordering::Relaxed),
+        ]
+    }
+}
@@ -6,10 +6,26 @@ use crate::sound::Sound;
 use crate::gbmode::{GbMode, GbSpeed};
 use crate::StrResult;
 use crate::mbc;
+use crate::state::{StateReader, StateWriter};
 use std::path;
+use std::sync::Arc;
 
 const WRAM_SIZE: usize = 0x8000;
 const ZRAM_SIZE: usize = 0x7F;
+const PAGE_SIZE: usize = 0x100;
+
+/// Where a 256 byte page of the address space is backed, so most reads and writes skip the full address dispatch
+#[derive(Clone, Copy)]
+enum Page {
+    /// Offset of the page in the ROM, writes go to the MBC
+    Rom(usize),
+    /// Offset of the page in the GPU's VRAM
+    Vram(usize),
+    /// Offset of the page in `wram`
+    Wram(usize),
+    /// I/O registers, cartridge RAM, OAM, and ROM pages past the end of the ROM
+    Slow,
+}
 
 #[derive(PartialEq)]
 enum DMAType {
@@ -19,6 +35,10 @@ enum DMAType {
 }
 
 pub struct MMU<'a> {
+    pages: [Page; 0x100],
+    // Banks the ROM pages were last mapped to
+    rom_offsets: [usize; 2],
+    rom: Arc<[u8]>,
     wram: [u8; WRAM_SIZE],
     zram: [u8; ZRAM_SIZE],
     hdma: [u8; 4],
@@ -39,6 +59,16 @@ pub struct MMU<'a> {
     gbspeed: GbSpeed,
     speed_switch_req: bool,
     undocumented_cgb_regs: [u8; 3],  // 0xFF72, 0xFF73, 0xFF75
+    // Global checksum from the cartridge header, identifies the game a save state belongs to
+    cartridge_checksum: [u8; 2],
+}
+
+fn gbmode_id(mode: GbMode) -> u8 {
+    match mode {
+        GbMode::Classic => 0,
+        GbMode::ColorAsClassic => 1,
+        GbMode::Color => 2,
+    }
 }
 
 fn fill_random(slice: &mut [u8], start: u32) {
@@ -55,13 +85,17 @@ fn fill_random(slice: &mut [u8], start: u32) {
 }
 
 impl<'a> MMU<'a> {
-    pub fn new(romdata: Vec<u8>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<MMU<'a>> {
-        let mmu_mbc = mbc::get_mbc(romdata, savepath, skip_checksum)?;
+    pub fn new(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<MMU<'a>> {
+        let mmu_mbc = mbc::get_mbc(rom.clone(), savepath, skip_checksum)?;
+        let cartridge_checksum = [mmu_mbc.readrom(0x014E), mmu_mbc.readrom(0x014F)];
         let serial = match serial_callback {
             Some(cb) => Serial::new_with_callback(cb),
             None => Serial::new(),
         };
         let mut res = MMU {
+            pages: [Page::Slow; 0x100],
+            rom_offsets: [usize::MAX; 2],
+            rom,
             wram: [0; WRAM_SIZE],
             zram: [0; ZRAM_SIZE],
             hdma: [0; 4],
@@ -82,8 +116,10 @@ impl<'a> MMU<'a> {
             hdma_status: DMAType::NoDMA,
             hdma_len: 0xFF,
             undocumented_cgb_regs: [0; 3],
+            cartridge_checksum: cartridge_checksum,
         };
         fill_random(&mut res.wram, 42);
+        res.map_all();
         if res.rb(0x0143) == 0xC0 {
             return Err("This game does not work in Classic mode");
         }
@@ -91,13 +127,17 @@ impl<'a> MMU<'a> {
         Ok(res)
     }
 
-    pub fn new_cgb(romdata: Vec<u8>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<MMU<'a>> {
-        let mmu_mbc = mbc::get_mbc(romdata, savepath, skip_checksum)?;
+    pub fn new_cgb(rom: Arc<[u8]>, savepath: Option<path::PathBuf>, serial_callback: Option<SerialCallback<'a>>, skip_checksum: bool) -> StrResult<MMU<'a>> {
+        let mmu_mbc = mbc::get_mbc(rom.clone(), savepath, skip_checksum)?;
+        let cartridge_checksum = [mmu_mbc.readrom(0x014E), mmu_mbc.readrom(0x014F)];
         let serial = match serial_callback {
             Some(cb) => Serial::new_with_callback(cb),
             None => Serial::new(),
         };
         let mut res = MMU {
+            pages: [Page::Slow; 0x100],
+            rom_offsets: [usize::MAX; 2],
+            rom,
             wram: [0; WRAM_SIZE],
             zram: [0; ZRAM_SIZE],
             wrambank: 1,
@@ -118,8 +158,10 @@ impl<'a> MMU<'a> {
             hdma_status: DMAType::NoDMA,
             hdma_len: 0xFF,
             undocumented_cgb_regs: [0; 3],
+            cartridge_checksum: cartridge_checksum,
         };
         fill_random(&mut res.wram, 42);
+        res.map_all();
         res.determine_mode();
         res.set_initial();
         Ok(res)
@@ -190,13 +232,136 @@ impl<'a> MMU<'a> {
 
         self.sound.as_mut().map_or((), |s| s.do_cycle(gputicks));
 
+        self.serial.do_cycle(gputicks);
         self.intf |= self.serial.interrupt;
         self.serial.interrupt = 0;
 
+        self.mbc.do_cycle(gputicks);
+
         return gputicks;
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.u8(gbmode_id(self.gbmode));
+        w.bytes(&self.cartridge_checksum);
+        w.bytes(&self.wram);
+        w.bytes(&self.zram);
+        w.bytes(&self.hdma);
+        w.u8(self.inte);
+        w.u8(self.intf);
+        w.u8(match self.hdma_status { DMAType::NoDMA => 0, DMAType::GDMA => 1, DMAType::HDMA => 2 });
+        w.u16(self.hdma_src);
+        w.u16(self.hdma_dst);
+        w.u8(self.hdma_len);
+        w.u8(self.wrambank as u8);
+        w.bool(self.gbspeed == GbSpeed::Double);
+        w.bool(self.speed_switch_req);
+        w.bytes(&self.undocumented_cgb_regs);
+        self.serial.save_state(w);
+        self.timer.save_state(w);
+        self.keypad.save_state(w);
+        self.gpu.save_state(w);
+        w.section(|w| self.mbc.save_state(w));
+        w.section(|w| if let Some(ref sound) = self.sound { sound.save_state(w) });
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        if r.u8()? != gbmode_id(self.gbmode) {
+            return Err("Save state was made in a different mode");
+        }
+        if r.bytes(2)? != &self.cartridge_checksum[..] {
+            return Err("Save state was made with a different cartridge");
+        }
+        r.bytes_into(&mut self.wram)?;
+        r.bytes_into(&mut self.zram)?;
+        r.bytes_into(&mut self.hdma)?;
+        self.inte = r.u8()?;
+        self.intf = r.u8()?;
+        self.hdma_status = match r.u8()? { 1 => DMAType::GDMA, 2 => DMAType::HDMA, _ => DMAType::NoDMA };
+        self.hdma_src = r.u16()?;
+        self.hdma_dst = r.u16()?;
+        self.hdma_len = r.u8()?;
+        // Bank 0 selects bank 1, as it does when written to 0xFF70
+        self.wrambank = match r.u8()? {
+            0 => 1,
+            n @ 1 ..= 7 => n as usize,
+            _ => return Err("Save state selects a WRAM bank that does not exist"),
+        };
+        self.gbspeed = if r.bool()? { GbSpeed::Double } else { GbSpeed::Single };
+        self.speed_switch_req = r.bool()?;
+        r.bytes_into(&mut self.undocumented_cgb_regs)?;
+        self.serial.load_state(r)?;
+        self.timer.load_state(r)?;
+        self.keypad.load_state(r)?;
+        self.gpu.load_state(r)?;
+
+        let mut mbc = r.section()?;
+        self.mbc.load_state(&mut mbc)?;
+        mbc.finish()?;
+
+        let mut sound = r.section()?;
+        if let Some(ref mut s) = self.sound {
+            // States from an instance without sound leave it as it is
+            if !sound.is_empty() {
+                s.load_state(&mut sound)?;
+                sound.finish()?;
+            }
+        }
+
+        self.rom_offsets = [usize::MAX; 2];
+        self.map_all();
+        Ok(())
+    }
+
+    fn map_all(&mut self) {
+        self.map_rom();
+        self.map_vram();
+        self.map_wram();
+    }
+
+    /// Remaps the ROM pages when the MBC switched banks
+    fn map_rom(&mut self) {
+        let offsets = self.mbc.rom_offsets();
+        if offsets == self.rom_offsets {
+            return;
+        }
+        self.rom_offsets = offsets;
+
+        for page in 0x00 .. 0x80 {
+            let base = offsets[page >> 6] + (page & 0x3F) * PAGE_SIZE;
+            // Reads past the end are left to the MBC, which has its own idea of what they return
+            self.pages[page] = if base + PAGE_SIZE <= self.rom.len() { Page::Rom(base) } else { Page::Slow };
+        }
+    }
+
+    fn map_vram(&mut self) {
+        let bank = self.gpu.vram_bank_offset();
+        for page in 0x80 .. 0xA0 {
+            self.pages[page] = Page::Vram(bank + (page - 0x80) * PAGE_SIZE);
+        }
+    }
+
+    fn map_wram(&mut self) {
+        for page in 0xC0 .. 0xFE {
+            let base = match page {
+                0xC0 ..= 0xCF | 0xE0 ..= 0xEF => 0,
+                _ => self.wrambank * 0x1000,
+            };
+            self.pages[page] = Page::Wram(base + (page & 0x0F) * PAGE_SIZE);
+        }
+    }
+
     pub fn rb(&mut self, address: u16) -> u8 {
+        let offset = address as usize & (PAGE_SIZE - 1);
+        match self.pages[address as usize >> 8] {
+            Page::Rom(base) => self.rom[base + offset],
+            Page::Vram(base) => self.gpu.read_vram(base + offset),
+            Page::Wram(base) => self.wram[base + offset],
+            Page::Slow => self.rb_slow(address),
+        }
+    }
+
+    fn rb_slow(&mut self, address: u16) -> u8 {
         match address {
             0x0000 ..= 0x7FFF => self.mbc.readrom(address),
             0x8000 ..= 0x9FFF => self.gpu.rb(address),
@@ -230,8 +395,17 @@ impl<'a> MMU<'a> {
     }
 
     pub fn wb(&mut self, address: u16, value: u8) {
+        let offset = address as usize & (PAGE_SIZE - 1);
+        match self.pages[address as usize >> 8] {
+            Page::Vram(base) => self.gpu.write_vram(base + offset, value),
+            Page::Wram(base) => self.wram[base + offset] = value,
+            Page::Rom(_) | Page::Slow => self.wb_slow(address, value),
+        }
+    }
+
+    fn wb_slow(&mut self, address: u16, value: u8) {
         match address {
-            0x0000 ..= 0x7FFF => self.mbc.writerom(address, value),
+            0x0000 ..= 0x7FFF => { self.mbc.writerom(address, value); self.map_rom(); },
             0x8000 ..= 0x9FFF => self.gpu.wb(address, value),
             0xA000 ..= 0xBFFF => self.mbc.writeram(address, value),
             0xC000 ..= 0xCFFF | 0xE000 ..= 0xEFFF => self.wram[address as usize & 0x0FFF] = value,
@@ -245,11 +419,12 @@ impl<'a> MMU<'a> {
             0xFF4D | 0xFF4F | 0xFF51 ..= 0xFF55 | 0xFF6C | 0xFF70 | 0xFF76 ..= 0xFF77 if self.gbmode != GbMode::Color => {},
             0xFF72 ..= 0xFF73 | 0xFF75 ..= 0xFF77 if self.gbmode == GbMode::Classic => {},
             0xFF4D => if value & 0x1 == 0x1 { self.speed_switch_req = true; },
+            0xFF4F => { self.gpu.wb(address, value); self.map_vram(); },
             0xFF40 ..= 0xFF4F => self.gpu.wb(address, value),
             0xFF51 ..= 0xFF55 => self.hdma_write(address, value),
             0xFF68 ..= 0xFF6B => self.gpu.wb(address, value),
             0xFF0F => self.intf = value,
-            0xFF70 => { self.wrambank = match value & 0x7 { 0 => 1, n => n as usize }; },
+            0xFF70 => { self.wrambank = match value & 0x7 { 0 => 1, n => n as usize }; self.map_wram(); },
             0xFF72 ..= 0xFF73 => self.undocumented_cgb_regs[address as usize - 0xFF72] = value,
             0xFF75 => self.undocumented_cgb_regs[2] = value,
             0xFF80 ..= 0xFFFE => self.zram[address as usize & 0x007F] = value,
@@ -363,3 +538,54 @@ impl<'a> MMU<'a> {
         }
     }
 }
+
+#[cfg(test)]
+mod test {
+    use super::MMU;
+    use crate::state::{StateReader, StateWriter};
+
+    /// An MBC1 ROM of 4 banks, each filled with its bank number
+    fn banked_rom() -> Vec<u8> {
+        let mut rom: Vec<u8> = (0 .. 4).flat_map(|bank| vec![bank as u8; 0x4000]).collect();
+        rom[0x143] = 0;
+        rom[0x147] = 0x01;
+        rom[0x148] = 0x01;
+        rom
+    }
+
+    #[test]
+    fn rom_pages_follow_bank_switches() {
+        let mut mmu = MMU::new(banked_rom().into(), None, None, true).unwrap();
+        assert_eq!(mmu.rb(0x0000), 0);
+        assert_eq!(mmu.rb(0x4000), 1);
+
+        mmu.wb(0x2000, 3);
+        assert_eq!(mmu.rb(0x4000), 3);
+        assert_eq!(mmu.rb(0x7FFF), 3);
+        assert_eq!(mmu.rb(0x3FFF), 0);
+    }
+
+    #[test]
+    fn echo_ram_shares_pages() {
+        let mut mmu = MMU::new(banked_rom().into(), None, None, true).unwrap();
+        mmu.wb(0xC123, 0x42);
+        mmu.wb(0xF456, 0x24);
+        assert_eq!(mmu.rb(0xE123), 0x42);
+        assert_eq!(mmu.rb(0xD456), 0x24);
+    }
+
+    #[test]
+    fn states_with_missing_banks_are_rejected() {
+        let mut mbc = crate::mbc::get_mbc(banked_rom().into(), None, true).unwrap();
+        for (rombank, ok) in [(3, true), (4, false)] {
+            let mut w = StateWriter::new(0);
+            w.sized_bytes(&[]);
+            w.bool(false);
+            w.u8(0);
+            w.u32(rombank);
+            w.u32(0);
+            let data = w.finish();
+            assert_eq!(mbc.load_state(&mut StateReader::new(&data).unwrap()).is_ok(), ok);
+        }
+    }
+}
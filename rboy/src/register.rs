@@ -1,4 +1,6 @@
 use crate::gbmode::GbMode;
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
 
 #[derive(Copy, Clone)]
 pub struct Registers {
@@ -126,6 +128,27 @@ impl Registers {
         self.f & mask > 0
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.bytes(&[self.a, self.f, self.b, self.c, self.d, self.e, self.h, self.l]);
+        w.u16(self.pc);
+        w.u16(self.sp);
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        let v = r.bytes(8)?;
+        self.a = v[0];
+        self.f = v[1] & 0xF0;
+        self.b = v[2];
+        self.c = v[3];
+        self.d = v[4];
+        self.e = v[5];
+        self.h = v[6];
+        self.l = v[7];
+        self.pc = r.u16()?;
+        self.sp = r.u16()?;
+        Ok(())
+    }
+
     #[cfg(test)]
     fn setf(&mut self, flags: u8)
     {
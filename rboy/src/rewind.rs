@@ -0,0 +1,228 @@
+use std::collections::VecDeque;
+use std::time::Instant;
+
+use crate::device::Device;
+
+// Shorter runs of unchanged bytes are cheaper to store as part of the changed bytes around them
+const MIN_UNCHANGED_RUN: usize = 4;
+
+/// Recent history of a device, kept within a memory budget. The latest snapshot is kept whole and older ones as the
+/// XOR of each snapshot with the one after it, with unchanged bytes run length encoded. Stepping back undoes one delta
+/// at a time, and the oldest deltas can be dropped without touching the others.
+pub struct Rewind {
+    budget: usize,
+    interval: u32,
+    frames: u32,
+    latest: Vec<u8>,
+    // Whether the device is still at `latest`, rather than having run on from it
+    at_latest: bool,
+    scratch: Vec<u8>,
+    deltas: VecDeque<Box<[u8]>>,
+    delta_bytes: usize,
+    captures: u64,
+    capture_nanos: u64,
+}
+
+/// Counters shared with java, see RBoy.RewindStats
+pub struct RewindStats {
+    pub snapshots: usize,
+    pub bytes_used: usize,
+    pub budget: usize,
+    pub interval: u32,
+    pub captures: u64,
+    pub capture_nanos: u64,
+}
+
+impl Rewind {
+    /// Takes a snapshot every `interval` frames, dropping the oldest once more than `budget` bytes are in use
+    pub fn new(budget: usize, interval: u32) -> Rewind {
+        Rewind {
+            budget,
+            interval: interval.max(1),
+            frames: 0,
+            latest: Vec::new(),
+            at_latest: false,
+            scratch: Vec::new(),
+            deltas: VecDeque::new(),
+            delta_bytes: 0,
+            captures: 0,
+            capture_nanos: 0,
+        }
+    }
+
+    /// Called after every frame the device produces
+    pub fn frame(&mut self, device: &Device) {
+        self.at_latest = false;
+        self.frames += 1;
+        if self.frames < self.interval {
+            return;
+        }
+        self.frames = 0;
+
+        let start = Instant::now();
+        device.save_state_into(&mut self.scratch);
+
+        if self.latest.len() == self.scratch.len() {
+            let mut delta = Vec::new();
+            compress_xor(&self.scratch, &self.latest, &mut delta);
+            self.delta_bytes += delta.len();
+            self.deltas.push_back(delta.into_boxed_slice());
+        } else {
+            // Nothing to compare against yet
+            self.clear();
+        }
+        std::mem::swap(&mut self.latest, &mut self.scratch);
+
+        while self.bytes_used() > self.budget {
+            match self.deltas.pop_front() {
+                Some(delta) => self.delta_bytes -= delta.len(),
+                None => break,
+            }
+        }
+
+        self.captures += 1;
+        self.capture_nanos += start.elapsed().as_nanos() as u64;
+    }
+
+    /// Moves back to the previous snapshot and returns it, or the oldest one once the history has run out.
+    /// Returns None when nothing has been captured yet.
+    pub fn step_back(&mut self) -> Option<&[u8]> {
+        if self.latest.is_empty() {
+            return None;
+        }
+
+        if self.at_latest {
+            if let Some(delta) = self.deltas.pop_back() {
+                self.delta_bytes -= delta.len();
+                apply_xor(&delta, &mut self.latest);
+            }
+        }
+
+        self.at_latest = true;
+        self.frames = 0;
+        Some(&self.latest)
+    }
+
+    /// Forgets the history, for when the device state has been replaced
+    pub fn clear(&mut self) {
+        self.deltas.clear();
+        self.delta_bytes = 0;
+        self.latest.clear();
+        self.at_latest = false;
+    }
+
+    fn bytes_used(&self) -> usize {
+        self.latest.capacity() + self.scratch.capacity() + self.delta_bytes
+    }
+
+    pub fn stats(&self) -> RewindStats {
+        RewindStats {
+            snapshots: self.deltas.len() + if self.latest.is_empty() { 0 } else { 1 },
+            bytes_used: self.bytes_used(),
+            budget: self.budget,
+            interval: self.interval,
+            captures: self.captures,
+            capture_nanos: self.capture_nanos,
+        }
+    }
+}
+
+/// Appends `a ^ b` to `out` as pairs of (unchanged byte count, changed byte count) varints, each followed by the
+/// XOR of the changed bytes
+fn compress_xor(a: &[u8], b: &[u8], out: &mut Vec<u8>) {
+    debug_assert_eq!(a.len(), b.len());
+    let len = a.len();
+    let mut i = 0;
+
+    while i < len {
+        let unchanged_start = i;
+        while i < len && a[i] == b[i] {
+            i += 1;
+        }
+        if i == len {
+            break;
+        }
+
+        let changed_start = i;
+        while i < len {
+            if a[i] != b[i] {
+                i += 1;
+                continue;
+            }
+            let run = a[i ..].iter().zip(&b[i ..]).take(MIN_UNCHANGED_RUN).take_while(|(x, y)| x == y).count();
+            if run == MIN_UNCHANGED_RUN || i + run == len {
+                break;
+            }
+            i += run;
+        }
+
+        write_varint(out, changed_start - unchanged_start);
+        write_varint(out, i - changed_start);
+        out.extend(a[changed_start .. i].iter().zip(&b[changed_start .. i]).map(|(x, y)| x ^ y));
+    }
+}
+
+/// XORs a delta from `compress_xor` into `data`, turning one of the compared buffers into the other
+fn apply_xor(delta: &[u8], data: &mut [u8]) {
+    let mut pos = 0;
+    let mut i = 0;
+
+    while i < delta.len() {
+        pos += read_varint(delta, &mut i);
+        let len = read_varint(delta, &mut i);
+        for (out, x) in data[pos .. pos + len].iter_mut().zip(&delta[i .. i + len]) {
+            *out ^= x;
+        }
+        pos += len;
+        i += len;
+    }
+}
+
+fn write_varint(out: &mut Vec<u8>, mut v: usize) {
+    while v >= 0x80 {
+        out.push((v as u8) | 0x80);
+        v >>= 7;
+    }
+    out.push(v as u8);
+}
+
+fn read_varint(data: &[u8], i: &mut usize) -> usize {
+    let mut v = 0;
+    let mut shift = 0;
+    loop {
+        let byte = data[*i];
+        *i += 1;
+        v |= ((byte & 0x7F) as usize) << shift;
+        if byte & 0x80 == 0 {
+            return v;
+        }
+        shift += 7;
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::{apply_xor, compress_xor};
+
+    #[test]
+    fn xor_round_trip() {
+        let old: Vec<u8> = (0 .. 1000).map(|i| (i * 7) as u8).collect();
+        let mut new = old.clone();
+        new[0] = 1;
+        new[3] = 2;
+        new[500 .. 700].iter_mut().for_each(|v| *v = !*v);
+        new[999] = 3;
+
+        let mut delta = Vec::new();
+        compress_xor(&old, &new, &mut delta);
+        assert!(delta.len() < 250);
+
+        let mut restored = new.clone();
+        apply_xor(&delta, &mut restored);
+        assert_eq!(restored, old);
+
+        let mut same = Vec::new();
+        compress_xor(&old, &old, &mut same);
+        assert!(same.is_empty());
+    }
+}
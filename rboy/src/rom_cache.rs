@@ -0,0 +1,81 @@
+use std::sync::{Arc, Mutex};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::time::{Duration, Instant};
+
+/// ROM images shared by every context running the same cartridge, keyed by a hash of their contents.
+/// An image stays cached for `IDLE_TIMEOUT` after the last context using it has gone, so reopening a game
+/// doesn't load it again; idle images are evicted whenever a context is created or destroyed.
+static CACHE: Mutex<Vec<Entry>> = Mutex::new(Vec::new());
+// Contexts that were given an image that was already cached
+static HITS: AtomicU64 = AtomicU64::new(0);
+
+const IDLE_TIMEOUT: Duration = Duration::from_secs(60);
+
+struct Entry {
+    hash: u64,
+    rom: Arc<[u8]>,
+    // When the cache became the only owner of the image
+    idle_since: Option<Instant>,
+}
+
+/// Returns the cached image with the same contents as `data`, copying it into the cache the first time
+pub fn get(data: &[u8]) -> Arc<[u8]> {
+    let hash = crate::frame::hash(data);
+    let mut cache = CACHE.lock().unwrap();
+    trim_locked(&mut cache);
+
+    for entry in cache.iter_mut() {
+        // Compared in full, a hash collision must never run the wrong game
+        if entry.hash == hash && &*entry.rom == data {
+            entry.idle_since = None;
+            HITS.fetch_add(1, Ordering::Relaxed);
+            return entry.rom.clone();
+        }
+    }
+
+    let rom: Arc<[u8]> = data.into();
+    cache.push(Entry { hash, rom: rom.clone(), idle_since: None });
+    rom
+}
+
+/// Evicts images that have been idle for longer than `IDLE_TIMEOUT`
+pub fn trim() {
+    trim_locked(&mut CACHE.lock().unwrap());
+}
+
+fn trim_locked(cache: &mut Vec<Entry>) {
+    let now = Instant::now();
+    cache.retain_mut(|entry| {
+        if Arc::strong_count(&entry.rom) > 1 {
+            entry.idle_since = None;
+            return true;
+        }
+
+        let idle_since = *entry.idle_since.get_or_insert(now);
+        now.duration_since(idle_since) < IDLE_TIMEOUT
+    });
+}
+
+/// Cached images, their total size in bytes, and how many times a cached image was reused
+pub fn stats() -> [u64; 3] {
+    let cache = CACHE.lock().unwrap();
+    [
+        cache.len() as u64,
+        cache.iter().map(|entry| entry.rom.len() as u64).sum(),
+        HITS.load(Ordering::Relaxed),
+    ]
+}
+
+#[cfg(test)]
+mod test {
+    use std::sync::Arc;
+
+    #[test]
+    fn equal_images_are_shared() {
+        let a = super::get(&[1, 2, 3, 4]);
+        let b = super::get(&vec![1, 2, 3, 4]);
+        let c = super::get(&[1, 2, 3, 5]);
+        assert!(Arc::ptr_eq(&a, &b));
+        assert!(!Arc::ptr_eq(&a, &c));
+    }
+}
@@ -1,3 +1,7 @@
+use crate::link::{LinkPort, TRANSFER_CYCLES};
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
+
 pub type SerialCallback<'a> = Box<dyn FnMut(u8) -> Option<u8> + Send + 'a>;
 
 fn noop(_: u8) -> Option<u8> { None }
@@ -6,6 +10,13 @@ pub struct Serial<'a> {
     data: u8,
     control: u8,
     callback: SerialCallback<'a>,
+    link: Option<LinkPort>,
+    // Cycles left of the transfer in progress, and the byte it clocks in
+    transfer: u32,
+    received: u8,
+    // The byte a transfer on the internal clock is still clocking out over the link, and when it started
+    sending: Option<u8>,
+    started: u64,
     pub interrupt: u8,
 }
 
@@ -13,15 +24,29 @@ impl<'a> Serial<'a>
 {
     pub fn new_with_callback(cb: SerialCallback<'a>) -> Serial<'a>
     {
-        Serial { data: 0, control: 0, callback: cb, interrupt: 0 }
+        Serial { data: 0, control: 0, callback: cb, link: None, transfer: 0, received: 0, sending: None, started: 0, interrupt: 0 }
     }
 
     pub fn wb(&mut self, a: u16, v: u8) {
         match a {
-            0xFF01 => self.data = v,
+            0xFF01 => {
+                self.data = v;
+                self.update_offer();
+            },
             0xFF02 => {
                 self.control = v;
-                if v & 0x81 == 0x81 {
+                if let Some(ref link) = self.link {
+                    if v & 0x81 == 0x81 {
+                        // Exchanged as the emulator runs on, see do_cycle
+                        self.sending = Some(self.data);
+                        self.started = link.clock();
+                        self.transfer = TRANSFER_CYCLES;
+                    } else {
+                        self.sending = None;
+                        self.transfer = 0;
+                    }
+                    self.update_offer();
+                } else if v & 0x81 == 0x81 {
                     match (self.callback)(self.data) {
                         Some(v) => {
                             self.data = v;
@@ -35,6 +60,53 @@ impl<'a> Serial<'a>
         };
     }
 
+    pub fn do_cycle(&mut self, ticks: u32) {
+        match self.link {
+            Some(ref mut link) => {
+                link.tick(ticks);
+
+                if let Some(byte) = self.sending {
+                    if let Some(v) = link.exchange(byte, self.started) {
+                        self.received = v;
+                        self.sending = None;
+                    }
+                } else if self.transfer == 0 && self.control & 0x81 == 0x80 {
+                    // Waiting on the external clock, driven by the other end
+                    if let Some(v) = link.receive() {
+                        self.received = v;
+                        self.transfer = TRANSFER_CYCLES;
+                    }
+                }
+            },
+            None => {
+                // Unplugged while clocking out
+                if self.sending.take().is_some() {
+                    self.received = 0xFF;
+                }
+            },
+        }
+
+        if self.transfer > 0 {
+            // Held open until the other end has answered
+            let remaining = if self.sending.is_some() { 1 } else { 0 };
+            self.transfer = self.transfer.saturating_sub(ticks).max(remaining);
+            if self.transfer == 0 {
+                self.data = self.received;
+                self.control &= 0x7F;
+                self.interrupt = 0x8;
+                self.update_offer();
+            }
+        }
+    }
+
+    // Lets the other end clock in our byte while a transfer waits on the external clock
+    fn update_offer(&self) {
+        if let Some(ref link) = self.link {
+            let waiting = self.control & 0x81 == 0x80 && self.transfer == 0;
+            link.offer(if waiting { Some(self.data) } else { None });
+        }
+    }
+
     pub fn rb(&self, a: u16) -> u8 {
         match a {
             0xFF01 => self.data,
@@ -43,6 +115,32 @@ impl<'a> Serial<'a>
         }
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.u8(self.data);
+        w.u8(self.control);
+        w.u8(self.interrupt);
+        w.u32(self.transfer);
+        w.u8(self.received);
+        w.bool(self.sending.is_some());
+        w.u8(self.sending.unwrap_or(0));
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.data = r.u8()?;
+        self.control = r.u8()?;
+        self.interrupt = r.u8()?;
+        // A transfer in progress when the state was saved completes with the byte it was clocking in
+        self.transfer = r.u32()?.min(TRANSFER_CYCLES);
+        self.received = r.u8()?;
+        let sending = r.bool()?;
+        let byte = r.u8()?;
+        self.sending = if sending { Some(byte) } else { None };
+        // The other end has moved on since, the wait starts over
+        self.started = self.link.as_ref().map_or(0, |link| link.clock());
+        self.update_offer();
+        Ok(())
+    }
+
     pub fn set_callback(&mut self, cb: SerialCallback<'static>) {
         self.callback = cb;
     }
@@ -50,10 +148,50 @@ impl<'a> Serial<'a>
     pub fn unset_callback(&mut self) {
         self.callback = Box::new(noop);
     }
+
+    /// Connects a link cable in place of the callback, or disconnects it. A transfer in progress still completes.
+    pub fn set_link(&mut self, link: Option<LinkPort>) {
+        self.link = link;
+        self.started = self.link.as_ref().map_or(0, |link| link.clock());
+        self.update_offer();
+    }
 }
 
 impl Serial<'static> {
     pub fn new() -> Serial<'static> {
-        Serial { data: 0, control: 0, callback: Box::new(noop), interrupt: 0 }
+        Serial { data: 0, control: 0, callback: Box::new(noop), link: None, transfer: 0, received: 0, sending: None, started: 0, interrupt: 0 }
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::Serial;
+    use crate::link::{cable, TRANSFER_CYCLES};
+    use crate::state::{StateReader, StateWriter};
+
+    #[test]
+    fn transfers_complete_after_load() {
+        let (master_port, slave_port) = cable();
+        let mut master = Serial::new();
+        let mut slave = Serial::new();
+        master.set_link(Some(master_port));
+        slave.set_link(Some(slave_port));
+
+        slave.wb(0xFF01, 0x42);
+        slave.wb(0xFF02, 0x80);
+        master.wb(0xFF01, 0x17);
+        master.wb(0xFF02, 0x81);
+        master.do_cycle(TRANSFER_CYCLES / 2);
+
+        let mut w = StateWriter::new(0);
+        master.save_state(&mut w);
+        let data = w.finish();
+
+        let mut restored = Serial::new();
+        restored.load_state(&mut StateReader::new(&data).unwrap()).unwrap();
+        restored.do_cycle(TRANSFER_CYCLES / 2);
+        assert_eq!(restored.rb(0xFF02) & 0x80, 0);
+        assert_eq!(restored.rb(0xFF01), 0x42);
+        assert_eq!(restored.interrupt, 0x8);
     }
 }
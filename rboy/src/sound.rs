@@ -1,4 +1,6 @@
 use blip_buf::BlipBuf;
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
 
 const WAVE_PATTERN : [[i32; 8]; 4] = [[-1,-1,-1,-1,1,-1,-1,-1],[-1,-1,-1,-1,1,1,-1,-1],[-1,-1,1,1,1,1,-1,-1],[1,1,1,1,-1,-1,1,1]];
 const CLOCKS_PER_SECOND : u32 = 1 << 22;
@@ -14,6 +16,8 @@ pub trait AudioPlayer : Send {
     fn play(&mut self, left_channel: &[f32], right_channel: &[f32]);
     fn samples_rate(&self) -> u32;
     fn underflowed(&self) -> bool;
+    /// Stereo frames played but not yet consumed by the audio device, when the player knows
+    fn queued_frames(&self) -> Option<usize> { None }
 }
 
 struct VolumeEnvelope {
@@ -35,6 +39,23 @@ impl VolumeEnvelope {
         }
     }
 
+    fn save_state(&self, w: &mut StateWriter) {
+        w.u8(self.period);
+        w.bool(self.goes_up);
+        w.u8(self.delay);
+        w.u8(self.initial_volume);
+        w.u8(self.volume);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.period = r.u8()?;
+        self.goes_up = r.bool()?;
+        self.delay = r.u8()?;
+        self.initial_volume = r.u8()?;
+        self.volume = r.u8()?;
+        Ok(())
+    }
+
     fn rb(&self, a: u16) -> u8 {
         match a {
             0xFF12 | 0xFF17 | 0xFF21 => {
@@ -93,6 +114,17 @@ impl LengthCounter {
         }
     }
 
+    fn save_state(&self, w: &mut StateWriter) {
+        w.bool(self.enabled);
+        w.u16(self.value);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.enabled = r.bool()?;
+        self.value = r.u16()?;
+        Ok(())
+    }
+
     fn is_active(&self) -> bool {
         self.value > 0
     }
@@ -179,6 +211,46 @@ impl SquareChannel {
         }
     }
 
+    fn save_state(&self, w: &mut StateWriter) {
+        w.bool(self.active);
+        w.bool(self.dac_enabled);
+        w.u8(self.duty);
+        w.u8(self.phase);
+        self.length.save_state(w);
+        w.u16(self.frequency);
+        w.u32(self.period);
+        w.u32(self.delay);
+        w.bool(self.sweep_enabled);
+        w.u16(self.sweep_frequency);
+        w.bytes(&[self.sweep_delay, self.sweep_period, self.sweep_shift]);
+        w.bool(self.sweep_negate);
+        w.bool(self.sweep_did_negate);
+        self.volume_envelope.save_state(w);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.active = r.bool()?;
+        self.dac_enabled = r.bool()?;
+        self.duty = r.u8()?;
+        self.phase = r.u8()?;
+        self.length.load_state(r)?;
+        self.frequency = r.u16()?;
+        self.period = r.u32()?;
+        self.delay = r.u32()?;
+        self.sweep_enabled = r.bool()?;
+        self.sweep_frequency = r.u16()?;
+        let v = r.bytes(3)?;
+        self.sweep_delay = v[0];
+        self.sweep_period = v[1];
+        self.sweep_shift = v[2];
+        self.sweep_negate = r.bool()?;
+        self.sweep_did_negate = r.bool()?;
+        self.volume_envelope.load_state(r)?;
+        // The blip buffer is cleared on load, so it starts again from silence
+        self.last_amp = 0;
+        Ok(())
+    }
+
     fn on(&self) -> bool {
         self.active
     }
@@ -469,6 +541,34 @@ impl WaveChannel {
         else { self.period = (2048 - self.frequency as u32) * 2; }
     }
 
+    fn save_state(&self, w: &mut StateWriter) {
+        w.bool(self.active);
+        w.bool(self.dac_enabled);
+        self.length.save_state(w);
+        w.u16(self.frequency);
+        w.u32(self.period);
+        w.u32(self.delay);
+        w.u8(self.volume_shift);
+        w.bytes(&self.waveram);
+        w.u8(self.current_wave);
+        w.bool(self.sample_recently_accessed);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.active = r.bool()?;
+        self.dac_enabled = r.bool()?;
+        self.length.load_state(r)?;
+        self.frequency = r.u16()?;
+        self.period = r.u32()?;
+        self.delay = r.u32()?;
+        self.volume_shift = r.u8()?;
+        r.bytes_into(&mut self.waveram)?;
+        self.current_wave = r.u8()?;
+        self.sample_recently_accessed = r.bool()?;
+        self.last_amp = 0;
+        Ok(())
+    }
+
     fn on(&self) -> bool {
         self.active
     }
@@ -636,6 +736,32 @@ impl NoiseChannel {
         self.volume_envelope.wb(a, v);
     }
 
+    fn save_state(&self, w: &mut StateWriter) {
+        w.bool(self.active);
+        w.bool(self.dac_enabled);
+        w.u8(self.reg_ff22);
+        self.length.save_state(w);
+        self.volume_envelope.save_state(w);
+        w.u32(self.period);
+        w.u8(self.shift_width);
+        w.u16(self.state);
+        w.u32(self.delay);
+    }
+
+    fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.active = r.bool()?;
+        self.dac_enabled = r.bool()?;
+        self.reg_ff22 = r.u8()?;
+        self.length.load_state(r)?;
+        self.volume_envelope.load_state(r)?;
+        self.period = r.u32()?;
+        self.shift_width = r.u8()?;
+        self.state = r.u16()?;
+        self.delay = r.u32()?;
+        self.last_amp = 0;
+        Ok(())
+    }
+
     fn on(&self) -> bool {
         self.active
     }
@@ -736,6 +862,39 @@ impl Sound {
         }
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.bool(self.on);
+        w.u32(self.time);
+        w.u32(self.prev_time);
+        w.u32(self.next_time);
+        w.u8(self.frame_step);
+        self.channel1.save_state(w);
+        self.channel2.save_state(w);
+        self.channel3.save_state(w);
+        self.channel4.save_state(w);
+        w.bytes(&[self.volume_left, self.volume_right, self.reg_vin_to_so, self.reg_ff25]);
+    }
+
+    /// Samples not yet handed to the player are dropped
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.on = r.bool()?;
+        self.time = r.u32()?;
+        self.prev_time = r.u32()?;
+        self.next_time = r.u32()?;
+        self.frame_step = r.u8()?;
+        self.channel1.load_state(r)?;
+        self.channel2.load_state(r)?;
+        self.channel3.load_state(r)?;
+        self.channel4.load_state(r)?;
+        let v = r.bytes(4)?;
+        self.volume_left = v[0];
+        self.volume_right = v[1];
+        self.reg_vin_to_so = v[2];
+        self.reg_ff25 = v[3];
+        self.clear_buffers();
+        Ok(())
+    }
+
    pub fn rb(&mut self, a: u16) -> u8 {
         self.run();
         let v = match a {
@@ -821,6 +980,11 @@ impl Sound {
         self.need_sync = true;
     }
 
+    /// Audio waiting to be played by the player, when it can tell
+    pub fn queued(&self) -> Option<std::time::Duration> {
+        self.player.queued_frames().map(|frames| std::time::Duration::from_secs(frames as u64) / self.player.samples_rate())
+    }
+
     fn do_output(&mut self) {
         self.run();
         debug_assert!(self.time == self.prev_time);
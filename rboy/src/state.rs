@@ -0,0 +1,193 @@
+use crate::StrResult;
+
+/// Identifies a save state, followed by the format version
+const MAGIC: &[u8; 4] = b"RBST";
+/// Bumped whenever the layout of any component changes, older states are rejected
+pub const VERSION: u16 = 3;
+
+/// Appends the state of the emulator components to a buffer. Values are little endian, with no padding or tags,
+/// so components must read back exactly what they wrote and in the same order.
+pub struct StateWriter {
+    buf: Vec<u8>,
+}
+
+impl StateWriter {
+    pub fn new(capacity: usize) -> StateWriter {
+        StateWriter::reuse(Vec::with_capacity(capacity))
+    }
+
+    /// Writes over an existing buffer, to avoid allocating for every snapshot
+    pub fn reuse(mut buf: Vec<u8>) -> StateWriter {
+        buf.clear();
+        let mut writer = StateWriter { buf };
+        writer.bytes(MAGIC);
+        writer.u16(VERSION);
+        writer
+    }
+
+    pub fn u8(&mut self, v: u8) {
+        self.buf.push(v);
+    }
+
+    pub fn bool(&mut self, v: bool) {
+        self.buf.push(v as u8);
+    }
+
+    pub fn u16(&mut self, v: u16) {
+        self.buf.extend_from_slice(&v.to_le_bytes());
+    }
+
+    pub fn u32(&mut self, v: u32) {
+        self.buf.extend_from_slice(&v.to_le_bytes());
+    }
+
+    pub fn i32(&mut self, v: i32) {
+        self.buf.extend_from_slice(&v.to_le_bytes());
+    }
+
+    pub fn u64(&mut self, v: u64) {
+        self.buf.extend_from_slice(&v.to_le_bytes());
+    }
+
+    /// Fixed size data, the reader must know the length
+    pub fn bytes(&mut self, v: &[u8]) {
+        self.buf.extend_from_slice(v);
+    }
+
+    /// Variable size data, prefixed with its length
+    pub fn sized_bytes(&mut self, v: &[u8]) {
+        self.u32(v.len() as u32);
+        self.bytes(v);
+    }
+
+    /// Writes a length prefixed section, which can be skipped by readers that have nothing to load it into
+    pub fn section<F: FnOnce(&mut StateWriter)>(&mut self, write: F) {
+        let start = self.buf.len();
+        self.u32(0);
+        write(self);
+        let len = (self.buf.len() - start - 4) as u32;
+        self.buf[start .. start + 4].copy_from_slice(&len.to_le_bytes());
+    }
+
+    pub fn finish(self) -> Vec<u8> {
+        self.buf
+    }
+}
+
+pub struct StateReader<'a> {
+    data: &'a [u8],
+    pos: usize,
+}
+
+const TRUNCATED: &str = "Save state is truncated";
+
+impl<'a> StateReader<'a> {
+    pub fn new(data: &'a [u8]) -> StrResult<StateReader<'a>> {
+        let mut reader = StateReader { data, pos: 0 };
+        if reader.bytes(MAGIC.len())? != MAGIC {
+            return Err("Not a save state");
+        }
+        if reader.u16()? != VERSION {
+            return Err("Save state was made by an incompatible version");
+        }
+        Ok(reader)
+    }
+
+    fn take<const N: usize>(&mut self) -> StrResult<[u8; N]> {
+        let mut out = [0; N];
+        out.copy_from_slice(self.bytes(N)?);
+        Ok(out)
+    }
+
+    pub fn u8(&mut self) -> StrResult<u8> {
+        Ok(self.take::<1>()?[0])
+    }
+
+    pub fn bool(&mut self) -> StrResult<bool> {
+        Ok(self.u8()? != 0)
+    }
+
+    pub fn u16(&mut self) -> StrResult<u16> {
+        Ok(u16::from_le_bytes(self.take()?))
+    }
+
+    pub fn u32(&mut self) -> StrResult<u32> {
+        Ok(u32::from_le_bytes(self.take()?))
+    }
+
+    pub fn i32(&mut self) -> StrResult<i32> {
+        Ok(i32::from_le_bytes(self.take()?))
+    }
+
+    pub fn u64(&mut self) -> StrResult<u64> {
+        Ok(u64::from_le_bytes(self.take()?))
+    }
+
+    pub fn bytes(&mut self, len: usize) -> StrResult<&'a [u8]> {
+        if self.data.len() - self.pos < len {
+            return Err(TRUNCATED);
+        }
+        let bytes = &self.data[self.pos .. self.pos + len];
+        self.pos += len;
+        Ok(bytes)
+    }
+
+    /// Fills `out` with data written by `StateWriter::bytes`
+    pub fn bytes_into(&mut self, out: &mut [u8]) -> StrResult<()> {
+        out.copy_from_slice(self.bytes(out.len())?);
+        Ok(())
+    }
+
+    /// Data written by `StateWriter::sized_bytes`, which must be exactly `out.len()` long
+    pub fn sized_bytes_into(&mut self, out: &mut [u8]) -> StrResult<()> {
+        if self.u32()? as usize != out.len() {
+            return Err("Save state does not match the cartridge");
+        }
+        self.bytes_into(out)
+    }
+
+    /// Returns a reader over a section written by `StateWriter::section`, and moves past it
+    pub fn section(&mut self) -> StrResult<StateReader<'a>> {
+        let len = self.u32()? as usize;
+        Ok(StateReader { data: self.bytes(len)?, pos: 0 })
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.pos == self.data.len()
+    }
+
+    /// Fails unless everything has been read, catches components reading back less than they wrote
+    pub fn finish(&self) -> StrResult<()> {
+        if self.pos != self.data.len() {
+            return Err("Save state has unexpected trailing data");
+        }
+        Ok(())
+    }
+}
+
+#[cfg(test)]
+mod test {
+    use super::{StateReader, StateWriter};
+
+    #[test]
+    fn round_trip() {
+        let mut writer = StateWriter::new(0);
+        writer.u8(1);
+        writer.section(|w| { w.u16(0x1234); w.sized_bytes(&[5, 6, 7]); });
+        writer.i32(-8);
+        let data = writer.finish();
+
+        let mut reader = StateReader::new(&data).unwrap();
+        assert_eq!(reader.u8().unwrap(), 1);
+        let mut section = reader.section().unwrap();
+        assert_eq!(section.u16().unwrap(), 0x1234);
+        let mut bytes = [0; 3];
+        section.sized_bytes_into(&mut bytes).unwrap();
+        assert_eq!(bytes, [5, 6, 7]);
+        section.finish().unwrap();
+        assert_eq!(reader.i32().unwrap(), -8);
+        reader.finish().unwrap();
+
+        assert!(StateReader::new(&data[.. 3]).is_err());
+    }
+}
@@ -1,3 +1,6 @@
+use crate::state::{StateReader, StateWriter};
+use crate::StrResult;
+
 pub struct Timer {
     divider: u8,
     counter: u8,
@@ -50,6 +53,29 @@ impl Timer {
         };
     }
 
+    pub fn save_state(&self, w: &mut StateWriter) {
+        w.u8(self.divider);
+        w.u8(self.counter);
+        w.u8(self.modulo);
+        w.bool(self.enabled);
+        w.u32(self.step);
+        w.u32(self.internalcnt);
+        w.u32(self.internaldiv);
+        w.u8(self.interrupt);
+    }
+
+    pub fn load_state(&mut self, r: &mut StateReader) -> StrResult<()> {
+        self.divider = r.u8()?;
+        self.counter = r.u8()?;
+        self.modulo = r.u8()?;
+        self.enabled = r.bool()?;
+        self.step = r.u32()?;
+        self.internalcnt = r.u32()?;
+        self.internaldiv = r.u32()?;
+        self.interrupt = r.u8()?;
+        Ok(())
+    }
+
     pub fn do_cycle(&mut self, ticks: u32) {
         self.internaldiv += ticks;
         while self.internaldiv >= 256 {
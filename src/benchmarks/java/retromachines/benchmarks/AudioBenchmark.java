@@ -0,0 +1,89 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.GameboySound;
+import retromachines.rboy.RBoy;
+import retromachines.rboy.RBoyEvents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The java audio path: dispatching the native callbacks and feeding the sound engine.
+ * Each operation moves one batch of {@link RBoy#DEFAULT_AUDIO_BATCH_FRAMES} frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioBenchmark {
+	private static final int FRAMES = RBoy.DEFAULT_AUDIO_BATCH_FRAMES;
+	private static final int BYTES_PER_FRAME = 4;
+
+	// Keeps the legacy callback from being optimised away
+	private static volatile float sink;
+
+	private final RBoyEvents events = new RBoyEvents();
+	private GameboySound.GameboySoundStream stream;
+	private final ByteBuffer samples = ByteBuffer.allocateDirect(FRAMES * BYTES_PER_FRAME).order(ByteOrder.nativeOrder());
+	private final float[] left = new float[FRAMES];
+	private final float[] right = new float[FRAMES];
+
+	@Setup
+	public void setup() {
+		stream = new GameboySound.GameboySoundStream(events);
+		events.setAudioData((left, right) -> sink = left[0] + right[right.length - 1]);
+
+		for (int i = 0; i < FRAMES; i++) {
+			float sample = (float) Math.sin(i * 2 * Math.PI * 440 / 44100);
+			left[i] = sample;
+			right[i] = -sample;
+			samples.putShort(i * BYTES_PER_FRAME, (short) (sample * Short.MAX_VALUE));
+			samples.putShort(i * BYTES_PER_FRAME + 2, (short) (-sample * Short.MAX_VALUE));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		stream.close();
+	}
+
+	/**
+	 * A batch from the native player through {@link RBoyEvents} into the stream's ring buffer, then read out by the sound engine.
+	 */
+	@Benchmark
+	public ByteBuffer batchAndGetBuffer() {
+		events.audio_batch(samples, FRAMES);
+		return stream.getBuffer(FRAMES * BYTES_PER_FRAME);
+	}
+
+	/**
+	 * The sound engine reading from an empty stream, padding with silence.
+	 */
+	@Benchmark
+	public ByteBuffer getBufferUnderrun() {
+		return stream.getBuffer(FRAMES * BYTES_PER_FRAME);
+	}
+
+	/**
+	 * The legacy float[] callback, used with an audio batch size of 0.
+	 */
+	@Benchmark
+	public void audioCallback() {
+		events.audio_callback(left, right);
+	}
+}
@@ -0,0 +1,51 @@
+package retromachines.benchmarks;
+
+import retromachines.GameBoyRom;
+import retromachines.rboy.RBoy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The ROMs the benchmarks run, by the name used in their {@code rom} parameters.
+ */
+final class BenchmarkRoms {
+	// Relative to the project directory, which the benchmarks task runs in
+	private static final Path CPU_INSTRS = Path.of("rboy", "roms", "cpu_instrs.gb.gz");
+
+	private BenchmarkRoms() {
+	}
+
+	static byte[] load(String name) {
+		try {
+			return switch (name) {
+				case "2048" -> GameBoyRom.BUILTIN_2048.loadRom();
+				case "cpu_instrs" -> {
+					try (InputStream in = new GZIPInputStream(Files.newInputStream(CPU_INSTRS))) {
+						yield in.readAllBytes();
+					}
+				}
+				default -> throw new IllegalArgumentException("Unknown ROM " + name);
+			};
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A context with java audio and the frames it produced while warming up, ready to be benchmarked.
+	 */
+	static RBoy.Context create(String name, int warmupFrames) {
+		RBoy.Context context = RBoy.Context.create(load(name), false);
+
+		for (int i = 0; i < warmupFrames; i++) {
+			context.runFrames(1);
+		}
+
+		return context;
+	}
+}
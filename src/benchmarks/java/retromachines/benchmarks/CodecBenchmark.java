@@ -0,0 +1,121 @@
+package retromachines.benchmarks;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.gui.FrameBroadcaster;
+import retromachines.rboy.RBoy;
+import retromachines.stream.FrameCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding recorded gameplay with the frame streaming codec.
+ * The {@code bytes} and {@code frames} counters give the encoded bytes per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	private static final int RECORDED_FRAMES = 600;
+	// Frames are streamed once per server tick, every third emulated frame
+	private static final int STREAM_FRAME_INTERVAL = 3;
+	private static final int KEYFRAME_INTERVAL = FrameBroadcaster.KEYFRAME_INTERVAL;
+	private static final int[] KEYS = {RBoy.Events.KEY_LEFT_DOWN, RBoy.Events.KEY_UP_DOWN, RBoy.Events.KEY_RIGHT_DOWN, RBoy.Events.KEY_DOWN_DOWN};
+
+	@Param({"2048", "cpu_instrs"})
+	public String rom;
+
+	private final List<ByteBuffer> frames = new ArrayList<>();
+	private final List<byte[]> encoded = new ArrayList<>();
+	private final PacketByteBuf out = new PacketByteBuf(Unpooled.buffer(FrameCodec.MAX_ENCODED_SIZE));
+	private final ByteBuffer decoded = ByteBuffer.allocateDirect(RBoy.FRAME_SIZE);
+	private FrameCodec.Encoder encoder;
+	private FrameCodec.Decoder decoder;
+	private int next;
+
+	@Setup
+	public void setup() {
+		RBoy.Context context = BenchmarkRoms.create(rom, 60);
+
+		for (int i = 0; i < RECORDED_FRAMES; i++) {
+			// A move every half a second, so 2048 has something to animate
+			if (i % 10 == 0) {
+				int key = KEYS[(i / 10) % KEYS.length];
+				context.sendEvent(key);
+				context.runFrames(1);
+				context.sendEvent(key + 8); // The matching key up event
+			}
+
+			context.runFrames(STREAM_FRAME_INTERVAL);
+			frames.add(ByteBuffer.allocateDirect(RBoy.FRAME_SIZE).put(context.getGpuData()).flip());
+		}
+
+		context.close();
+
+		FrameCodec.Encoder recorder = new FrameCodec.Encoder(KEYFRAME_INTERVAL);
+
+		for (ByteBuffer frame : frames) {
+			out.clear();
+			recorder.encode(frame, out);
+			byte[] bytes = new byte[out.readableBytes()];
+			out.readBytes(bytes);
+			encoded.add(bytes);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		// Both start from the first frame, a keyframe, so the decoder always has the frame deltas are against
+		encoder = new FrameCodec.Encoder(KEYFRAME_INTERVAL);
+		decoder = new FrameCodec.Decoder();
+		next = 0;
+	}
+
+	@Benchmark
+	public int encode(Counters counters) {
+		out.clear();
+		encoder.encode(frames.get(next), out);
+		next = (next + 1) % frames.size();
+
+		if (next == 0) {
+			encoder.requestKeyframe();
+		}
+
+		counters.frames++;
+		counters.bytes += out.readableBytes();
+		return out.readableBytes();
+	}
+
+	@Benchmark
+	public boolean decode() {
+		byte[] frame = encoded.get(next);
+		next = (next + 1) % encoded.size();
+		return decoder.decode(new PacketByteBuf(Unpooled.wrappedBuffer(frame)), decoded);
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long frames;
+		public long bytes;
+	}
+}
@@ -0,0 +1,63 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless emulated frames per second on a single thread, with and without capturing rewind snapshots,
+ * both running and stepping.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EmulationBenchmark {
+	@Param({"2048", "cpu_instrs"})
+	public String rom;
+	@Param({"false", "true"})
+	public boolean rewind;
+
+	private RBoy.Context context;
+
+	@Setup
+	public void setup() {
+		context = BenchmarkRoms.create(rom, 0);
+
+		if (rewind) {
+			context.setRewind(16 * 1024 * 1024, 4);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public long frame() {
+		return context.runFrames(1);
+	}
+
+	/**
+	 * A frame run in lockstep, drawn and hashed whatever the speed.
+	 */
+	@Benchmark
+	public long step() {
+		return context.stepFrames(1).frameHash();
+	}
+}
@@ -0,0 +1,65 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.EmulationScheduler;
+import retromachines.rboy.InputLatency;
+import retromachines.rboy.RBoy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of sending input, while the emulator runs unthrottled on a worker draining the events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventBenchmark {
+	private EmulationScheduler scheduler;
+	private EmulationScheduler.Task task;
+	private RBoy.Context context;
+	private final InputLatency inputLatency = new InputLatency();
+	private boolean pressed = false;
+
+	@Setup
+	public void setup() {
+		context = BenchmarkRoms.create("2048", 0);
+		context.setSpeed(RBoy.UNTHROTTLED);
+		scheduler = new EmulationScheduler(1);
+		task = scheduler.schedule(context, EmulationScheduler.DEFAULT_PRIORITY);
+	}
+
+	@TearDown
+	public void tearDown() {
+		task.cancel();
+		scheduler.close();
+		context.close();
+	}
+
+	@Benchmark
+	public void sendEvent() {
+		pressed = !pressed;
+		context.sendEvent(pressed ? RBoy.Events.KEY_A_DOWN : RBoy.Events.KEY_A_UP);
+	}
+
+	/**
+	 * Including the timestamp taken for latency tracking.
+	 */
+	@Benchmark
+	public void sendInput() {
+		pressed = !pressed;
+		context.sendInput(pressed ? RBoy.Events.KEY_A_DOWN : RBoy.Events.KEY_A_UP, inputLatency.keyEvent());
+	}
+}
@@ -0,0 +1,64 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of handing a frame to java. Run with {@code -prof gc}, as the benchmarks task does, for the allocation per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+	private RBoy.Context context;
+	private ByteBuffer frameBuffer;
+
+	@Setup
+	public void setup() {
+		context = BenchmarkRoms.create("2048", 60);
+		frameBuffer = context.getFrameBuffer();
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	/**
+	 * Copies the frame into a new array.
+	 */
+	@Benchmark
+	public byte[] getGpuData() {
+		return context.getGpuData();
+	}
+
+	/**
+	 * Latches the frame in the shared buffer and reads a pixel from it, the path used by the game screen.
+	 */
+	@Benchmark
+	public byte pollFrame() {
+		int offset = context.pollFrame();
+		return frameBuffer.get(Math.max(offset, 0));
+	}
+
+	@Benchmark
+	public RBoy.FrameStats getFrameStats() {
+		return context.getFrameStats();
+	}
+}
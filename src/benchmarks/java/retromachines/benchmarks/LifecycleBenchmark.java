@@ -0,0 +1,120 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress test of many contexts living in one JVM, failing the run if audio reaches the wrong context
+ * or a closed context is not rejected.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LifecycleBenchmark {
+	private static final byte[] ROM = BenchmarkRoms.load("2048");
+	private static final int FRAMES = 10;
+
+	/**
+	 * A whole lifecycle per operation on every thread at once. The audio of each context is produced on the thread running it,
+	 * so a batch arriving on any other thread came from another context.
+	 */
+	@Benchmark
+	@Threads(4)
+	public long createRunClose() {
+		Thread owner = Thread.currentThread();
+		long[] audioFrames = new long[1];
+		RBoy.Context context = RBoy.Context.create(ROM, false);
+		context.getEvents().setAudioBatch((samples, frames) -> {
+			if (Thread.currentThread() != owner) {
+				throw new AssertionError("Audio delivered to another context");
+			}
+
+			audioFrames[0] += frames;
+		});
+
+		long cycles = context.runFrames(FRAMES);
+		context.close();
+
+		try {
+			context.pollFrame();
+			throw new AssertionError("Closed context was not rejected");
+		} catch (IllegalStateException expected) {
+		}
+
+		if (audioFrames[0] == 0) {
+			throw new AssertionError("No audio delivered");
+		}
+
+		return cycles;
+	}
+
+	@State(Scope.Group)
+	public static class Shared {
+		volatile RBoy.Context context;
+
+		@Setup
+		public void setup() {
+			context = RBoy.Context.create(ROM, false);
+		}
+
+		@TearDown
+		public void tearDown() {
+			context.close();
+		}
+	}
+
+	/**
+	 * Runs frames while {@link #replace(Shared)} closes the context underneath.
+	 */
+	@Benchmark
+	@Group("closeWhileInUse")
+	@GroupThreads(2)
+	public long run(Shared shared) {
+		try {
+			return shared.context.runFrames(1);
+		} catch (IllegalStateException e) {
+			return -2;
+		}
+	}
+
+	@Benchmark
+	@Group("closeWhileInUse")
+	@GroupThreads(2)
+	public int poll(Shared shared) {
+		RBoy.Context context = shared.context;
+
+		try {
+			context.sendEvent(RBoy.Events.KEY_A_DOWN);
+			context.sendEvent(RBoy.Events.KEY_A_UP);
+			return context.pollFrame();
+		} catch (IllegalStateException e) {
+			return -2;
+		}
+	}
+
+	@Benchmark
+	@Group("closeWhileInUse")
+	@GroupThreads(1)
+	public void replace(Shared shared) {
+		RBoy.Context previous = shared.context;
+		shared.context = RBoy.Context.create(ROM, false);
+		previous.close();
+	}
+}
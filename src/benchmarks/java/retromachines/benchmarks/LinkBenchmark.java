@@ -0,0 +1,72 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second of two contexts running on their own threads, with and without a link cable between them.
+ * cpu_instrs writes every character of its results with SC=0x81, so when linked both contexts are masters and every
+ * transfer waits on the cable until the other end has run past its end, then reads 0xFF.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkBenchmark {
+	@State(Scope.Group)
+	public static class Cable {
+		@Param({"2048", "cpu_instrs"})
+		public String rom;
+		@Param({"false", "true"})
+		public boolean linked;
+
+		RBoy.Context left;
+		RBoy.Context right;
+
+		@Setup
+		public void setup() {
+			left = BenchmarkRoms.create(rom, 0);
+			right = BenchmarkRoms.create(rom, 0);
+
+			if (linked) {
+				left.connectLink(right);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			left.close();
+			right.close();
+		}
+	}
+
+	@Benchmark
+	@Group("pair")
+	@GroupThreads(1)
+	public long left(Cable cable) {
+		return cable.left.runFrames(1);
+	}
+
+	@Benchmark
+	@Group("pair")
+	@GroupThreads(1)
+	public long right(Cable cable) {
+		return cable.right.runFrames(1);
+	}
+}
@@ -0,0 +1,104 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.InputRecorder;
+import retromachines.rboy.InputReplay;
+import retromachines.rboy.RBoy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a minute of recorded play, failing the run if any frame hash differs from the recording.
+ * Reports the size of the log per hour of play as {@code logBytesPerHour} and the speed of the replay as {@code realTimeMultiple}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+	private static final int FRAMES = 3600;
+	// A key pressed twice a second, held for a few frames
+	private static final int PRESS_INTERVAL = 30;
+	private static final int PRESS_FRAMES = 4;
+	private static final int[][] KEYS = {
+		{RBoy.Events.KEY_LEFT_DOWN, RBoy.Events.KEY_LEFT_UP},
+		{RBoy.Events.KEY_UP_DOWN, RBoy.Events.KEY_UP_UP},
+		{RBoy.Events.KEY_RIGHT_DOWN, RBoy.Events.KEY_RIGHT_UP},
+		{RBoy.Events.KEY_DOWN_DOWN, RBoy.Events.KEY_DOWN_UP},
+		{RBoy.Events.KEY_A_DOWN, RBoy.Events.KEY_A_UP},
+	};
+
+	@Param({"2048", "cpu_instrs"})
+	public String rom;
+
+	private RBoy.Context context;
+	private Path log;
+	private double logBytesPerHour;
+
+	@Setup
+	public void setup() throws IOException {
+		context = BenchmarkRoms.create(rom, 60);
+		log = Files.createTempFile("retromachines", ".rbinput");
+
+		try (InputRecorder recorder = InputRecorder.start(context, rom, log)) {
+			for (int frame = 0; frame < FRAMES; frame++) {
+				int[] key = KEYS[frame / PRESS_INTERVAL % KEYS.length];
+
+				if (frame % PRESS_INTERVAL == 0) {
+					context.sendEvent(key[0]);
+				} else if (frame % PRESS_INTERVAL == PRESS_FRAMES) {
+					context.sendEvent(key[1]);
+				}
+
+				context.runFrames(1);
+				recorder.poll();
+			}
+
+			recorder.close();
+			logBytesPerHour = recorder.bytesPerHour();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Files.deleteIfExists(log);
+	}
+
+	@Benchmark
+	public long replay(Counters counters) throws IOException {
+		InputReplay.Result result = InputReplay.replay(context, log, rom);
+
+		if (result.checkpoints() < FRAMES / 60 - 1) {
+			throw new AssertionError("Only " + result.checkpoints() + " frame hashes were checked");
+		}
+
+		counters.logBytesPerHour = logBytesPerHour;
+		counters.realTimeMultiple = result.realTimeMultiple();
+		return result.cycles();
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public double logBytesPerHour;
+		public double realTimeMultiple;
+	}
+}
@@ -0,0 +1,103 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.library.CartridgeHeader;
+import retromachines.library.RomLibrary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Listing the ROM library when the ROM select screen first opens, over a directory of header only ROMs.
+ * The listing shown straight away comes from {@link RomLibrary#loadIndex()}, the scan after it runs in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RomLibraryBenchmark {
+	@Param({"100", "1000", "10000"})
+	public int roms;
+
+	private Path directory;
+	private Path indexFile;
+	private RomLibrary library;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("retromachines-roms");
+		indexFile = directory.resolve("index").resolve("rom_index.dat");
+		Path romDirectory = Files.createDirectories(directory.resolve("roms"));
+
+		for (int i = 0; i < roms; i++) {
+			byte[] rom = new byte[CartridgeHeader.START + CartridgeHeader.SIZE];
+			byte[] title = ("GAME " + i).getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(title, 0, rom, 0x134, title.length);
+			Files.write(romDirectory.resolve("game" + i + ".gb"), rom);
+		}
+
+		library = new RomLibrary(romDirectory, indexFile);
+		library.scan();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	/**
+	 * What the screen shows as it opens, from the index written by an earlier scan.
+	 */
+	@Benchmark
+	public List<RomLibrary.Entry> loadIndex() {
+		return library.loadIndex();
+	}
+
+	/**
+	 * A scan that finds nothing changed, only listing the directory and comparing sizes and modification times.
+	 */
+	@Benchmark
+	public List<RomLibrary.Entry> scanUnchanged() throws IOException {
+		return library.scan();
+	}
+
+	@State(Scope.Thread)
+	public static class Cold {
+		@Setup(Level.Invocation)
+		public void deleteIndex(RomLibraryBenchmark benchmark) throws IOException {
+			Files.deleteIfExists(benchmark.indexFile);
+		}
+	}
+
+	/**
+	 * The first scan, reading every header. Level.Invocation setup adds noise at the smaller sizes.
+	 */
+	@Benchmark
+	public List<RomLibrary.Entry> scanCold(Cold cold) throws IOException {
+		return library.scan();
+	}
+}
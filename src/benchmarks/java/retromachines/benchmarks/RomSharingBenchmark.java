@@ -0,0 +1,109 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resident memory per context when creating 50 contexts of the same ROM, reported by the {@code rssBytesPerInstance} counter.
+ * Without {@code shared} every context gets its own copy of the ROM, differing in its last bytes, which is how every
+ * context was created before ROM images were shared.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RomSharingBenchmark {
+	private static final int INSTANCES = 50;
+
+	@Param({"2048", "cpu_instrs"})
+	public String rom;
+	@Param({"true", "false"})
+	public boolean shared;
+
+	private byte[] romData;
+	// Keeps the copies of every iteration distinct, idle images stay cached for a while after being closed
+	private int copies = 0;
+	private final List<ByteBuffer> images = new ArrayList<>();
+	private final List<RBoy.Context> contexts = new ArrayList<>();
+
+	@Setup
+	public void setup() {
+		romData = BenchmarkRoms.load(rom);
+	}
+
+	@Setup(Level.Iteration)
+	public void prepare() {
+		for (int i = 0; i < (shared ? 1 : INSTANCES); i++) {
+			ByteBuffer image = ByteBuffer.allocateDirect(romData.length).put(romData).flip();
+
+			if (!shared) {
+				image.putInt(romData.length - 4, copies++);
+			}
+
+			images.add(image);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		contexts.forEach(RBoy.Context::close);
+		contexts.clear();
+		images.clear();
+	}
+
+	@Benchmark
+	public void create(Counters counters) {
+		long before = residentBytes();
+
+		for (int i = 0; i < INSTANCES; i++) {
+			contexts.add(RBoy.Context.create(images.get(shared ? 0 : i), false));
+		}
+
+		counters.rssBytesPerInstance = (residentBytes() - before) / INSTANCES;
+		counters.romCacheBytes = RBoy.getRomCacheStats().bytes();
+	}
+
+	// Linux only, 0 elsewhere
+	private static long residentBytes() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException ignored) {
+		}
+
+		return 0;
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long rssBytesPerInstance;
+		public long romCacheBytes;
+	}
+}
@@ -0,0 +1,80 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.RBoy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking and restoring save states, and resuming from one compared to booting the ROM from scratch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SaveStateBenchmark {
+	@Param({"2048", "cpu_instrs"})
+	public String rom;
+
+	private byte[] romData;
+	private RBoy.Context context;
+	private byte[] state;
+
+	@Setup
+	public void setup() {
+		romData = BenchmarkRoms.load(rom);
+		context = BenchmarkRoms.create(rom, 600);
+		state = context.saveState();
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public byte[] save() {
+		return context.saveState();
+	}
+
+	@Benchmark
+	public void load() {
+		context.loadState(state);
+	}
+
+	/**
+	 * A new emulator up to its first frame.
+	 */
+	@Benchmark
+	public long coldBoot() {
+		RBoy.Context boot = RBoy.Context.create(romData, false);
+		long cycles = boot.runFrames(1);
+		boot.close();
+		return cycles;
+	}
+
+	/**
+	 * A new emulator resumed from a save state, up to its first frame.
+	 */
+	@Benchmark
+	public long resume() {
+		RBoy.Context resumed = RBoy.Context.create(romData, false);
+		resumed.loadState(state);
+		long cycles = resumed.runFrames(1);
+		resumed.close();
+		return cycles;
+	}
+}
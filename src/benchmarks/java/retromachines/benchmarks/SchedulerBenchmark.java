@@ -0,0 +1,88 @@
+package retromachines.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import retromachines.rboy.EmulationScheduler;
+import retromachines.rboy.RBoy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate emulated frames per second of many unthrottled emulators sharing a worker per core,
+ * reported by the {@code frames} counter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class SchedulerBenchmark {
+	private static final long SAMPLE_MILLIS = 100;
+
+	@Param({"1", "4", "16", "64"})
+	public int instances;
+
+	private EmulationScheduler scheduler;
+	private final List<EmulationScheduler.Task> tasks = new ArrayList<>();
+
+	@Setup
+	public void setup() {
+		byte[] rom = BenchmarkRoms.load("2048");
+		scheduler = new EmulationScheduler(Runtime.getRuntime().availableProcessors());
+
+		for (int i = 0; i < instances; i++) {
+			RBoy.Context context = RBoy.Context.create(rom, false);
+			context.setSpeed(RBoy.UNTHROTTLED);
+			tasks.add(scheduler.schedule(context, EmulationScheduler.DEFAULT_PRIORITY));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (EmulationScheduler.Task task : tasks) {
+			task.cancel();
+			task.getContext().close();
+		}
+
+		scheduler.close();
+	}
+
+	@Benchmark
+	public void run(Counters counters) throws InterruptedException {
+		long before = totalFrames();
+		Thread.sleep(SAMPLE_MILLIS);
+		counters.frames += totalFrames() - before;
+	}
+
+	private long totalFrames() {
+		long frames = 0;
+
+		for (EmulationScheduler.Task task : tasks) {
+			frames += task.getFrames();
+		}
+
+		return frames;
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long frames;
+	}
+}
@@ -1,7 +1,5 @@
 package retromachines;
 
-import it.unimi.dsi.fastutil.bytes.ByteArrayPriorityQueue;
-import it.unimi.dsi.fastutil.bytes.BytePriorityQueue;
 import net.minecraft.client.sound.AbstractSoundInstance;
 import net.minecraft.client.sound.AudioStream;
 import net.minecraft.client.sound.SoundInstance;
@@ -9,17 +7,32 @@ import net.minecraft.client.sound.SoundLoader;
 import net.minecraft.sound.SoundCategory;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.Vec3d;
+import org.jetbrains.annotations.Nullable;
 import org.lwjgl.BufferUtils;
+import jdk.jfr.FlightRecorder;
+import retromachines.rboy.AudioRingBuffer;
+import retromachines.rboy.FlightEvents;
 import retromachines.rboy.RBoyEvents;
 
 import javax.sound.sampled.AudioFormat;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Plays the audio of a single context that was created without native audio.
+ */
 public class GameboySound extends AbstractSoundInstance {
-	public GameboySound(Vec3d pos) {
+	private final RBoyEvents events;
+	@Nullable
+	private volatile GameboySoundStream stream;
+
+	public GameboySound(Vec3d pos, RBoyEvents events) {
 		super(new Identifier("retromachines", "gameboy"), SoundCategory.RECORDS, SoundInstance.createRandom());
+		this.events = events;
 		x = pos.x;
 		y = pos.y;
 		z = pos.z;
@@ -27,67 +40,91 @@ public class GameboySound extends AbstractSoundInstance {
 
 	@Override
 	public CompletableFuture<AudioStream> getAudioStream(SoundLoader loader, Identifier id, boolean repeatInstantly) {
-		return CompletableFuture.completedFuture(new GameboySoundStream());
+		GameboySoundStream stream = new GameboySoundStream(events);
+		this.stream = stream;
+		return CompletableFuture.completedFuture(stream);
+	}
+
+	/**
+	 * The stream playing the audio, once the sound engine has started it.
+	 */
+	@Nullable
+	public GameboySoundStream getStream() {
+		return stream;
 	}
 
 	public static class GameboySoundStream implements AudioStream {
-		private static final AudioFormat FORMAT = new AudioFormat(44100, 8, 1, false, false);
+		private static final int SAMPLE_RATE = 44100;
+		private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 2, true, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+		private static final int BYTES_PER_FRAME = 4;
+		// Roughly 90ms, anything the emulator produces beyond that is dropped rather than delaying the audio
+		private static final int MAX_BUFFERED_FRAMES = 4096;
+		// Roughly 12ms, handed out even when less is queued, padded with silence, so playback never runs dry
+		private static final int MIN_CHUNK_FRAMES = 512;
 
-		private static final BytePriorityQueue leftQueue = new ByteArrayPriorityQueue();
-		private static final BytePriorityQueue rightQueue = new ByteArrayPriorityQueue();
+		// Every emulator playing through java audio has its own stream
+		private static final Set<GameboySoundStream> OPEN = ConcurrentHashMap.newKeySet();
 
 		static {
-			// Maybe need to alter jni.rs underflowed?
-			RBoyEvents.AUDIO_DATA.register((leftChannel, rightChannel) -> {
-				synchronized (GameboySoundStream.class) {
-					for (float v : leftChannel) {
-						if (leftQueue.size() >= FORMAT.getSampleRate()) {
-							// Make sure we dont get a massive buffer, only store 1 second of data at most
-							break;
-						}
-						leftQueue.enqueue((byte) (v * 255));
-					}
-
-					for (float v : rightChannel) {
-						if (rightQueue.size() >= FORMAT.getSampleRate()) {
-							break;
-						}
-						rightQueue.enqueue((byte) (v * 255));
-					}
+			FlightRecorder.addPeriodicEvent(FlightEvents.AudioBuffer.class, () -> {
+				for (GameboySoundStream stream : OPEN) {
+					AudioRingBuffer ringBuffer = stream.ringBuffer;
+					FlightEvents.AudioBuffer event = new FlightEvents.AudioBuffer();
+					event.queuedFrames = ringBuffer.available();
+					event.capacity = ringBuffer.capacity();
+					event.queuedNanos = framesToNanos(event.queuedFrames);
+					event.underruns = ringBuffer.underruns();
+					event.overruns = ringBuffer.overruns();
+					event.commit();
 				}
 			});
 		}
 
+		private final RBoyEvents events;
+		private final AudioRingBuffer ringBuffer = new AudioRingBuffer(MAX_BUFFERED_FRAMES);
+		private ByteBuffer outBuffer = BufferUtils.createByteBuffer(MAX_BUFFERED_FRAMES * BYTES_PER_FRAME);
+
+		public GameboySoundStream(RBoyEvents events) {
+			this.events = events;
+			events.setAudioBatch(ringBuffer::write);
+			OPEN.add(this);
+		}
+
+		public static long framesToNanos(int frames) {
+			return frames * 1_000_000_000L / SAMPLE_RATE;
+		}
+
+		public AudioRingBuffer getRingBuffer() {
+			return ringBuffer;
+		}
+
 		@Override
 		public AudioFormat getFormat() {
 			return FORMAT;
 		}
 
+		/**
+		 * Minecraft asks for a second of audio at a time and queues several buffers up front, so only what the emulator has
+		 * produced is handed out, to keep the latency bounded by the ring buffer rather than by the requested size.
+		 */
 		@Override
 		public ByteBuffer getBuffer(int size) {
-			// Not really too sure what to do here, see: https://github.com/mvdnes/rboy/blob/master/src/main.rs#L454C52-L454C52
-			synchronized (GameboySoundStream.class) {
-				ByteBuffer outBuffer = BufferUtils.createByteBuffer(size);
-
-				assert leftQueue.size() == rightQueue.size();
-
-				int outLen = Math.min(size / 2, leftQueue.size());
+			int frames = Math.min(size / BYTES_PER_FRAME, Math.max(ringBuffer.available(), MIN_CHUNK_FRAMES));
 
-				for (int i = 0; i < outLen; i++) {
-					// each sample needs to be 8 bits (2 bytes)?
-					outBuffer.put(leftQueue.dequeueByte());
-					outBuffer.put(rightQueue.dequeueByte()); // Doesnt seem to stop if I comment this out
-				}
-
-				System.out.println(leftQueue.size());
-
-				return outBuffer;
+			if (outBuffer.capacity() < frames * BYTES_PER_FRAME) {
+				outBuffer = BufferUtils.createByteBuffer(frames * BYTES_PER_FRAME);
 			}
+
+			// The returned buffer is copied into an OpenAL buffer before the next call, so it can be reused
+			outBuffer.clear();
+			ringBuffer.read(outBuffer, frames);
+			return outBuffer.flip();
 		}
 
 		@Override
 		public void close() throws IOException {
-			System.out.println("close");
+			events.setAudioBatch(null);
+			OPEN.remove(this);
 		}
 	}
 }
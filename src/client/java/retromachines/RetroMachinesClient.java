@@ -1,11 +1,22 @@
 package retromachines;
 
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.fabricmc.fabric.api.client.rendering.v1.HudRenderCallback;
 import net.fabricmc.fabric.api.event.player.UseItemCallback;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.TypedActionResult;
 import retromachines.gui.GameBoyScreen;
+import retromachines.gui.FrameBroadcaster;
+import retromachines.gui.GameboySessions;
+import retromachines.gui.SpectatedFrames;
+import retromachines.gui.SpectatorOverlay;
+import retromachines.stream.FrameStreamPacket;
+import retromachines.stream.StreamControlPacket;
 
 public class RetroMachinesClient implements ClientModInitializer {
 	@Override
@@ -24,5 +35,15 @@ public class RetroMachinesClient implements ClientModInitializer {
 
 			return TypedActionResult.pass(stack);
 		});
+
+		ClientPlayNetworking.registerGlobalReceiver(FrameStreamPacket.TYPE, (packet, player, responseSender) -> SpectatedFrames.receive(packet));
+		ClientPlayNetworking.registerGlobalReceiver(StreamControlPacket.TYPE, (packet, player, responseSender) -> FrameBroadcaster.receive(packet));
+		ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> client.execute(() -> {
+			SpectatedFrames.clear();
+			FrameBroadcaster.clear();
+		}));
+		HudRenderCallback.EVENT.register((context, tickDelta) -> SpectatorOverlay.render(context));
+		ClientTickEvents.END_CLIENT_TICK.register(client -> GameboySessions.tick());
+		ClientLifecycleEvents.CLIENT_STOPPING.register(client -> GameboySessions.hibernateAll());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package retromachines.gui;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which rows of a frame changed, as reported by the emulator per scanline, and merges them into spans to upload.
+ * Does not touch GL so it can be used and tested on its own.
+ */
+public final class DirtyRows {
+	private final int rows;
+	private final long[] bitmap;
+
+	public DirtyRows(int rows) {
+		this.rows = rows;
+		this.bitmap = new long[(rows + 63) / 64];
+	}
+
+	/**
+	 * The backing bitmap, one bit per row. Filled directly by {@link retromachines.rboy.RBoy.Context#getFrameDirtyRows(long[])}.
+	 */
+	public long[] bitmap() {
+		return bitmap;
+	}
+
+	public void markAll() {
+		Arrays.fill(bitmap, -1L);
+	}
+
+	public void mark(int row) {
+		bitmap[row >>> 6] |= 1L << row;
+	}
+
+	public void clear() {
+		Arrays.fill(bitmap, 0L);
+	}
+
+	public boolean isDirty(int row) {
+		return row < rows && (bitmap[row >>> 6] & (1L << row)) != 0;
+	}
+
+	/**
+	 * Passes each run of dirty rows to the consumer, in order, then clears the bitmap.
+	 *
+	 * @param maxGap runs separated by at most this many clean rows are merged, uploading a few clean rows is cheaper than an extra call
+	 * @return the number of spans passed to the consumer
+	 */
+	public int drainSpans(int maxGap, SpanConsumer consumer) {
+		int spans = 0;
+		int start = -1;
+		int end = -1;
+
+		for (int row = nextDirty(0); row >= 0; row = nextDirty(row + 1)) {
+			if (start >= 0 && row - end - 1 <= maxGap) {
+				end = row;
+				continue;
+			}
+
+			if (start >= 0) {
+				consumer.accept(start, end - start + 1);
+				spans++;
+			}
+
+			start = row;
+			end = row;
+		}
+
+		if (start >= 0) {
+			consumer.accept(start, end - start + 1);
+			spans++;
+		}
+
+		clear();
+		return spans;
+	}
+
+	private int nextDirty(int from) {
+		for (int word = from >>> 6; from < rows && word < bitmap.length; word++, from = word << 6) {
+			long bits = bitmap[word] & (-1L << from);
+
+			if (bits != 0) {
+				int row = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return row < rows ? row : -1;
+			}
+		}
+
+		return -1;
+	}
+
+	@FunctionalInterface
+	public interface SpanConsumer {
+		void accept(int firstRow, int rowCount);
+	}
+}
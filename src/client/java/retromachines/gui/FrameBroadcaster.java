@@ -0,0 +1,113 @@
+package retromachines.gui;
+
+import io.netty.buffer.Unpooled;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.minecraft.network.PacketByteBuf;
+import org.lwjgl.system.MemoryUtil;
+import retromachines.rboy.FrameFormat;
+import retromachines.rboy.RBoy;
+import retromachines.stream.FrameCodec;
+import retromachines.stream.FrameUploadPacket;
+import retromachines.stream.StreamControlPacket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the frames of the game being played to the server, which relays them to the players nearby, see
+ * {@link retromachines.stream.FrameRelay}. Frames are only sent while someone is watching, at most one per server tick.
+ * Only accessed from the client thread.
+ */
+public final class FrameBroadcaster {
+	/**
+	 * Frames sent between keyframes, 5 seconds at the rate frames are sent.
+	 */
+	public static final int KEYFRAME_INTERVAL = 100;
+	private static final long SEND_INTERVAL_NANOS = 50_000_000L;
+
+	private static final PacketByteBuf ENCODED = new PacketByteBuf(Unpooled.buffer());
+	private static FrameCodec.Encoder encoder;
+	// RGB copy of the frame, when the game hands out indexed frames
+	private static ByteBuffer expanded;
+	// Whether the server knows about the stream, it is told with the first frame
+	private static boolean streaming = false;
+	private static boolean watched = false;
+	private static long lastSent;
+
+	private FrameBroadcaster() {
+	}
+
+	/**
+	 * Offers the latest frame of the game being played, sent when it is time to.
+	 */
+	static void offer(ByteBuffer frame, FrameFormat format) {
+		long now = System.nanoTime();
+
+		if (streaming && (!watched || now - lastSent < SEND_INTERVAL_NANOS)) {
+			return;
+		}
+
+		if (!ClientPlayNetworking.canSend(FrameUploadPacket.TYPE)) {
+			// The server does not have the mod
+			return;
+		}
+
+		if (encoder == null) {
+			encoder = new FrameCodec.Encoder(KEYFRAME_INTERVAL);
+		}
+
+		ByteBuffer rgb = frame;
+
+		if (format != FrameFormat.RGB) {
+			if (expanded == null) {
+				expanded = MemoryUtil.memAlloc(RBoy.FRAME_SIZE);
+			}
+
+			format.expandRows(frame, expanded, 0, FrameCodec.HEIGHT);
+			rgb = expanded;
+		}
+
+		ENCODED.clear();
+		encoder.encode(rgb, ENCODED);
+
+		if (ENCODED.readableBytes() > FrameUploadPacket.MAX_FRAME_SIZE) {
+			// Only raw frames get this large, the frame after is a keyframe so watchers pick up from there
+			encoder.requestKeyframe();
+			return;
+		}
+
+		byte[] data = new byte[ENCODED.readableBytes()];
+		ENCODED.readBytes(data);
+		ClientPlayNetworking.send(new FrameUploadPacket(data));
+		streaming = true;
+		lastSent = now;
+	}
+
+	/**
+	 * Ends the stream, when the game stops being played.
+	 */
+	static void stop() {
+		if (streaming && ClientPlayNetworking.canSend(FrameUploadPacket.TYPE)) {
+			ClientPlayNetworking.send(FrameUploadPacket.end());
+		}
+
+		clear();
+	}
+
+	public static void receive(StreamControlPacket packet) {
+		watched = packet.watched();
+
+		if (watched && encoder != null) {
+			encoder.requestKeyframe();
+		}
+	}
+
+	/**
+	 * Forgets the stream without telling the server, once disconnected from it.
+	 */
+	public static void clear() {
+		// The next stream starts from a keyframe
+		encoder = null;
+		streaming = false;
+		watched = false;
+	}
+}
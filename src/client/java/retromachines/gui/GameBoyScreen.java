@@ -3,6 +3,7 @@ package retromachines.gui;
 import com.mojang.logging.LogUtils;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.DrawContext;
 import net.minecraft.client.gui.screen.Screen;
@@ -18,19 +19,26 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.util.tinyfd.TinyFileDialogs;
 import org.slf4j.Logger;
 import retromachines.GameBoyRom;
 import retromachines.GameboySound;
+import retromachines.SaveStates;
+import retromachines.rboy.AudioRingBuffer;
+import retromachines.rboy.EmulationScheduler;
+import retromachines.rboy.FlightEvents;
+import retromachines.rboy.FrameFormat;
+import retromachines.rboy.InputLatency;
+import retromachines.rboy.InputRecorder;
 import retromachines.rboy.RBoy;
+import retromachines.rboy.SaveRam;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
@@ -48,28 +56,42 @@ public class GameBoyScreen extends Screen {
 	/**
 	 * Disable to process the audio within java
 	 */
-	private static final boolean USE_NATIVE_AUDIO = true;
+	private static final boolean USE_NATIVE_AUDIO = false;
+	/**
+	 * Have the emulator hand over palette indices rather than RGB, expanded here for the rows that changed
+	 */
+	private static final boolean USE_INDEXED_FRAMES = true;
+	/**
+	 * Native memory kept for rewinding each game, and how many frames apart its snapshots are
+	 */
+	private static final long REWIND_BUDGET = 16 * 1024 * 1024;
+	private static final int REWIND_INTERVAL = 4;
+	/**
+	 * Native memory of a context besides its rewind history: emulated memory, frame buffers and audio
+	 */
+	private static final long CONTEXT_BYTES = 1024 * 1024;
+	/**
+	 * Record the inputs of every game played to .retromachines/recordings, to be replayed with {@link retromachines.rboy.InputReplay}
+	 */
+	private static final boolean RECORD_INPUTS = Boolean.getBoolean("retromachines.recordInputs");
 
 	@Nullable
 	private Gameboy gameboy;
+	private final GPUTexture gpuTexture = new GPUTexture();
+	private final MetricsOverlay metricsOverlay = new MetricsOverlay();
 
 	private IntSet pressedKeys = new IntOpenHashSet();
 	private boolean selectingRom = false;
-	private AtomicReference<String> selectedPath = new AtomicReference<>();
+	private AtomicReference<GameBoyRom> selectedRom = new AtomicReference<>();
 
 	public GameBoyScreen(GameBoyRom rom) {
 		super(Text.literal("Gameboy"));
 
-		gameboy = new Gameboy(rom);
+		gameboy = GameboySessions.open(rom);
 
 		// TODO do we need to close this?
 		TextureManager textureManager = MinecraftClient.getInstance().getTextureManager();
-		textureManager.registerTexture(GPU_TEXTURE, new GPUTexture());
-
-		if (!USE_NATIVE_AUDIO) {
-			MinecraftClient client = MinecraftClient.getInstance();
-			client.getSoundManager().play(new GameboySound(client.player.getPos()));
-		}
+		textureManager.registerTexture(GPU_TEXTURE, gpuTexture);
 	}
 
 	@Override
@@ -80,44 +102,51 @@ public class GameBoyScreen extends Screen {
 	@Override
 	public void close() {
 		if (gameboy != null) {
-			try {
-				gameboy.close();
-				gameboy = null;
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			releaseKeys();
+			metricsOverlay.release();
+			FrameBroadcaster.stop();
+			GameboySessions.suspend(gameboy);
+			gameboy = null;
 		}
 
 		super.close();
 	}
 
+	// Keys held when the screen goes away would otherwise stay down in the suspended game
+	private void releaseKeys() {
+		for (KeyMap keyMap : KeyMap.values()) {
+			if (pressedKeys.remove(keyMap.keyDownEvent)) {
+				gameboy.sendInput(keyMap.keyUpEvent);
+			}
+		}
+	}
+
 	@Override
 	public void tick() {
 		super.tick();
 
-		final String path = selectedPath.getAndSet(null);
+		final GameBoyRom rom = selectedRom.getAndSet(null);
 
-		if (path == null) {
+		if (rom == null) {
 			return;
 		}
 
-		Path rom = Paths.get(path);
-
-		if (Files.notExists(rom)) {
-			LOGGER.error("Failed to load ROM from {}", path);
+		if (rom instanceof GameBoyRom.LocalRom localRom && Files.notExists(localRom.path())) {
+			LOGGER.error("Failed to load ROM from {}", localRom.path());
 			return;
 		}
 
 		if (gameboy != null) {
-			try {
-				gameboy.close();
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			releaseKeys();
+			metricsOverlay.release();
+			FrameBroadcaster.stop();
+			GameboySessions.suspend(gameboy);
+			gameboy = null;
 		}
 
 		try {
-			gameboy = new Gameboy(new GameBoyRom.LocalRom(rom));
+			gameboy = GameboySessions.open(rom);
+			gpuTexture.invalidate();
 		} catch (Throwable e) {
 			e.printStackTrace();
 
@@ -174,28 +203,16 @@ public class GameBoyScreen extends Screen {
 			return;
 		}
 
-		byte[] gpuData = gameboy.getContext().getGpuData();
-
-		MinecraftClient.getInstance().getTextureManager().bindTexture(GPU_TEXTURE);
-
-		ByteBuffer buffer = BufferUtils.createByteBuffer(gpuData.length);
-		buffer.put(gpuData).flip();
+		if (gameboy.pollFrame(gpuTexture.dirtyRows())) {
+			long start = metricsOverlay.isVisible() ? System.nanoTime() : 0;
+			gpuTexture.upload(gameboy.getFrame(), gameboy.getFrameFormat());
 
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-
-		GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, GL11.GL_ZERO);
-		GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_PIXELS, GL11.GL_ZERO);
-		GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_ROWS, GL11.GL_ZERO);
+			if (metricsOverlay.isVisible()) {
+				metricsOverlay.recordUpload(System.nanoTime() - start);
+			}
 
-		GL11.glTexImage2D(
-			GL11.GL_TEXTURE_2D,
-			0,
-			GL30.GL_RGB8, screenWidth, screenHeight,
-			0,
-			GL11.GL_RGB,
-			GL11.GL_UNSIGNED_BYTE,
-			buffer);
+			FrameBroadcaster.offer(gameboy.getFrame(), gameboy.getFrameFormat());
+		}
 
 		context.drawTexture(
 			GPU_TEXTURE,
@@ -208,12 +225,19 @@ public class GameBoyScreen extends Screen {
 		if (hoveringOpenButton) {
 			context.drawTooltip(MinecraftClient.getInstance().textRenderer, Text.literal("Open ROM"), mouseX, mouseY);
 		}
+
+		metricsOverlay.render(context, textRenderer, gameboy.getContext(), gameboy.getAudioBuffer());
 	}
 
 	@Override
 	public boolean mouseClicked(double mouseX, double mouseY, int button) {
 		if (hoveringOpenButton(mouseX, mouseY)) {
-			selectRom();
+			if (gameboy != null) {
+				releaseKeys();
+			}
+
+			client.setScreen(new RomSelectScreen(this, selectedRom::set, this::selectRom));
+			return true;
 		}
 		return super.mouseClicked(mouseX, mouseY, button);
 	}
@@ -231,11 +255,16 @@ public class GameBoyScreen extends Screen {
 
 	@Override
 	public boolean keyPressed(int keyCode, int scanCode, int modifiers) {
+		if (keyCode == GLFW.GLFW_KEY_F6) {
+			metricsOverlay.toggle(gameboy != null ? gameboy.getContext() : null);
+			return true;
+		}
+
 		KeyMap keyMap = KeyMap.get(keyCode);
 
 		if (keyMap != null && gameboy != null) {
 			pressedKeys.add(keyMap.keyDownEvent);
-			gameboy.getContext().sendEvent(keyMap.keyDownEvent);
+			gameboy.sendInput(keyMap.keyDownEvent);
 			return true;
 		}
 
@@ -248,7 +277,7 @@ public class GameBoyScreen extends Screen {
 
 		if (keyMap != null && gameboy != null) {
 			pressedKeys.remove(keyMap.keyDownEvent);
-			gameboy.getContext().sendEvent(keyMap.keyUpEvent);
+			gameboy.sendInput(keyMap.keyUpEvent);
 			return true;
 		}
 
@@ -261,7 +290,7 @@ public class GameBoyScreen extends Screen {
 			return;
 		}
 
-		selectedPath.set(paths.get(0).toAbsolutePath().toString());
+		selectedRom.set(new GameBoyRom.LocalRom(paths.get(0).toAbsolutePath()));
 	}
 
 	private void selectRom() {
@@ -290,39 +319,226 @@ public class GameBoyScreen extends Screen {
 				return;
 			}
 
-			selectedPath.set(path);
+			selectedRom.set(new GameBoyRom.LocalRom(Paths.get(path)));
 		});
 	}
 
-	private static class Gameboy implements AutoCloseable {
+	/**
+	 * A game and its emulator, outliving the screen while suspended in {@link GameboySessions}.
+	 */
+	static class Gameboy implements AutoCloseable {
 		private final RBoy.Context context;
-		private final Thread gameboyThread;
+		private final EmulationScheduler.Task task;
+		// View over the native frame memory, positioned at the latest frame
+		private final ByteBuffer frameBuffer;
+		private FrameFormat frameFormat = FrameFormat.RGB;
+		private final String saveStateKey;
+		@Nullable
+		private final SaveRam saveRam;
+		private final InputLatency inputLatency = new InputLatency();
+		@Nullable
+		private GameboySound sound;
+		@Nullable
+		private final InputRecorder recorder;
+		private final boolean restored;
+
+		Gameboy(GameBoyRom rom, ByteBuffer romData, String saveStateKey) {
+			context = RBoy.Context.create(romData, USE_NATIVE_AUDIO);
+			this.saveStateKey = saveStateKey;
+			restored = loadSavedState();
+			// Attached after the state is loaded, so a save file flushed after the state was written keeps its progress
+			saveRam = openSaveRam(rom);
+
+			context.setIndexedFrames(USE_INDEXED_FRAMES);
+			context.setRewind(REWIND_BUDGET, REWIND_INTERVAL);
+			frameBuffer = context.getFrameBuffer();
+			frameBuffer.limit(RBoy.FRAME_SIZE);
+			recorder = RECORD_INPUTS ? startRecording() : null;
+
+			task = EmulationScheduler.shared().schedule(context, EmulationScheduler.DEFAULT_PRIORITY);
+			startSound();
+		}
 
-		public Gameboy(GameBoyRom rom) {
-			try {
-				context = RBoy.Context.create(rom.loadRom(), USE_NATIVE_AUDIO);
-			} catch (IOException e) {
-				throw new UncheckedIOException("Failed to load gameboy rom", e);
+		/**
+		 * Stops running the game and its sound, leaving it in memory to be resumed.
+		 */
+		public void suspend() {
+			task.pause();
+			stopSound();
+		}
+
+		public void resume() {
+			startSound();
+			task.resume();
+		}
+
+		/**
+		 * Whether the game continued from its save state on disk rather than booting.
+		 */
+		public boolean isRestored() {
+			return restored;
+		}
+
+		public String getSaveStateKey() {
+			return saveStateKey;
+		}
+
+		/**
+		 * Roughly the native memory held for the game while it is kept in memory.
+		 */
+		public long memoryBytes() {
+			return CONTEXT_BYTES + context.getRewindStats().bytesUsed();
+		}
+
+		private void startSound() {
+			if (!USE_NATIVE_AUDIO && sound == null) {
+				MinecraftClient client = MinecraftClient.getInstance();
+				sound = new GameboySound(client.player.getPos(), context.getEvents());
+				client.getSoundManager().play(sound);
 			}
+		}
 
-			gameboyThread = new Thread(context::runCpu);
-			gameboyThread.setName("RetroMachines: Gameboy");
-			gameboyThread.setDaemon(true);
-			gameboyThread.start();
+		private void stopSound() {
+			if (sound != null) {
+				MinecraftClient.getInstance().getSoundManager().stop(sound);
+				sound = null;
+			}
 		}
 
 		public RBoy.Context getContext() {
 			return context;
 		}
 
+		@Nullable
+		public AudioRingBuffer getAudioBuffer() {
+			GameboySound.GameboySoundStream stream = sound != null ? sound.getStream() : null;
+			return stream != null ? stream.getRingBuffer() : null;
+		}
+
+		/**
+		 * Sends an event from the key map, measuring the latency of game keys.
+		 */
+		public void sendInput(int event) {
+			if (event <= RBoy.Events.KEY_START_UP) {
+				context.sendInput(event, inputLatency.keyEvent());
+			} else {
+				context.sendEvent(event);
+			}
+		}
+
+		/**
+		 * Moves {@link #getFrame()} to the latest frame and fills in the rows that changed.
+		 *
+		 * @return false when the emulator has not produced a new frame since the last poll, the previous frame remains current
+		 */
+		public boolean pollFrame(DirtyRows dirtyRows) {
+			int offset = context.pollFrame();
+
+			if (offset < 0) {
+				return false;
+			}
+
+			frameBuffer.limit(offset + RBoy.FRAME_SIZE).position(offset);
+			frameFormat = context.getFrameFormat();
+			context.getFrameDirtyRows(dirtyRows.bitmap());
+			inputLatency.frameShown(context.getFrameInputSequence());
+
+			if (recorder != null) {
+				recorder.poll();
+			}
+
+			return true;
+		}
+
+		public ByteBuffer getFrame() {
+			return frameBuffer;
+		}
+
+		public FrameFormat getFrameFormat() {
+			return frameFormat;
+		}
+
+		@Nullable
+		private SaveRam openSaveRam(GameBoyRom rom) {
+			Path path = GameBoyRom.saveFile(saveStateKey);
+
+			try {
+				Path legacy = rom.legacySaveFile();
+
+				if (Files.notExists(path) && Files.exists(legacy)) {
+					// Copied rather than moved, another ROM of the same file name may have been using it too
+					Files.createDirectories(path.getParent());
+					Files.copy(legacy, path);
+					LOGGER.info("Carried over save file {} to {}", legacy, path);
+				}
+
+				return SaveRam.open(context, path);
+			} catch (IOException e) {
+				LOGGER.warn("Could not open save file {}, progress will not be kept", path, e);
+				return null;
+			}
+		}
+
+		@Nullable
+		private InputRecorder startRecording() {
+			Path path = FabricLoader.getInstance().getGameDir().resolve(".retromachines").resolve("recordings")
+				.resolve(saveStateKey + "-" + System.currentTimeMillis() + ".rbinput");
+
+			try {
+				return InputRecorder.start(context, saveStateKey, path);
+			} catch (IOException e) {
+				LOGGER.warn("Could not record inputs to {}", path, e);
+				return null;
+			}
+		}
+
+		/**
+		 * Continues from where the game was last closed, if it has been played before.
+		 *
+		 * @return whether a save state was loaded
+		 */
+		private boolean loadSavedState() {
+			try {
+				byte[] state = SaveStates.load(saveStateKey);
+
+				if (state != null) {
+					context.loadState(state);
+					return true;
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				LOGGER.warn("Could not resume from save state, starting from scratch", e);
+			}
+
+			return false;
+		}
+
 		@Override
 		public void close() throws Exception {
-			context.sendEvent(RBoy.Events.STOP);
-			try {
-				gameboyThread.join(Duration.ofSeconds(10).toMillis());
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+			// Take the context off the scheduler before it is closed
+			task.cancel();
+
+			if (recorder != null) {
+				recorder.close();
+				LOGGER.info("Recorded {} emulated seconds of inputs in {} bytes ({} bytes per hour)",
+					recorder.getCycles() / RBoy.CLOCK_RATE, recorder.getBytes(), Math.round(recorder.bytesPerHour()));
+			}
+
+			if (saveRam != null) {
+				saveRam.close();
+				LOGGER.debug("Flushed {} bytes of save RAM", saveRam.getBytesFlushed());
 			}
+
+			RBoy.RewindStats rewind = context.getRewindStats();
+			LOGGER.debug("Rewind held {}s of history in {} bytes ({} bytes/s), snapshots cost {}ns per frame",
+				rewind.historySeconds(), rewind.bytesUsed(), rewind.bytesPerSecond(), rewind.captureNanosPerFrame());
+			LOGGER.debug("Input to frame latency: {}", inputLatency);
+
+			stopSound();
+
+			// Stopped first so the saved state is the one the game ends on
+			context.stop();
+			SaveStates.save(saveStateKey, context.saveState());
+			context.close();
 		}
 	}
 
@@ -334,7 +550,9 @@ public class GameBoyScreen extends Screen {
 		LEFT(GLFW.GLFW_KEY_LEFT, RBoy.Events.KEY_LEFT_DOWN, RBoy.Events.KEY_LEFT_UP),
 		RIGHT(GLFW.GLFW_KEY_RIGHT, RBoy.Events.KEY_RIGHT_DOWN, RBoy.Events.KEY_RIGHT_UP),
 		SELECT(GLFW.GLFW_KEY_SPACE, RBoy.Events.KEY_SELECT_DOWN, RBoy.Events.KEY_SELECT_UP),
-		START(GLFW.GLFW_KEY_ENTER, RBoy.Events.KEY_START_DOWN, RBoy.Events.KEY_START_UP)
+		START(GLFW.GLFW_KEY_ENTER, RBoy.Events.KEY_START_DOWN, RBoy.Events.KEY_START_UP),
+		REWIND(GLFW.GLFW_KEY_BACKSPACE, RBoy.Events.REWIND_START, RBoy.Events.REWIND_STOP),
+		FAST_FORWARD(GLFW.GLFW_KEY_TAB, RBoy.Events.SPEED_UP, RBoy.Events.SPEED_DOWN)
 		;
 
 		@MagicConstant(valuesFromClass = GLFW.class)
@@ -368,6 +586,83 @@ public class GameBoyScreen extends Screen {
 	}
 
 	private static class GPUTexture extends AbstractTexture {
+		private static final int ROW_BYTES = screenWidth * 3;
+		// Uploading a couple of unchanged rows is cheaper than an extra glTexSubImage2D call
+		private static final int MAX_ROW_GAP = 2;
+
+		private final DirtyRows dirtyRows = new DirtyRows(screenHeight);
+		// Indexed frames are expanded into here before being uploaded
+		private final ByteBuffer expanded = BufferUtils.createByteBuffer(RBoy.FRAME_SIZE);
+		private boolean allocated = false;
+		private boolean needsFullUpload = true;
+		private int uploadedRows;
+
+		public DirtyRows dirtyRows() {
+			return dirtyRows;
+		}
+
+		/**
+		 * The next upload replaces every row, used when the frame source changes.
+		 */
+		public void invalidate() {
+			needsFullUpload = true;
+		}
+
+		public void upload(ByteBuffer frame, FrameFormat format) {
+			FlightEvents.TextureUpload event = new FlightEvents.TextureUpload();
+			event.begin();
+			bindTexture();
+
+			if (!allocated) {
+				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+				GL11.glTexImage2D(
+					GL11.GL_TEXTURE_2D,
+					0,
+					GL30.GL_RGB8, screenWidth, screenHeight,
+					0,
+					GL11.GL_RGB,
+					GL11.GL_UNSIGNED_BYTE,
+					(ByteBuffer) null);
+				allocated = true;
+				needsFullUpload = true;
+			}
+
+			if (needsFullUpload) {
+				dirtyRows.markAll();
+				needsFullUpload = false;
+			}
+
+			GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, GL11.GL_ZERO);
+			GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_PIXELS, GL11.GL_ZERO);
+			GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_ROWS, GL11.GL_ZERO);
+
+			ByteBuffer rgb = format == FrameFormat.RGB ? frame : expanded;
+			long address = MemoryUtil.memAddress(rgb);
+			uploadedRows = 0;
+			dirtyRows.drainSpans(MAX_ROW_GAP, (firstRow, rowCount) -> {
+				uploadedRows += rowCount;
+
+				if (rgb != frame) {
+					format.expandRows(frame, rgb, firstRow, rowCount);
+				}
+
+				GL11.nglTexSubImage2D(
+					GL11.GL_TEXTURE_2D,
+					0,
+					0, firstRow, screenWidth, rowCount,
+					GL11.GL_RGB,
+					GL11.GL_UNSIGNED_BYTE,
+					address + (long) firstRow * ROW_BYTES);
+			});
+
+			if (event.shouldCommit()) {
+				event.format = format.name();
+				event.rows = uploadedRows;
+				event.commit();
+			}
+		}
+
 		@Override
 		public void load(ResourceManager manager) throws IOException {
 		}
@@ -0,0 +1,241 @@
+package retromachines.gui;
+
+import com.mojang.logging.LogUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import retromachines.GameBoyRom;
+import retromachines.SaveStates;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Games whose screen has been closed, kept in memory paused so they resume instantly, one per ROM.
+ * Games left idle for too long, or the least recently used once over the memory budget, are hibernated:
+ * saved to a save state on disk and closed, to be restored from it when opened again. Only accessed from the client thread.
+ */
+public final class GameboySessions {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final long IDLE_TIMEOUT_NANOS = 5 * 60 * 1_000_000_000L;
+	private static final long MEMORY_BUDGET = 64 * 1024 * 1024;
+	// Least recently suspended first
+	private static final Map<String, Suspended> SUSPENDED = new LinkedHashMap<>();
+	// Keys of ROMs opened before, so a suspended game is found without reading and hashing its ROM again
+	private static final Map<GameBoyRom, CachedKey> KEYS = new HashMap<>();
+	// The game being played, outside the pool until suspended
+	@Nullable
+	private static GameBoyScreen.Gameboy active;
+
+	private static final Latency MEMORY = new Latency("memory");
+	private static final Latency DISK = new Latency("disk");
+
+	private GameboySessions() {
+	}
+
+	/**
+	 * Resumes the game of the ROM if it is suspended, otherwise starts it from its save state or boots it.
+	 * A ROM opened before is looked up by its cached key first, only mapping and hashing it when that misses.
+	 */
+	static GameBoyScreen.Gameboy open(GameBoyRom rom) {
+		long start = System.nanoTime();
+		String cachedKey = cachedKey(rom);
+		Suspended suspended = cachedKey != null ? SUSPENDED.remove(cachedKey) : null;
+
+		if (suspended != null) {
+			suspended.gameboy.resume();
+			active = suspended.gameboy;
+			MEMORY.record(System.nanoTime() - start);
+			return suspended.gameboy;
+		}
+
+		ByteBuffer romData;
+
+		try {
+			romData = rom.mapRom();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to load gameboy rom", e);
+		}
+
+		String key = SaveStates.key(romData);
+		cacheKey(rom, key);
+		// Opened some other way before, such as from a different path
+		suspended = SUSPENDED.remove(key);
+
+		if (suspended != null) {
+			suspended.gameboy.resume();
+			active = suspended.gameboy;
+			MEMORY.record(System.nanoTime() - start);
+			return suspended.gameboy;
+		}
+
+		GameBoyScreen.Gameboy gameboy = new GameBoyScreen.Gameboy(rom, romData, key);
+		active = gameboy;
+
+		if (gameboy.isRestored()) {
+			DISK.record(System.nanoTime() - start);
+		}
+
+		return gameboy;
+	}
+
+	/**
+	 * Pauses a game whose screen is closing, hibernating other games if it takes the pool over its memory budget.
+	 */
+	static void suspend(GameBoyScreen.Gameboy gameboy) {
+		if (gameboy != active) {
+			// Already hibernated by hibernateAll
+			return;
+		}
+
+		active = null;
+		gameboy.suspend();
+		SUSPENDED.put(gameboy.getSaveStateKey(), new Suspended(gameboy, System.nanoTime()));
+		trim();
+	}
+
+	/**
+	 * Hibernates games that have been idle for too long, call every tick.
+	 */
+	public static void tick() {
+		if (SUSPENDED.isEmpty()) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		Iterator<Suspended> iterator = SUSPENDED.values().iterator();
+
+		while (iterator.hasNext()) {
+			Suspended suspended = iterator.next();
+
+			if (now - suspended.since < IDLE_TIMEOUT_NANOS) {
+				// The rest were suspended later
+				break;
+			}
+
+			iterator.remove();
+			hibernate(suspended.gameboy, "idle");
+		}
+	}
+
+	/**
+	 * Hibernates the game being played and every suspended game, such as when the client is stopping.
+	 */
+	public static void hibernateAll() {
+		if (active != null) {
+			hibernate(active, "shutdown");
+			active = null;
+		}
+
+		for (Suspended suspended : SUSPENDED.values()) {
+			hibernate(suspended.gameboy, "shutdown");
+		}
+
+		SUSPENDED.clear();
+	}
+
+	/**
+	 * The key the ROM had when last opened, if it can't have changed since. Built-in ROMs never change, local ROMs are
+	 * checked by size and modification time.
+	 */
+	@Nullable
+	private static String cachedKey(GameBoyRom rom) {
+		CachedKey cached = KEYS.get(rom);
+
+		if (cached == null) {
+			return null;
+		}
+
+		if (rom instanceof GameBoyRom.LocalRom localRom) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(localRom.path(), BasicFileAttributes.class);
+
+				if (attributes.size() != cached.size() || attributes.lastModifiedTime().toMillis() != cached.modified()) {
+					return null;
+				}
+			} catch (IOException e) {
+				// Left to fail when mapped
+				return null;
+			}
+		}
+
+		return cached.key();
+	}
+
+	private static void cacheKey(GameBoyRom rom, String key) {
+		long size = 0;
+		long modified = 0;
+
+		if (rom instanceof GameBoyRom.LocalRom localRom) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(localRom.path(), BasicFileAttributes.class);
+				size = attributes.size();
+				modified = attributes.lastModifiedTime().toMillis();
+			} catch (IOException e) {
+				return;
+			}
+		}
+
+		KEYS.put(rom, new CachedKey(key, size, modified));
+	}
+
+	private static void trim() {
+		long bytes = 0;
+
+		for (Suspended suspended : SUSPENDED.values()) {
+			bytes += suspended.gameboy.memoryBytes();
+		}
+
+		Iterator<Suspended> iterator = SUSPENDED.values().iterator();
+
+		// The game just suspended is kept however large it is
+		while (bytes > MEMORY_BUDGET && SUSPENDED.size() > 1) {
+			Suspended suspended = iterator.next();
+			bytes -= suspended.gameboy.memoryBytes();
+			iterator.remove();
+			hibernate(suspended.gameboy, "over memory budget");
+		}
+	}
+
+	private static void hibernate(GameBoyScreen.Gameboy gameboy, String reason) {
+		LOGGER.debug("Hibernating {} ({})", gameboy.getSaveStateKey(), reason);
+
+		try {
+			gameboy.close();
+		} catch (Exception e) {
+			LOGGER.error("Failed to hibernate {}", gameboy.getSaveStateKey(), e);
+		}
+	}
+
+	private record Suspended(GameBoyScreen.Gameboy gameboy, long since) {
+	}
+
+	/**
+	 * @param size the size and modification time of a local ROM when it was hashed
+	 */
+	private record CachedKey(String key, long size, long modified) {
+	}
+
+	private static final class Latency {
+		private final String source;
+		private long resumes = 0;
+		private long totalNanos = 0;
+
+		Latency(String source) {
+			this.source = source;
+		}
+
+		void record(long nanos) {
+			resumes++;
+			totalNanos += nanos;
+			LOGGER.info("Resumed from {} in {}ms ({}ms mean over {} resumes)", source, String.format("%.2f", nanos / 1e6),
+				String.format("%.2f", totalNanos / 1e6 / resumes), resumes);
+		}
+	}
+}
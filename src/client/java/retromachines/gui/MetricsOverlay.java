@@ -0,0 +1,131 @@
+package retromachines.gui;
+
+import net.minecraft.client.font.TextRenderer;
+import net.minecraft.client.gui.DrawContext;
+import org.jetbrains.annotations.Nullable;
+import retromachines.GameboySound;
+import retromachines.rboy.AudioRingBuffer;
+import retromachines.rboy.RBoy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Debug overlay with the live metrics of the emulator being played, toggled with F6.
+ * Metrics are only enabled on the context while the overlay is shown.
+ */
+class MetricsOverlay {
+	private static final long REFRESH_NANOS = 500_000_000L;
+	private static final int LINE_HEIGHT = 10;
+	private static final int COLOR = 0xFFFFFF;
+
+	private boolean visible = false;
+	@Nullable
+	private RBoy.Context enabledFor;
+	@Nullable
+	private RBoy.Metrics previous;
+	private List<String> lines = List.of();
+
+	// Texture uploads since the last refresh
+	private long uploads = 0;
+	private long uploadNanos = 0;
+	private long maxUploadNanos = 0;
+
+	public boolean isVisible() {
+		return visible;
+	}
+
+	public void toggle(@Nullable RBoy.Context context) {
+		visible = !visible;
+
+		if (!visible && enabledFor != null) {
+			if (enabledFor.equals(context)) {
+				context.setMetricsEnabled(false);
+			}
+
+			enabledFor = null;
+		}
+	}
+
+	/**
+	 * Turns metrics off on the context they were enabled for, before it is suspended. They are enabled again on
+	 * whichever context is rendered next while the overlay is shown.
+	 */
+	public void release() {
+		if (enabledFor != null) {
+			enabledFor.setMetricsEnabled(false);
+			enabledFor = null;
+			previous = null;
+		}
+	}
+
+	public void recordUpload(long nanos) {
+		uploads++;
+		uploadNanos += nanos;
+		maxUploadNanos = Math.max(maxUploadNanos, nanos);
+	}
+
+	/**
+	 * @param audio the buffer of the context's java audio stream, null when it uses native audio or has not started playing yet
+	 */
+	public void render(DrawContext drawContext, TextRenderer textRenderer, RBoy.Context context, @Nullable AudioRingBuffer audio) {
+		if (!visible) {
+			return;
+		}
+
+		if (!context.equals(enabledFor)) {
+			// A new game was opened
+			context.setMetricsEnabled(true);
+			enabledFor = context;
+			previous = null;
+		}
+
+		long now = System.nanoTime();
+
+		if (previous == null) {
+			previous = context.getMetrics();
+		} else if (now - previous.nanoTime() >= REFRESH_NANOS) {
+			RBoy.Metrics metrics = context.getMetrics();
+			lines = lines(metrics, previous, audio);
+			previous = metrics;
+			uploads = 0;
+			uploadNanos = 0;
+			maxUploadNanos = 0;
+		}
+
+		for (int i = 0; i < lines.size(); i++) {
+			drawContext.drawTextWithShadow(textRenderer, lines.get(i), 2, 2 + i * LINE_HEIGHT, COLOR);
+		}
+	}
+
+	private List<String> lines(RBoy.Metrics metrics, RBoy.Metrics previous, @Nullable AudioRingBuffer audio) {
+		List<String> lines = new ArrayList<>();
+		lines.add(String.format("%.2f MHz, %.1f fps", metrics.cyclesPerSecond(previous) / 1e6, metrics.framesPerSecond(previous)));
+		lines.add(String.format("Frames: %d produced, %d delivered, %d dropped, %d duplicated",
+			metrics.framesProduced(), metrics.framesDelivered(), metrics.framesDropped(), metrics.framesDuplicated()));
+		lines.add(call("poll_frame", metrics.pollFrame(), previous.pollFrame()));
+		lines.add(call("send_event", metrics.sendEvent(), previous.sendEvent()));
+		lines.add(uploads == 0 ? "Texture upload: -"
+			: String.format("Texture upload: %.1fus mean, %.1fus max", uploadNanos / 1e3 / uploads, maxUploadNanos / 1e3));
+
+		if (audio != null) {
+			int queued = audio.available();
+			lines.add(String.format("Audio: %.1fms queued (%d/%d), %d underruns, %d overruns",
+				GameboySound.GameboySoundStream.framesToNanos(queued) / 1e6, queued, audio.capacity(), audio.underruns(), audio.overruns()));
+		} else if (metrics.audioQueuedNanos() >= 0) {
+			lines.add(String.format("Audio: %.1fms queued", metrics.audioQueuedNanos() / 1e6));
+		}
+
+		return lines;
+	}
+
+	private static String call(String name, RBoy.CallMetrics metrics, RBoy.CallMetrics previous) {
+		long calls = metrics.calls() - previous.calls();
+
+		if (calls == 0) {
+			return name + ": -";
+		}
+
+		return String.format("%s: %d calls, %.1fus mean, %.1fus max", name, calls, (metrics.totalNanos() - previous.totalNanos()) / 1e3 / calls, metrics.maxNanos() / 1e3);
+	}
+}
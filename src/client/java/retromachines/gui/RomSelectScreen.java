@@ -0,0 +1,178 @@
+package retromachines.gui;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.gui.screen.Screen;
+import net.minecraft.client.gui.widget.AlwaysSelectedEntryListWidget;
+import net.minecraft.client.gui.widget.ButtonWidget;
+import net.minecraft.screen.ScreenTexts;
+import net.minecraft.text.Text;
+import net.minecraft.util.Formatting;
+import net.minecraft.util.Util;
+import org.jetbrains.annotations.Nullable;
+import retromachines.GameBoyRom;
+import retromachines.library.RomLibrary;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Lists the built-in game and the ROMs in the library to pick one from, or to browse for one elsewhere on disk.
+ * The library is shown as last indexed, and updated once a scan in the background finds changes.
+ */
+public class RomSelectScreen extends Screen {
+	private static final int ENTRY_HEIGHT = 24;
+	private static final int BUTTON_WIDTH = 100;
+
+	private final Screen parent;
+	private final Consumer<GameBoyRom> onSelect;
+	private final Runnable onBrowse;
+	private final RomLibrary library;
+
+	private RomList list;
+	private ButtonWidget playButton;
+	private List<RomLibrary.Entry> shownEntries;
+
+	public RomSelectScreen(Screen parent, Consumer<GameBoyRom> onSelect, Runnable onBrowse) {
+		super(Text.literal("Select ROM"));
+		this.parent = parent;
+		this.onSelect = onSelect;
+		this.onBrowse = onBrowse;
+		this.library = RomLibrary.getDefault();
+	}
+
+	@Override
+	protected void init() {
+		list = new RomList(client, width, height, 32, height - 32, ENTRY_HEIGHT);
+		addSelectableChild(list);
+
+		int y = height - 26;
+		playButton = addDrawableChild(ButtonWidget.builder(Text.literal("Play"), button -> play()).dimensions(width / 2 - BUTTON_WIDTH * 3 / 2 - 4, y, BUTTON_WIDTH, 20).build());
+		addDrawableChild(ButtonWidget.builder(Text.literal("Browse..."), button -> {
+			close();
+			onBrowse.run();
+		}).dimensions(width / 2 - BUTTON_WIDTH / 2, y, BUTTON_WIDTH, 20).build());
+		addDrawableChild(ButtonWidget.builder(ScreenTexts.CANCEL, button -> close()).dimensions(width / 2 + BUTTON_WIDTH / 2 + 4, y, BUTTON_WIDTH, 20).build());
+		shownEntries = null;
+		refresh();
+		updateButtons();
+	}
+
+	@Override
+	public void tick() {
+		super.tick();
+
+		// Picks up the background scan once it is done
+		if (library.getEntries() != shownEntries) {
+			refresh();
+		}
+	}
+
+	private void refresh() {
+		shownEntries = library.getEntries();
+		GameBoyRom selected = list.getSelectedOrNull() != null ? list.getSelectedOrNull().rom : null;
+
+		list.setRoms(shownEntries);
+
+		for (RomList.RomEntry entry : list.children()) {
+			if (entry.rom.equals(selected)) {
+				list.setSelected(entry);
+			}
+		}
+	}
+
+	private void updateButtons() {
+		playButton.active = list.getSelectedOrNull() != null;
+	}
+
+	private void play() {
+		RomList.RomEntry entry = list.getSelectedOrNull();
+
+		if (entry != null) {
+			close();
+			onSelect.accept(entry.rom);
+		}
+	}
+
+	@Override
+	public void close() {
+		client.setScreen(parent);
+	}
+
+	@Override
+	public void render(DrawContext context, int mouseX, int mouseY, float delta) {
+		renderBackground(context);
+		list.render(context, mouseX, mouseY, delta);
+		context.drawCenteredTextWithShadow(textRenderer, title, width / 2, 12, 0xFFFFFF);
+		super.render(context, mouseX, mouseY, delta);
+	}
+
+	private class RomList extends AlwaysSelectedEntryListWidget<RomList.RomEntry> {
+		RomList(MinecraftClient client, int width, int height, int top, int bottom, int itemHeight) {
+			super(client, width, height, top, bottom, itemHeight);
+		}
+
+		void setRoms(List<RomLibrary.Entry> entries) {
+			clearEntries();
+			addEntry(new RomEntry(GameBoyRom.BUILTIN_2048, Text.literal(GameBoyRom.BUILTIN_2048.name()), Text.literal(GameBoyRom.BUILTIN_2048.credit())));
+
+			for (RomLibrary.Entry entry : entries) {
+				Text details = Text.literal(entry.path().getFileName() + " - " + entry.header().mbc());
+
+				if (!entry.header().isSupported()) {
+					details = details.copy().append(" (unsupported)").formatted(Formatting.RED);
+				}
+
+				addEntry(new RomEntry(entry.rom(), Text.literal(entry.header().title()), details));
+			}
+		}
+
+		@Override
+		public void setSelected(@Nullable RomEntry entry) {
+			super.setSelected(entry);
+			updateButtons();
+		}
+
+		@Override
+		public int getRowWidth() {
+			return 300;
+		}
+
+		class RomEntry extends AlwaysSelectedEntryListWidget.Entry<RomEntry> {
+			private final GameBoyRom rom;
+			private final Text name;
+			private final Text details;
+			private long lastClicked;
+
+			RomEntry(GameBoyRom rom, Text name, Text details) {
+				this.rom = rom;
+				this.name = name;
+				this.details = details;
+			}
+
+			@Override
+			public void render(DrawContext context, int index, int y, int x, int entryWidth, int entryHeight, int mouseX, int mouseY, boolean hovered, float tickDelta) {
+				context.drawTextWithShadow(textRenderer, name, x + 2, y + 2, 0xFFFFFF);
+				context.drawTextWithShadow(textRenderer, details, x + 2, y + 12, 0x808080);
+			}
+
+			@Override
+			public boolean mouseClicked(double mouseX, double mouseY, int button) {
+				setSelected(this);
+
+				// Double click to play
+				if (Util.getMeasuringTimeMs() - lastClicked < 250) {
+					play();
+				}
+
+				lastClicked = Util.getMeasuringTimeMs();
+				return true;
+			}
+
+			@Override
+			public Text getNarration() {
+				return Text.translatable("narrator.select", name);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package retromachines.gui;
+
+import com.mojang.logging.LogUtils;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.network.PacketByteBuf;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryUtil;
+import org.slf4j.Logger;
+import retromachines.rboy.RBoy;
+import retromachines.stream.FrameCodec;
+import retromachines.stream.FrameStreamPacket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The latest decoded frame of every stream sent by the server, only accessed from the client thread.
+ */
+public final class SpectatedFrames {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final Int2ObjectMap<Stream> STREAMS = new Int2ObjectOpenHashMap<>();
+
+	private SpectatedFrames() {
+	}
+
+	public static void receive(FrameStreamPacket packet) {
+		if (packet.isEnd()) {
+			Stream stream = STREAMS.remove(packet.streamId());
+
+			if (stream != null) {
+				stream.close();
+			}
+
+			return;
+		}
+
+		Stream stream = STREAMS.computeIfAbsent(packet.streamId(), id -> new Stream());
+
+		if (!stream.decoder.decode(new PacketByteBuf(Unpooled.wrappedBuffer(packet.frame())), stream.frame)) {
+			LOGGER.debug("Dropped frame of stream {} received before its keyframe", packet.streamId());
+			return;
+		}
+
+		stream.frames++;
+	}
+
+	/**
+	 * Returns the latest RGB frame of the stream, or null when nothing has been received for it yet.
+	 * The buffer is reused for every frame of the stream.
+	 */
+	@Nullable
+	public static ByteBuffer get(int streamId) {
+		Stream stream = STREAMS.get(streamId);
+		return stream == null || stream.frames == 0 ? null : stream.frame;
+	}
+
+	/**
+	 * The number of frames decoded for the stream, to tell when {@link #get(int)} has changed.
+	 */
+	public static long getFrameCount(int streamId) {
+		Stream stream = STREAMS.get(streamId);
+		return stream == null ? 0 : stream.frames;
+	}
+
+	public static void clear() {
+		STREAMS.values().forEach(Stream::close);
+		STREAMS.clear();
+	}
+
+	private static class Stream {
+		private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+		private final ByteBuffer frame = MemoryUtil.memAlloc(RBoy.FRAME_SIZE);
+		private long frames = 0;
+
+		private void close() {
+			MemoryUtil.memFree(frame);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package retromachines.gui;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.util.Identifier;
+import retromachines.stream.FrameCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shows the screen of the Game Boy being played by the player under the crosshair, in the corner of the HUD.
+ * Only accessed from the client thread.
+ */
+public final class SpectatorOverlay {
+	private static final Identifier TEXTURE = new Identifier("retromachines", "spectated");
+	private static final int MARGIN = 4;
+
+	private static NativeImageBackedTexture texture;
+	private static int shownStream = -1;
+	private static long shownFrame = -1;
+
+	private SpectatorOverlay() {
+	}
+
+	public static void render(DrawContext context) {
+		MinecraftClient client = MinecraftClient.getInstance();
+		Entity target = client.targetedEntity;
+
+		if (!(target instanceof PlayerEntity) || client.currentScreen != null) {
+			return;
+		}
+
+		ByteBuffer frame = SpectatedFrames.get(target.getId());
+
+		if (frame == null) {
+			return;
+		}
+
+		if (texture == null) {
+			texture = new NativeImageBackedTexture(FrameCodec.WIDTH, FrameCodec.HEIGHT, false);
+			client.getTextureManager().registerTexture(TEXTURE, texture);
+		}
+
+		long frameCount = SpectatedFrames.getFrameCount(target.getId());
+
+		if (target.getId() != shownStream || frameCount != shownFrame) {
+			upload(frame);
+			shownStream = target.getId();
+			shownFrame = frameCount;
+		}
+
+		int x = context.getScaledWindowWidth() - FrameCodec.WIDTH - MARGIN;
+		context.drawTexture(TEXTURE, x, MARGIN, 0, 0, FrameCodec.WIDTH, FrameCodec.HEIGHT, FrameCodec.WIDTH, FrameCodec.HEIGHT);
+	}
+
+	private static void upload(ByteBuffer frame) {
+		NativeImage image = texture.getImage();
+
+		for (int pixel = 0; pixel < FrameCodec.PIXELS; pixel++) {
+			int offset = pixel * 3;
+			// ABGR
+			int colour = 0xFF000000 | (frame.get(offset + 2) & 0xFF) << 16 | (frame.get(offset + 1) & 0xFF) << 8 | (frame.get(offset) & 0xFF);
+			image.setColor(pixel % FrameCodec.WIDTH, pixel / FrameCodec.WIDTH, colour);
+		}
+
+		texture.upload();
+	}
+}
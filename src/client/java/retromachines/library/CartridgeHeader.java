@@ -0,0 +1,131 @@
+package retromachines.library;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The cartridge header found at 0x100-0x14F of every ROM.
+ */
+public record CartridgeHeader(String title, CgbSupport cgbSupport, int cartridgeType, int romSize, int ramSize, int headerChecksum, boolean checksumValid) {
+	public static final int START = 0x100;
+	public static final int SIZE = 0x50;
+
+	private static final int TITLE = 0x134 - START;
+	private static final int CGB_FLAG = 0x143 - START;
+	private static final int CARTRIDGE_TYPE = 0x147 - START;
+	private static final int ROM_SIZE = 0x148 - START;
+	private static final int RAM_SIZE = 0x149 - START;
+	private static final int HEADER_CHECKSUM = 0x14D - START;
+
+	/**
+	 * Reads just the header of a ROM file.
+	 *
+	 * @return null when the file is too short to be a ROM
+	 */
+	@Nullable
+	public static CartridgeHeader read(Path path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SIZE);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (header.hasRemaining()) {
+				if (channel.read(header, START + header.position()) < 0) {
+					return null;
+				}
+			}
+		}
+
+		return parse(header.array());
+	}
+
+	/**
+	 * @param header the {@link #SIZE} bytes starting at {@link #START}
+	 */
+	public static CartridgeHeader parse(byte[] header) {
+		CgbSupport cgbSupport = switch (header[CGB_FLAG] & 0xFF) {
+			case 0x80 -> CgbSupport.SUPPORTED;
+			case 0xC0 -> CgbSupport.REQUIRED;
+			default -> CgbSupport.NONE;
+		};
+
+		// Colour games use the last bytes of the title for the manufacturer code and CGB flag
+		int titleLength = cgbSupport == CgbSupport.NONE ? 16 : 11;
+		int end = TITLE;
+
+		while (end < TITLE + titleLength && header[end] != 0) {
+			end++;
+		}
+
+		int checksum = 0;
+
+		for (int i = TITLE; i < HEADER_CHECKSUM; i++) {
+			checksum = checksum - (header[i] & 0xFF) - 1;
+		}
+
+		int headerChecksum = header[HEADER_CHECKSUM] & 0xFF;
+
+		return new CartridgeHeader(
+			new String(header, TITLE, end - TITLE, StandardCharsets.US_ASCII).trim(),
+			cgbSupport,
+			header[CARTRIDGE_TYPE] & 0xFF,
+			romSize(header[ROM_SIZE] & 0xFF),
+			ramSize(header[CARTRIDGE_TYPE] & 0xFF, header[RAM_SIZE] & 0xFF),
+			headerChecksum,
+			(checksum & 0xFF) == headerChecksum
+		);
+	}
+
+	private static int romSize(int code) {
+		return code <= 8 ? 0x8000 << code : 0;
+	}
+
+	private static int ramSize(int cartridgeType, int code) {
+		if (cartridgeType == 0x05 || cartridgeType == 0x06) {
+			// MBC2 has 512 half bytes built in
+			return 512;
+		}
+
+		return switch (code) {
+			case 2 -> 0x2000;
+			case 3 -> 0x8000;
+			case 4 -> 0x20000;
+			case 5 -> 0x10000;
+			default -> 0;
+		};
+	}
+
+	/**
+	 * The memory bank controller named by the cartridge type, null when the emulator does not support it.
+	 */
+	@Nullable
+	public String mbc() {
+		if (cartridgeType == 0x00) {
+			return "ROM";
+		} else if (cartridgeType <= 0x03) {
+			return "MBC1";
+		} else if (cartridgeType == 0x05 || cartridgeType == 0x06) {
+			return "MBC2";
+		} else if (cartridgeType >= 0x0F && cartridgeType <= 0x13) {
+			return "MBC3";
+		} else if (cartridgeType >= 0x19 && cartridgeType <= 0x1E) {
+			return "MBC5";
+		}
+
+		return null;
+	}
+
+	public boolean isSupported() {
+		return mbc() != null && checksumValid;
+	}
+
+	public enum CgbSupport {
+		NONE,
+		SUPPORTED,
+		REQUIRED
+	}
+}
@@ -0,0 +1,271 @@
+package retromachines.library;
+
+import com.mojang.logging.LogUtils;
+import net.fabricmc.loader.api.FabricLoader;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import retromachines.GameBoyRom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * The ROMs in a directory, described by their cartridge headers. Only the headers are read, and they are cached in an
+ * index file keyed by path, size and modification time so a rescan only reads files that are new or have changed.
+ */
+public final class RomLibrary {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final int INDEX_VERSION = 1;
+	@Nullable
+	private static RomLibrary defaultLibrary;
+
+	private final Path directory;
+	private final Path indexFile;
+	private volatile List<Entry> entries = List.of();
+
+	public RomLibrary(Path directory, Path indexFile) {
+		this.directory = directory;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * The library over {@code roms} in the game directory. Listed from the index the first time it is needed, with
+	 * changes on disk picked up by a scan in the background. Only called from the client thread.
+	 */
+	public static RomLibrary getDefault() {
+		if (defaultLibrary == null) {
+			Path gameDir = FabricLoader.getInstance().getGameDir();
+			defaultLibrary = new RomLibrary(gameDir.resolve("roms"), gameDir.resolve(".retromachines").resolve("rom_index.dat"));
+
+			long start = System.nanoTime();
+			defaultLibrary.loadIndex();
+			LOGGER.info("Listed {} ROMs from the index in {}ms", defaultLibrary.getEntries().size(), String.format("%.2f", (System.nanoTime() - start) / 1e6));
+			defaultLibrary.scanInBackground();
+		}
+
+		return defaultLibrary;
+	}
+
+	/**
+	 * The ROMs found by the last {@link #loadIndex()} or {@link #scan()}, sorted by title.
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Lists the ROMs from the index file without touching the ROMs themselves, so the library can be shown straight away.
+	 * Entries may be stale until the next {@link #scan()}.
+	 */
+	public List<Entry> loadIndex() {
+		entries = sorted(readIndex().values().stream().map(Indexed::entry).filter(Objects::nonNull).toList());
+		return entries;
+	}
+
+	/**
+	 * Runs {@link #scan()} off the calling thread, {@link #getEntries()} has the result once done.
+	 */
+	public CompletableFuture<List<Entry>> scanInBackground() {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return scan();
+			} catch (IOException e) {
+				LOGGER.error("Failed to scan the ROM library {}", directory, e);
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Lists the ROMs in the directory, reading the headers of new and changed files in parallel, and updates the index.
+	 */
+	public synchronized List<Entry> scan() throws IOException {
+		if (Files.notExists(directory)) {
+			entries = List.of();
+			return entries;
+		}
+
+		long start = System.nanoTime();
+		Map<Path, Indexed> index = readIndex();
+		List<Path> paths;
+
+		try (Stream<Path> stream = Files.list(directory)) {
+			paths = stream.filter(RomLibrary::isRomFile).toList();
+		}
+
+		// Not ROMs are kept in the index as null, so they are only read again once changed too
+		Map<Path, Entry> scanned = new HashMap<>();
+		List<ScanResult> results = paths.parallelStream().map(path -> scan(path, index)).toList();
+		int read = 0;
+
+		for (ScanResult result : results) {
+			if (result.attributes() != null) {
+				scanned.put(result.path(), result.entry());
+				read += result.read() ? 1 : 0;
+			}
+		}
+
+		if (read > 0 || scanned.size() != index.size()) {
+			writeIndex(scanned, results);
+		}
+
+		LOGGER.debug("Scanned {} ROMs in {}ms, read {} headers", scanned.size(), String.format("%.2f", (System.nanoTime() - start) / 1e6), read);
+		entries = sorted(scanned.values().stream().filter(Objects::nonNull).toList());
+		return entries;
+	}
+
+	private static ScanResult scan(Path path, Map<Path, Indexed> index) {
+		BasicFileAttributes attributes;
+
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			// Deleted since being listed
+			return new ScanResult(path, null, null, false);
+		}
+
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+
+		Indexed cached = index.get(path);
+
+		if (cached != null && cached.size() == size && cached.modified() == modified) {
+			return new ScanResult(path, attributes, cached.entry(), false);
+		}
+
+		try {
+			CartridgeHeader header = CartridgeHeader.read(path);
+			return new ScanResult(path, attributes, header == null ? null : new Entry(path, size, modified, header), true);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read ROM header of {}", path, e);
+			return new ScanResult(path, null, null, true);
+		}
+	}
+
+	private static boolean isRomFile(Path path) {
+		String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+		return (name.endsWith(".gb") || name.endsWith(".gbc")) && Files.isRegularFile(path);
+	}
+
+	private static List<Entry> sorted(List<Entry> entries) {
+		return entries.stream().sorted(Comparator.comparing((Entry entry) -> entry.header().title()).thenComparing(Entry::path)).toList();
+	}
+
+	/**
+	 * Path to the size and modification time last scanned, with null entries for files that are not ROMs.
+	 */
+	private Map<Path, Indexed> readIndex() {
+		Map<Path, Indexed> index = new HashMap<>();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != INDEX_VERSION) {
+				return index;
+			}
+
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++) {
+				Path path = directory.resolve(in.readUTF());
+				long size = in.readLong();
+				long modified = in.readLong();
+				index.put(path, new Indexed(size, modified, in.readBoolean() ? new Entry(path, size, modified, readHeader(in)) : null));
+			}
+		} catch (NoSuchFileException e) {
+			// Not scanned yet
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read ROM index {}, rescanning", indexFile, e);
+			index.clear();
+		}
+
+		return index;
+	}
+
+	private void writeIndex(Map<Path, Entry> scanned, List<ScanResult> results) throws IOException {
+		Files.createDirectories(indexFile.getParent());
+		Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(scanned.size());
+
+			for (ScanResult result : results) {
+				if (result.attributes() == null) {
+					continue;
+				}
+
+				Entry entry = result.entry();
+				out.writeUTF(directory.relativize(result.path()).toString());
+				out.writeLong(result.attributes().size());
+				out.writeLong(result.attributes().lastModifiedTime().toMillis());
+
+				out.writeBoolean(entry != null);
+
+				if (entry != null) {
+					writeHeader(out, entry.header());
+				}
+			}
+		}
+
+		Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static CartridgeHeader readHeader(DataInputStream in) throws IOException {
+		return new CartridgeHeader(
+			in.readUTF(),
+			CartridgeHeader.CgbSupport.values()[in.readUnsignedByte()],
+			in.readUnsignedByte(),
+			in.readInt(),
+			in.readInt(),
+			in.readUnsignedByte(),
+			in.readBoolean()
+		);
+	}
+
+	private static void writeHeader(DataOutputStream out, CartridgeHeader header) throws IOException {
+		out.writeUTF(header.title());
+		out.writeByte(header.cgbSupport().ordinal());
+		out.writeByte(header.cartridgeType());
+		out.writeInt(header.romSize());
+		out.writeInt(header.ramSize());
+		out.writeByte(header.headerChecksum());
+		out.writeBoolean(header.checksumValid());
+	}
+
+	/**
+	 * @param entry null if the file is not a ROM
+	 */
+	private record Indexed(long size, long modified, @Nullable Entry entry) {
+	}
+
+	private record ScanResult(Path path, @Nullable BasicFileAttributes attributes, @Nullable Entry entry, boolean read) {
+	}
+
+	/**
+	 * @param modified last modified time in milliseconds
+	 */
+	public record Entry(Path path, long size, long modified, CartridgeHeader header) {
+		/**
+		 * The ROM to launch, only now is the whole file read.
+		 */
+		public GameBoyRom rom() {
+			return new GameBoyRom.LocalRom(path);
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package retromachines;
 
+import net.fabricmc.loader.api.FabricLoader;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 
 public interface GameBoyRom {
@@ -15,6 +20,33 @@ public interface GameBoyRom {
 
 	byte[] loadRom() throws IOException;
 
+	/**
+	 * The ROM in a direct buffer to create a context from, mapped from disk where possible rather than read into the heap.
+	 */
+	default ByteBuffer mapRom() throws IOException {
+		byte[] rom = loadRom();
+		return ByteBuffer.allocateDirect(rom.length).put(rom).flip();
+	}
+
+	/**
+	 * Where saves of this game were kept before they were keyed by the ROM's contents, to carry them over.
+	 */
+	Path legacySaveFile();
+
+	/**
+	 * Where the cartridge RAM of a game is kept, see {@link retromachines.rboy.SaveRam}. Keyed by the contents of the ROM
+	 * like its save state, so ROMs that share a file name never share a save and renaming a ROM keeps it.
+	 *
+	 * @param key see {@link SaveStates#key}
+	 */
+	static Path saveFile(String key) {
+		return saveDirectory().resolve(key + ".sav");
+	}
+
+	static Path saveDirectory() {
+		return FabricLoader.getInstance().getGameDir().resolve(".retromachines").resolve("saves");
+	}
+
 	record BuiltinRom(String name, String credit, String filename) implements GameBoyRom {
 		@Override
 		public byte[] loadRom() throws IOException {
@@ -23,6 +55,11 @@ public interface GameBoyRom {
 				return is.readAllBytes();
 			}
 		}
+
+		@Override
+		public Path legacySaveFile() {
+			return saveDirectory().resolve(name + ".sav");
+		}
 	}
 
 	record LocalRom(Path path) implements GameBoyRom {
@@ -40,5 +77,20 @@ public interface GameBoyRom {
 		public byte[] loadRom() throws IOException {
 			return Files.readAllBytes(path);
 		}
+
+		@Override
+		public ByteBuffer mapRom() throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				// The mapping outlives the channel, and is released once the buffer is collected
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+
+		@Override
+		public Path legacySaveFile() {
+			String fileName = path.getFileName().toString();
+			int extension = fileName.lastIndexOf('.');
+			return saveDirectory().resolve((extension > 0 ? fileName.substring(0, extension) : fileName) + ".sav");
+		}
 	}
 }
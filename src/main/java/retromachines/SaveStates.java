@@ -0,0 +1,99 @@
+package retromachines;
+
+import com.mojang.logging.LogUtils;
+import net.fabricmc.loader.api.FabricLoader;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Save states on disk, one per ROM. Writes happen on a background thread so the caller never waits for the disk.
+ */
+public final class SaveStates {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "RetroMachines save state writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// States submitted but not yet on disk, so loading straight after saving sees them
+	private static final Map<String, byte[]> PENDING = new ConcurrentHashMap<>();
+
+	private SaveStates() {
+	}
+
+	/**
+	 * Identifies a ROM by its contents, so the same game shares its state however it was opened.
+	 * Leaves the buffer's position unchanged.
+	 */
+	public static String key(ByteBuffer rom) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(rom.duplicate());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes the state in the background, replacing any previous state for the key once fully written.
+	 * Writes are done in the order they were submitted.
+	 */
+	public static CompletableFuture<Void> save(String key, byte[] state) {
+		PENDING.put(key, state);
+
+		return CompletableFuture.runAsync(() -> {
+			Path path = path(key);
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+			try {
+				Files.createDirectories(path.getParent());
+				Files.write(tmp, state);
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				LOGGER.error("Failed to write save state {}", path, e);
+				throw new UncheckedIOException(e);
+			} finally {
+				PENDING.remove(key, state);
+			}
+		}, WRITER);
+	}
+
+	/**
+	 * @return the last saved state for the key, or null when there is none
+	 */
+	@Nullable
+	public static byte[] load(String key) throws IOException {
+		byte[] pending = PENDING.get(key);
+
+		if (pending != null) {
+			return pending;
+		}
+
+		try {
+			return Files.readAllBytes(path(key));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private static Path path(String key) {
+		return FabricLoader.getInstance().getGameDir().resolve(".retromachines").resolve("states").resolve(key + ".rbstate");
+	}
+}
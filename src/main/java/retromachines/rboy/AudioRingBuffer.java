@@ -0,0 +1,139 @@
+package retromachines.rboy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer, single consumer FIFO of 16-bit stereo frames.
+ * The emulator thread writes, the audio thread reads. Neither side ever waits: when full new frames are dropped
+ * (an overrun), when empty the reader is handed silence (an underrun). The capacity bounds the added latency.
+ */
+public final class AudioRingBuffer {
+	private final int[] frames; // Left sample in the high 16 bits, right in the low 16 bits
+	private final int mask;
+
+	// Only written by the producer
+	private final AtomicLong writeIndex = new AtomicLong();
+	private final AtomicLong overruns = new AtomicLong();
+	// Only written by the consumer
+	private final AtomicLong readIndex = new AtomicLong();
+	private final AtomicLong underruns = new AtomicLong();
+
+	/**
+	 * @param capacity maximum number of buffered frames, rounded up to a power of two
+	 */
+	public AudioRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.frames = new int[size];
+		this.mask = size - 1;
+	}
+
+	public int capacity() {
+		return frames.length;
+	}
+
+	/**
+	 * @return the number of frames waiting to be read
+	 */
+	public int available() {
+		return (int) (writeIndex.get() - readIndex.get());
+	}
+
+	/**
+	 * Frames dropped because the reader was not keeping up.
+	 */
+	public long overruns() {
+		return overruns.get();
+	}
+
+	/**
+	 * Frames of silence handed out because the writer was not keeping up.
+	 */
+	public long underruns() {
+		return underruns.get();
+	}
+
+	/**
+	 * Producer side, samples are expected in the -1 to 1 range.
+	 *
+	 * @return the number of frames written
+	 */
+	public int write(float[] left, float[] right) {
+		int count = Math.min(left.length, right.length);
+		long write = writeIndex.get();
+		int free = frames.length - (int) (write - readIndex.get());
+		int written = Math.min(count, free);
+
+		for (int i = 0; i < written; i++) {
+			frames[(int) (write + i) & mask] = pack(toPcm(left[i]), toPcm(right[i]));
+		}
+
+		writeIndex.lazySet(write + written);
+
+		if (written < count) {
+			overruns.lazySet(overruns.get() + count - written);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Producer side, takes interleaved 16-bit stereo frames starting at index 0 of the buffer.
+	 *
+	 * @return the number of frames written
+	 */
+	public int write(ByteBuffer samples, int count) {
+		long write = writeIndex.get();
+		int free = frames.length - (int) (write - readIndex.get());
+		int written = Math.min(count, free);
+
+		for (int i = 0; i < written; i++) {
+			frames[(int) (write + i) & mask] = pack(samples.getShort(i * 4), samples.getShort(i * 4 + 2));
+		}
+
+		writeIndex.lazySet(write + written);
+
+		if (written < count) {
+			overruns.lazySet(overruns.get() + count - written);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Consumer side, puts {@code count} interleaved 16-bit stereo frames in the buffer's byte order.
+	 * Missing frames are padded with silence.
+	 *
+	 * @return the number of frames that came from the buffer, rather than silence
+	 */
+	public int read(ByteBuffer out, int count) {
+		long read = readIndex.get();
+		int taken = Math.min(count, (int) (writeIndex.get() - read));
+
+		for (int i = 0; i < taken; i++) {
+			int frame = frames[(int) (read + i) & mask];
+			out.putShort((short) (frame >> 16));
+			out.putShort((short) frame);
+		}
+
+		readIndex.lazySet(read + taken);
+
+		for (int i = taken; i < count; i++) {
+			out.putInt(0);
+		}
+
+		if (taken < count) {
+			underruns.lazySet(underruns.get() + count - taken);
+		}
+
+		return taken;
+	}
+
+	private static short toPcm(float sample) {
+		return (short) (Math.max(-1F, Math.min(1F, sample)) * Short.MAX_VALUE);
+	}
+
+	private static int pack(short left, short right) {
+		return (left << 16) | (right & 0xFFFF);
+	}
+}
@@ -0,0 +1,360 @@
+package retromachines.rboy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Time-slices any number of emulator contexts over a fixed pool of worker threads.
+ * Each slice runs a single emulated frame, after which the context is not run again until its next frame is due.
+ * When the pool is overloaded, due contexts with a higher priority are run first, with a context's priority raised by one
+ * for each frame it has been kept waiting past its due time so lower priorities still get a share.
+ */
+public final class EmulationScheduler implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmulationScheduler.class);
+
+	/**
+	 * Real time length of one emulated frame, 70224 cycles at 4194304Hz.
+	 */
+	public static final long FRAME_NANOS = 16_742_706L;
+	public static final int DEFAULT_PRIORITY = 0;
+	// A context further behind than this, or 4 of its frames, skips ahead instead of trying to catch up
+	private static final long MAX_LAG_NANOS = FRAME_NANOS * 4;
+	// How long a due context waits for its priority to go up by one
+	private static final long AGING_NANOS = FRAME_NANOS;
+
+	private static EmulationScheduler shared;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	// Contexts whose next frame is not due yet
+	private final PriorityQueue<Task> waiting = new PriorityQueue<>(Comparator.comparingLong(task -> task.nextFrameAt));
+	// Contexts whose next frame is due, their order changes as they wait so the next one is picked in nextReady
+	private final List<Task> ready = new ArrayList<>();
+	private final Thread[] workers;
+	private boolean closed = false;
+
+	public EmulationScheduler(int workerCount) {
+		workers = new Thread[workerCount];
+
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::work);
+			worker.setName("RetroMachines: Emulation worker #" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers[i] = worker;
+		}
+	}
+
+	/**
+	 * A scheduler with a worker per core, shared by every emulator in the process.
+	 */
+	public static synchronized EmulationScheduler shared() {
+		if (shared == null) {
+			shared = new EmulationScheduler(Runtime.getRuntime().availableProcessors());
+		}
+
+		return shared;
+	}
+
+	public Task schedule(RBoy.Context context, int priority) {
+		Task task = new Task(context, priority);
+
+		lock.lock();
+		try {
+			task.nextFrameAt = System.nanoTime();
+			waiting.add(task);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		return task;
+	}
+
+	private void work() {
+		Task task;
+
+		while ((task = next()) != null) {
+			long cycles;
+			double speed = 1;
+			FlightEvents.FrameSlice event = new FlightEvents.FrameSlice();
+			event.begin();
+
+			try {
+				cycles = task.context.runFrames(1);
+
+				if (cycles >= 0) {
+					speed = task.context.getSpeed();
+				}
+			} catch (Throwable t) {
+				// A context closed without cancelling its task first is simply dropped
+				if (task.context.getState() != RBoy.State.CLOSED) {
+					LOGGER.error("Emulation failed, removing it from the scheduler", t);
+				}
+
+				cycles = -1;
+			}
+
+			if (event.shouldCommit()) {
+				event.cycles = cycles;
+				event.priority = task.priority;
+				event.commit();
+			}
+
+			finish(task, cycles, speed);
+		}
+	}
+
+	private Task next() {
+		lock.lock();
+		try {
+			while (!closed) {
+				long now = System.nanoTime();
+
+				while (!waiting.isEmpty() && waiting.peek().nextFrameAt - now <= 0) {
+					ready.add(waiting.poll());
+				}
+
+				Task task = nextReady(now);
+
+				if (task != null) {
+					task.running = true;
+					return task;
+				}
+
+				if (waiting.isEmpty()) {
+					changed.awaitUninterruptibly();
+				} else {
+					try {
+						changed.awaitNanos(waiting.peek().nextFrameAt - now);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+			}
+
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the due context with the highest priority once aged, the one due first among equals.
+	 */
+	private Task nextReady(long now) {
+		Task next = null;
+		long nextPriority = 0;
+
+		for (Task task : ready) {
+			long priority = task.priority + (now - task.nextFrameAt) / AGING_NANOS;
+
+			if (next == null || priority > nextPriority || priority == nextPriority && task.nextFrameAt - next.nextFrameAt < 0) {
+				next = task;
+				nextPriority = priority;
+			}
+		}
+
+		if (next != null) {
+			ready.remove(next);
+		}
+
+		return next;
+	}
+
+	private boolean isWorker(Thread thread) {
+		for (Thread worker : workers) {
+			if (worker == thread) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void finish(Task task, long cycles, double speed) {
+		lock.lock();
+		try {
+			task.running = false;
+
+			if (cycles < 0) {
+				// Stopped natively, or failed
+				task.cancelled = true;
+			} else {
+				task.frames++;
+				task.cycles += cycles;
+			}
+
+			long now = System.nanoTime();
+
+			if (speed == RBoy.UNTHROTTLED) {
+				// Due straight away, behind anything that was already waiting
+				task.nextFrameAt = now;
+			} else {
+				long frameNanos = (long) (FRAME_NANOS / speed);
+				task.nextFrameAt += frameNanos;
+
+				if (now - task.nextFrameAt > Math.max(MAX_LAG_NANOS, frameNanos * 4)) {
+					task.nextFrameAt = now;
+				}
+			}
+
+			if (!task.cancelled && !task.paused) {
+				waiting.add(task);
+			}
+
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			waiting.clear();
+			ready.clear();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public final class Task {
+		private final RBoy.Context context;
+		// All fields below are guarded by the scheduler's lock
+		private int priority;
+		private long nextFrameAt;
+		private boolean running = false;
+		private boolean paused = false;
+		private boolean cancelled = false;
+		private long frames = 0;
+		private long cycles = 0;
+
+		private Task(RBoy.Context context, int priority) {
+			this.context = context;
+			this.priority = priority;
+		}
+
+		public RBoy.Context getContext() {
+			return context;
+		}
+
+		/**
+		 * Stops scheduling the context, a frame that is already running is allowed to finish.
+		 */
+		public void pause() {
+			lock.lock();
+			try {
+				paused = true;
+				waiting.remove(this);
+				ready.remove(this);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void resume() {
+			lock.lock();
+			try {
+				if (!paused || cancelled) {
+					return;
+				}
+
+				paused = false;
+
+				if (!running) {
+					nextFrameAt = System.nanoTime();
+					waiting.add(this);
+					changed.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void setPriority(int priority) {
+			lock.lock();
+			try {
+				// Waiting contexts are ordered by due time only, ready ones are compared as they are picked
+				this.priority = priority;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Removes the context from the scheduler, once this returns no worker is running it and none ever will again.
+		 * Called from a worker, such as from a callback of the context's own frame, it can't wait for the frame to finish
+		 * and only promises none will be run after it.
+		 */
+		public void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+				waiting.remove(this);
+				ready.remove(this);
+
+				// A worker waiting here could be waiting on itself, or on a worker cancelling its own task
+				if (isWorker(Thread.currentThread())) {
+					return;
+				}
+
+				while (running) {
+					changed.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public boolean isPaused() {
+			lock.lock();
+			try {
+				return paused;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * The number of emulated frames run so far.
+		 */
+		public long getFrames() {
+			lock.lock();
+			try {
+				return frames;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public long getCycles() {
+			lock.lock();
+			try {
+				return cycles;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package retromachines.rboy;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the emulation pipeline. Recorded with {@code -XX:StartFlightRecording} or from JMC,
+ * when no recording is running creating and committing them is optimised away.
+ */
+public final class FlightEvents {
+	private static final String CATEGORY = "RetroMachines";
+
+	private FlightEvents() {
+	}
+
+	@Name("retromachines.FrameSlice")
+	@Label("Emulated Frame Slice")
+	@Description("A scheduler worker running one emulated frame of a context")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static final class FrameSlice extends Event {
+		@Label("Cycles")
+		public long cycles;
+		@Label("Priority")
+		public int priority;
+	}
+
+	@Name("retromachines.NativeCall")
+	@Label("Native Call")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static final class NativeCall extends Event {
+		@Label("Method")
+		public String method;
+	}
+
+	@Name("retromachines.TextureUpload")
+	@Label("Frame Texture Upload")
+	@Description("Expanding and uploading the changed rows of a frame")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static final class TextureUpload extends Event {
+		@Label("Format")
+		public String format;
+		@Label("Rows")
+		public int rows;
+	}
+
+	@Name("retromachines.AudioBuffer")
+	@Label("Audio Buffer")
+	@Description("Fill level of the buffer between the emulator and the java audio stream")
+	@Category(CATEGORY)
+	@Period("1 s")
+	@StackTrace(false)
+	public static final class AudioBuffer extends Event {
+		@Label("Queued Frames")
+		public int queuedFrames;
+		@Label("Capacity")
+		public int capacity;
+		@Label("Queued Audio")
+		@Timespan(Timespan.NANOSECONDS)
+		public long queuedNanos;
+		@Label("Underruns")
+		@Description("Frames of silence played since the stream started")
+		public long underruns;
+		@Label("Overruns")
+		@Description("Frames dropped since the stream started")
+		public long overruns;
+	}
+}
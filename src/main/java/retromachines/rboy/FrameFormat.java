@@ -0,0 +1,83 @@
+package retromachines.rboy;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Layout of a frame within the native frame buffer, see {@link RBoy.Context#setIndexedFrames(boolean)}.
+ * Indexed frames start with their palette, 3 bytes per colour, followed by the pixels.
+ */
+public enum FrameFormat {
+	/**
+	 * 3 bytes per pixel.
+	 */
+	RGB(0, 0) {
+		@Override
+		public void expandRows(ByteBuffer frame, ByteBuffer rgb, int firstRow, int rowCount) {
+			int start = firstRow * WIDTH * 3;
+			int length = rowCount * WIDTH * 3;
+			rgb.put(rgb.position() + start, frame, frame.position() + start, length);
+		}
+	},
+	/**
+	 * A 4 colour palette, then 4 pixels per byte with the first pixel in the lowest bits. Used for DMG games.
+	 */
+	INDEXED_2BPP(1, 4) {
+		@Override
+		public void expandRows(ByteBuffer frame, ByteBuffer rgb, int firstRow, int rowCount) {
+			int pixels = frame.position() + paletteSize * 3;
+			expandIndexed(frame, rgb, firstRow, rowCount, pixel -> (frame.get(pixels + (pixel >> 2)) >> ((pixel & 3) << 1)) & 3);
+		}
+	},
+	/**
+	 * A 256 colour palette, then a byte per pixel. Used for colour games.
+	 */
+	INDEXED_8BPP(2, 256) {
+		@Override
+		public void expandRows(ByteBuffer frame, ByteBuffer rgb, int firstRow, int rowCount) {
+			int pixels = frame.position() + paletteSize * 3;
+			expandIndexed(frame, rgb, firstRow, rowCount, pixel -> frame.get(pixels + pixel) & 0xFF);
+		}
+	};
+
+	public static final int WIDTH = 160;
+
+	private final int id;
+	protected final int paletteSize;
+
+	FrameFormat(int id, int paletteSize) {
+		this.id = id;
+		this.paletteSize = paletteSize;
+	}
+
+	public static FrameFormat byId(int id) {
+		for (FrameFormat format : values()) {
+			if (format.id == id) {
+				return format;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown frame format " + id);
+	}
+
+	/**
+	 * Writes the given rows of the frame starting at the frame's position to RGB data starting at the output's position.
+	 * Neither buffer's position is changed.
+	 */
+	public abstract void expandRows(ByteBuffer frame, ByteBuffer rgb, int firstRow, int rowCount);
+
+	/**
+	 * Looks up the palette colour of every pixel in the rows, {@code index} gives the palette index of a pixel.
+	 */
+	private static void expandIndexed(ByteBuffer frame, ByteBuffer rgb, int firstRow, int rowCount, IntUnaryOperator index) {
+		int base = frame.position();
+		int out = rgb.position();
+
+		for (int pixel = firstRow * WIDTH; pixel < (firstRow + rowCount) * WIDTH; pixel++) {
+			int colour = base + index.applyAsInt(pixel) * 3;
+			rgb.put(out + pixel * 3, frame.get(colour));
+			rgb.put(out + pixel * 3 + 1, frame.get(colour + 1));
+			rgb.put(out + pixel * 3 + 2, frame.get(colour + 2));
+		}
+	}
+}
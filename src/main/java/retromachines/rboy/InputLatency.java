@@ -0,0 +1,108 @@
+package retromachines.rboy;
+
+/**
+ * Measures the time from a key event to the first polled frame that reflects it, as a histogram.
+ * Key events are numbered by {@link #keyEvent()} and sent with {@link RBoy.Context#sendInput(int, long)},
+ * then the sequence of each new frame from {@link RBoy.Context#getFrameInputSequence()} is passed to {@link #frameShown(long)}.
+ *
+ * <p>Not thread safe, meant to be used from the render thread that handles input and polls frames.
+ */
+public final class InputLatency {
+	// Power of 2 buckets of microseconds, the last one holds everything over ~35 minutes
+	private static final int BUCKETS = 32;
+	// Events older than this many unacknowledged events are not measured
+	private static final int PENDING = 64;
+
+	private final long[] buckets = new long[BUCKETS];
+	private final long[] pendingNanos = new long[PENDING];
+	private long sequence = 0;
+	private long acknowledged = 0;
+	private long count = 0;
+	private long totalNanos = 0;
+	private long maxNanos = 0;
+
+	/**
+	 * Timestamps a key event about to be sent.
+	 *
+	 * @return the sequence to send it with
+	 */
+	public long keyEvent() {
+		sequence++;
+		pendingNanos[(int) (sequence % PENDING)] = System.nanoTime();
+		return sequence;
+	}
+
+	/**
+	 * Records the latency of every event up to and including {@code inputSequence} that had not been seen in a frame yet.
+	 */
+	public void frameShown(long inputSequence) {
+		if (inputSequence <= acknowledged) {
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		for (long i = Math.max(acknowledged + 1, inputSequence - PENDING + 1); i <= inputSequence; i++) {
+			record(now - pendingNanos[(int) (i % PENDING)]);
+		}
+
+		acknowledged = inputSequence;
+	}
+
+	private void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 1);
+		buckets[Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1)]++;
+		count++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public double getMeanMillis() {
+		return count == 0 ? 0 : totalNanos / 1e6 / count;
+	}
+
+	/**
+	 * Events counted per bucket, bucket {@code i} holding latencies from 2^i up to 2^(i+1) microseconds.
+	 */
+	public long[] getBuckets() {
+		return buckets.clone();
+	}
+
+	/**
+	 * The upper bound of the bucket holding the given percentile, so accurate to within a factor of 2.
+	 *
+	 * @param percentile between 0 and 100
+	 */
+	public double getPercentileMillis(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+
+			if (seen >= rank) {
+				return (2L << i) / 1000.0;
+			}
+		}
+
+		return maxNanos / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d events, mean %.2fms, p50 <%.2fms, p99 <%.2fms, max %.2fms",
+			count, getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), maxNanos / 1e6);
+	}
+}
@@ -0,0 +1,211 @@
+package retromachines.rboy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Records the key events sent to a context into a small append-only file, which {@link InputReplay} plays back exactly.
+ *
+ * <p>The file starts with the key of the ROM and the compressed state the recording starts from. Then comes an entry per event:
+ * the cycles since the previous entry as a varint and the event code, with frame checkpoints followed by the frame's hash.
+ * The last entry is an {@link #END} entry, written when the recorder is closed.
+ *
+ * <p>Entries are taken from the context by {@link #poll()} and written to disk on a background thread. Not thread safe.
+ */
+public final class InputRecorder implements AutoCloseable {
+	static final int MAGIC = 0x524D494C; // RMIL
+	static final int VERSION = 1;
+	/**
+	 * The event code of a frame hash checkpoint.
+	 */
+	public static final int FRAME_CHECKPOINT = 0;
+	static final int END = 0xFF;
+
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "RetroMachines input log writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final RBoy.Context context;
+	// Only used on the writer thread
+	private final OutputStream out;
+	private final long[] entries = new long[1024];
+	private final long headerBytes;
+	private CompletableFuture<Void> pending;
+	private long lastCycle = 0;
+	private long cycles = 0;
+	private long bytes = 0;
+	private boolean closed = false;
+
+	private InputRecorder(RBoy.Context context, OutputStream out, byte[] header) {
+		this.context = context;
+		this.out = out;
+		this.pending = CompletableFuture.completedFuture(null);
+		this.headerBytes = header.length;
+		write(header);
+	}
+
+	/**
+	 * Starts recording the context from its current state.
+	 *
+	 * @param romKey identifies the ROM the context runs, see {@link retromachines.SaveStates#key}
+	 */
+	public static InputRecorder start(RBoy.Context context, String romKey, Path path) throws IOException {
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+
+		OutputStream out = new BufferedOutputStream(Files.newOutputStream(path));
+		byte[] state = deflate(context.startRecording());
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(state.length + 64);
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		data.writeUTF(romKey);
+		data.writeInt(state.length);
+		data.write(state);
+
+		return new InputRecorder(context, out, header.toByteArray());
+	}
+
+	/**
+	 * Takes the entries recorded since the last poll and queues them to be written, call regularly such as once a frame.
+	 */
+	public void poll() {
+		int count;
+
+		while ((count = context.takeRecording(entries)) > 0) {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(count * 4);
+
+			for (int i = 0; i < count; i++) {
+				long entry = entries[i * 2];
+				int code = (int) (entry & 0xFF);
+				writeEntry(chunk, entry >>> 8, code);
+
+				if (code == FRAME_CHECKPOINT) {
+					writeLong(chunk, entries[i * 2 + 1]);
+				}
+			}
+
+			write(chunk.toByteArray());
+
+			if (count < entries.length / 2) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Bytes written so far, including the header.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Emulated cycles covered by the recording, known once closed.
+	 */
+	public long getCycles() {
+		return cycles;
+	}
+
+	/**
+	 * The size of the entries scaled to an hour of emulated time, leaving out the header. Known once closed.
+	 */
+	public double bytesPerHour() {
+		return cycles == 0 ? 0 : (bytes - headerBytes) * 3600.0 * RBoy.CLOCK_RATE / cycles;
+	}
+
+	/**
+	 * Stops recording, writes the remaining entries and waits for everything to be on disk.
+	 * Must be called before the context is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		long end = context.stopRecording();
+		poll();
+
+		if (end >= 0) {
+			cycles = end;
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(16);
+			writeEntry(chunk, end, END);
+			write(chunk.toByteArray());
+		}
+
+		pending = pending.thenRunAsync(() -> {
+			try {
+				out.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, WRITER);
+
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing input log", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to write input log", e.getCause());
+		}
+	}
+
+	private void write(byte[] chunk) {
+		bytes += chunk.length;
+		// A failed write fails every later one, and is thrown from close
+		pending = pending.thenRunAsync(() -> {
+			try {
+				out.write(chunk);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, WRITER);
+	}
+
+	private void writeEntry(ByteArrayOutputStream out, long cycle, int code) {
+		long delta = cycle - lastCycle;
+		lastCycle = cycle;
+
+		while ((delta & ~0x7FL) != 0) {
+			out.write((int) (delta & 0x7F) | 0x80);
+			delta >>>= 7;
+		}
+
+		out.write((int) delta);
+		out.write(code);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	private static byte[] deflate(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+
+		try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+			deflater.write(data);
+		}
+
+		return out.toByteArray();
+	}
+}
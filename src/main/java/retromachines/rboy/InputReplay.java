@@ -0,0 +1,142 @@
+package retromachines.rboy;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Plays back a recording from {@link InputRecorder} through {@link RBoy.Context#stepCycles(long)}, unthrottled on the calling thread.
+ * Every event is sent on the exact cycle it was recorded at, and every frame checkpoint is compared with the recorded hash.
+ *
+ * <p>The context must run the recorded ROM and must not be run by anything else during the replay.
+ * A log that was cut short, for example by a crash, is replayed up to its last complete entry.
+ */
+public final class InputReplay {
+	private InputReplay() {
+	}
+
+	/**
+	 * @param romKey the key of the ROM the context runs, or null to skip checking it
+	 * @throws IllegalArgumentException if the file is not an input log or was recorded on another ROM
+	 * @throws IllegalStateException if the replay diverges from the recording, or the context was stopped
+	 */
+	public static Result replay(RBoy.Context context, Path path, @Nullable String romKey) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != InputRecorder.MAGIC || in.readUnsignedByte() != InputRecorder.VERSION) {
+				throw new IllegalArgumentException("Not a supported input log: " + path);
+			}
+
+			String recordedKey = in.readUTF();
+
+			if (romKey != null && !romKey.equals(recordedKey)) {
+				throw new IllegalArgumentException("Input log was recorded on another ROM: " + recordedKey);
+			}
+
+			byte[] state = new byte[in.readInt()];
+			in.readFully(state);
+			context.loadState(inflate(state));
+
+			long start = System.nanoTime();
+			long now = 0;
+			long cycle = 0;
+			long frameHash = 0;
+			int events = 0;
+			int checkpoints = 0;
+
+			while (true) {
+				int code;
+
+				try {
+					cycle += readVarLong(in);
+					code = in.readUnsignedByte();
+				} catch (EOFException e) {
+					break;
+				}
+
+				while (now < cycle) {
+					RBoy.StepResult result = context.stepCycles(cycle - now);
+
+					if (result == RBoy.StepResult.STOPPED) {
+						throw new IllegalStateException("Context was stopped during replay");
+					}
+
+					now += result.cycles();
+					frameHash = result.frameHash();
+				}
+
+				if (now != cycle) {
+					throw new IllegalStateException("Replay diverged from the recording, reached cycle " + now + " instead of " + cycle);
+				}
+
+				if (code == InputRecorder.END) {
+					break;
+				} else if (code == InputRecorder.FRAME_CHECKPOINT) {
+					long hash;
+
+					try {
+						hash = in.readLong();
+					} catch (EOFException e) {
+						break;
+					}
+
+					if (hash != frameHash) {
+						throw new IllegalStateException("Replay diverged from the recording at cycle " + cycle);
+					}
+
+					checkpoints++;
+				} else {
+					context.sendEvent(code);
+					events++;
+				}
+			}
+
+			return new Result(now, events, checkpoints, System.nanoTime() - start);
+		}
+	}
+
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+
+			if (b < 0) {
+				throw new EOFException();
+			}
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * @param cycles the emulated cycles replayed
+	 * @param events the key events sent
+	 * @param checkpoints the frame hashes that matched the recording
+	 */
+	public record Result(long cycles, int events, int checkpoints, long nanos) {
+		/**
+		 * How many times faster than real-time the recording was replayed.
+		 */
+		public double realTimeMultiple() {
+			return nanos == 0 ? 0 : cycles / (double) RBoy.CLOCK_RATE / (nanos / 1e9);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package retromachines.rboy;
+
+import com.mojang.logging.LogUtils;
+import net.fabricmc.loader.api.FabricLoader;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Extracts and loads the rboy native library, the first time an emulator is created rather than at startup.
+ * Each build of the library is extracted to a directory named after its content hash, so an unchanged library is
+ * never written again and different versions of the mod never overwrite one another.
+ */
+final class NativeLibrary {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	// Long enough to never collide between builds, short enough for windows paths
+	private static final int HASH_LENGTH = 16;
+	/**
+	 * A directory laid out like the bundled {@code natives} resources to load the library from directly, for running outside of the game such as the benchmarks.
+	 */
+	private static final String DIRECTORY_PROPERTY = "retromachines.natives";
+
+	private NativeLibrary() {
+	}
+
+	/**
+	 * Called from {@link RBoy}'s static initializer, so this runs once, before the first native call.
+	 */
+	static void load() {
+		long start = System.nanoTime();
+		String resource = Architecture.current().prefix + "-" + OperatingSystem.current().suffix;
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+
+		if (directory != null) {
+			Path path = Path.of(directory).resolve(resource);
+			System.load(path.toAbsolutePath().toString());
+			LOGGER.info("Loaded natives from {}", path);
+			return;
+		}
+
+		Path path;
+		boolean extracted;
+
+		try {
+			byte[] library = readResource(resource);
+			String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(library)).substring(0, HASH_LENGTH);
+			path = FabricLoader.getInstance().getGameDir()
+				.resolve(".retromachines")
+				.resolve("natives")
+				.resolve(hash)
+				.resolve(resource.substring(resource.lastIndexOf('/') + 1));
+			extracted = extract(library, path);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to extract natives", e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		System.load(path.toAbsolutePath().toString());
+		LOGGER.info("Loaded {} natives from {} in {}ms", extracted ? "newly extracted" : "cached", path, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	private static byte[] readResource(String resource) throws IOException {
+		try (InputStream inputStream = NativeLibrary.class.getClassLoader().getResourceAsStream("natives/" + resource)) {
+			if (inputStream == null) {
+				throw new UnsupportedOperationException("Retro machines is not compatible with the current platform: " + resource);
+			}
+
+			return inputStream.readAllBytes();
+		}
+	}
+
+	/**
+	 * @return false when an identical copy was already there
+	 */
+	private static boolean extract(byte[] library, Path path) throws IOException {
+		if (isExtracted(library, path)) {
+			return false;
+		}
+
+		Files.createDirectories(path.getParent());
+
+		// Written under a unique name and moved into place, so concurrent launches never see a partial file
+		Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+		try {
+			Files.write(tmp, library);
+
+			try {
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// Another launch got there first, or windows refused to replace a library loaded by another launch,
+				// both fine as long as the library there is this one
+				if (isExtracted(library, path)) {
+					return true;
+				}
+
+				if (!(e instanceof FileAlreadyExistsException)) {
+					throw e;
+				}
+
+				// A damaged copy, such as one cut short by a crash of an older version writing it in place
+				LOGGER.warn("Replacing damaged natives at {}", path);
+				Files.delete(path);
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compares the whole file rather than its size, the directory being named after the hash only says what should be there.
+	 */
+	private static boolean isExtracted(byte[] library, Path path) throws IOException {
+		return Files.exists(path) && Files.size(path) == library.length && Arrays.equals(Files.readAllBytes(path), library);
+	}
+
+	// https://rust-lang.github.io/rustup-components-history/
+	enum Architecture {
+		X64("x86_64"),
+		ARM64("aarch64"),
+		I386("i686");
+		private final String prefix;
+
+		Architecture(String prefix) {
+			this.prefix = prefix;
+		}
+
+		static Architecture current() {
+			final String arch = System.getProperty("os.arch");
+
+			if ("aarch64".equals(arch) || arch.startsWith("armv8")) {
+				return ARM64;
+			} else if (arch.contains("64")) {
+				return X64;
+			}
+
+			return I386; // Default
+		}
+	}
+
+	enum OperatingSystem {
+		MAC_OS("apple-darwin/librboy.dylib"),
+		LINUX("unknown-linux-gnu/librboy.so"),
+		WINDOWS("pc-windows-msvc/rboy.dll");
+		private final String suffix;
+
+
+		OperatingSystem(String suffix) {
+			this.suffix = suffix;
+		}
+
+		static OperatingSystem current() {
+			final String osName = System.getProperty("os.name").toLowerCase();
+
+			if (osName.contains("win")) {
+				return WINDOWS;
+			} else if (osName.contains("mac")) {
+				return MAC_OS;
+			} else {
+				return LINUX; // Also default
+			}
+		}
+	}
+}
@@ -1,7 +1,19 @@
 package retromachines.rboy;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 // javac -h . RBoy.java
 public class RBoy {
+	static {
+		// Deferred until the first native call, dedicated servers that never run a game never load it
+		NativeLibrary.load();
+	}
+
 	public static class Events {
 		public static final int KEY_A_DOWN = 1;
 		public static final int KEY_B_DOWN = 2;
@@ -21,39 +33,851 @@ public class RBoy {
 		public static final int KEY_START_UP = 16;
 
 		public static final int STOP = 101;
+		/**
+		 * Runs unthrottled, same as {@link Context#setSpeed(double)} with {@link #UNTHROTTLED} but ordered with the other events.
+		 */
 		public static final int SPEED_UP = 102;
+		/**
+		 * Back to real time.
+		 */
 		public static final int SPEED_DOWN = 103;
+		/**
+		 * Steps back through the rewind history until {@link #REWIND_STOP}, see {@link Context#setRewind(long, int)}.
+		 */
+		public static final int REWIND_START = 104;
+		public static final int REWIND_STOP = 105;
 	}
 
-	public static native long construct_cpu(byte[] romData, boolean useNativeAudio);
+	/**
+	 * Audio frames passed to {@link RBoyEvents#setAudioBatch} listeners at a time when not using native audio, roughly 23ms.
+	 */
+	public static final int DEFAULT_AUDIO_BATCH_FRAMES = 1024;
+
+	public static native long construct_cpu(ByteBuffer romData, boolean useNativeAudio, int audioBatchFrames, RBoyEvents events);
+
+	public static native void destroy_cpu(long contextPtr);
+
+	public static native void get_rom_cache_stats(long[] stats);
 
 	public static native void run_cpu(long contextPtr);
 
+	public static native long run_frames(long contextPtr, int frames);
+
+	public static native boolean step_frames(long contextPtr, int frames, long[] result);
+
+	public static native boolean step_cycles(long contextPtr, long cycles, long[] result);
+
+	public static native byte[] save_state(long contextPtr);
+
+	public static native byte[] start_recording(long contextPtr);
+
+	public static native long stop_recording(long contextPtr);
+
+	public static native int take_recording(long contextPtr, long[] entries);
+
+	public static native void load_state(long contextPtr, byte[] state);
+
+	public static native int get_save_ram_size(long contextPtr);
+
+	public static native boolean attach_save_ram(long contextPtr, ByteBuffer buffer, boolean existing);
+
+	public static native long take_save_ram_dirty_pages(long contextPtr);
+
+	public static native void set_speed(long contextPtr, double speed);
+
+	public static native double get_speed(long contextPtr);
+
+	public static native void set_audio_sync(long contextPtr, boolean audioSync);
+
+	public static native void set_serial_output(long contextPtr, boolean output);
+
+	public static native void connect_link(long contextPtr, long otherPtr);
+
+	public static native void disconnect_link(long contextPtr);
+
+	public static native void set_rewind(long contextPtr, long budgetBytes, int intervalFrames);
+
+	public static native void get_rewind_stats(long contextPtr, long[] stats);
+
 	public static native byte[] get_gpu_data(long contextPtr);
 
+	public static native byte[] poll_gpu_data(long contextPtr);
+
+	public static native ByteBuffer get_frame_buffer(long contextPtr);
+
+	public static native int poll_frame(long contextPtr);
+
+	public static native int get_frame_format(long contextPtr);
+
+	public static native void set_indexed_frames(long contextPtr, boolean indexed);
+
+	public static native void get_frame_dirty_rows(long contextPtr, long[] rows);
+
+	public static native void get_frame_stats(long contextPtr, long[] stats);
+
+	public static native long get_frame_input_sequence(long contextPtr);
+
+	public static native void set_metrics_enabled(long contextPtr, boolean enabled);
+
+	public static native void get_metrics(long contextPtr, long[] metrics);
+
 	public static native void send_event(long contextPtr, int event);
 
-	public record Context(long ptr) {
+	public static native void send_input(long contextPtr, int event, long inputSequence);
+
+	/**
+	 * Size in bytes of one RGB frame.
+	 */
+	public static final int FRAME_SIZE = 160 * 144 * 3;
+	/**
+	 * Cycles per second at normal speed.
+	 */
+	public static final int CLOCK_RATE = 4194304;
+	/**
+	 * Frames per second of a running LCD, 4194304Hz / 70224 cycles per frame.
+	 */
+	public static final double FRAME_RATE = (double) CLOCK_RATE / 70224;
+	public static final double MIN_SPEED = 0.25;
+	public static final double UNTHROTTLED = Double.POSITIVE_INFINITY;
+
+	/**
+	 * A running emulator. Every call is rejected with an {@link IllegalStateException} once the context has been closed,
+	 * and the native memory is released by a {@link Cleaner} if it is dropped without being closed.
+	 */
+	public static final class Context implements AutoCloseable {
+		private static final Cleaner CLEANER = Cleaner.create();
+
+		private final Handle handle;
+		private final RBoyEvents events;
+		private final Cleaner.Cleanable cleanable;
+
+		private Context(long ptr, RBoyEvents events) {
+			this.handle = new Handle(ptr);
+			this.events = events;
+			this.cleanable = CLEANER.register(this, handle);
+		}
+
 		public static Context create(byte[] romData, boolean useNativeAudio) {
-			long ptr = construct_cpu(romData, useNativeAudio);
+			return create(romData, useNativeAudio, DEFAULT_AUDIO_BATCH_FRAMES);
+		}
+
+		public static Context create(byte[] romData, boolean useNativeAudio, int audioBatchFrames) {
+			return create(ByteBuffer.allocateDirect(romData.length).put(romData).flip(), useNativeAudio, audioBatchFrames);
+		}
+
+		public static Context create(ByteBuffer romData, boolean useNativeAudio) {
+			return create(romData, useNativeAudio, DEFAULT_AUDIO_BATCH_FRAMES);
+		}
+
+		/**
+		 * Contexts running the same ROM share a single read-only copy of it, see {@link #getRomCacheStats()}.
+		 *
+		 * @param romData a direct buffer, such as a mapped ROM file, read from its position to its limit. Not used after this returns.
+		 * @param audioBatchFrames how many audio frames to collect before notifying java, 0 to use the legacy {@link RBoyEvents#setAudioData} path
+		 */
+		public static Context create(ByteBuffer romData, boolean useNativeAudio, int audioBatchFrames) {
+			if (!romData.isDirect()) {
+				throw new IllegalArgumentException("ROM data must be a direct buffer");
+			}
+
+			RBoyEvents events = new RBoyEvents();
+			long ptr = construct_cpu(romData.slice(), useNativeAudio, audioBatchFrames, events);
 
 			if (ptr == 0) {
 				throw new RuntimeException();
 			}
 
-			return new Context(ptr);
+			return new Context(ptr, events);
 		}
 
+		public State getState() {
+			return handle.state;
+		}
+
+		/**
+		 * The audio callbacks of this context, only used when it was created without native audio.
+		 */
+		public RBoyEvents getEvents() {
+			return events;
+		}
+
+		/**
+		 * Stops the emulator, {@link #runCpu()} returns and {@link #runFrames(int)} returns -1 from then on.
+		 * Everything else keeps working until the context is closed, so the final state can still be saved.
+		 */
+		public void stop() {
+			handle.stop();
+		}
+
+		/**
+		 * Stops the emulator if needed and releases its native memory once calls in progress on other threads have returned.
+		 * Must not be called from within a listener of {@link #getEvents()}.
+		 */
+		@Override
+		public void close() {
+			cleanable.clean();
+		}
+
+		/**
+		 * Runs the emulator on the calling thread until it is stopped, see {@link EmulationScheduler} for running many contexts at once.
+		 * Returns straight away when the context has already been stopped.
+		 */
 		public void runCpu() {
-			run_cpu(ptr);
+			long ptr = acquire();
+			try {
+				if (handle.state == State.OPEN) {
+					run_cpu(ptr);
+				}
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Runs the emulator for the duration of the given number of frames on the calling thread, as fast as possible.
+		 *
+		 * @return the number of cycles executed, or -1 once the emulator has been stopped
+		 */
+		public long runFrames(int frames) {
+			long ptr = acquire();
+			try {
+				return handle.state == State.OPEN ? run_frames(ptr, frames) : -1;
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Runs for the duration of the given number of frames on the calling thread, ignoring the speed and drawing every frame.
+		 * Starting from the same state, the same frames and events always end on the same frame, for lockstep and batch runs.
+		 * Frames stay aligned with {@link #runFrames(int)}, so the two can be mixed.
+		 *
+		 * @return the cycles executed and the hash of the last completed frame, or {@link StepResult#STOPPED} once the emulator has been stopped
+		 */
+		public StepResult stepFrames(int frames) {
+			long[] result = new long[2];
+			long ptr = acquire();
+			try {
+				if (handle.state != State.OPEN || !step_frames(ptr, frames, result)) {
+					return StepResult.STOPPED;
+				}
+			} finally {
+				release();
+			}
+			return new StepResult(result[0], result[1]);
+		}
+
+		/**
+		 * Runs at least the given number of cycles on the calling thread, ignoring the speed and drawing every frame.
+		 * Instructions are not split, so up to a few cycles more may be executed.
+		 *
+		 * @return the cycles executed and the hash of the last completed frame, or {@link StepResult#STOPPED} once the emulator has been stopped
+		 */
+		public StepResult stepCycles(long cycles) {
+			long[] result = new long[2];
+			long ptr = acquire();
+			try {
+				if (handle.state != State.OPEN || !step_cycles(ptr, cycles, result)) {
+					return StepResult.STOPPED;
+				}
+			} finally {
+				release();
+			}
+			return new StepResult(result[0], result[1]);
+		}
+
+		/**
+		 * Captures the whole machine state, waiting for the frame currently being run to finish.
+		 * The state can only be loaded back into a context running the same ROM.
+		 */
+		public byte[] saveState() {
+			long ptr = acquire();
+			try {
+				return save_state(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Starts recording the key events applied from now on, tagged with the cycle they were applied at, along with a hash of
+		 * every 60th frame. Every frame is drawn while recording and rewinding is ignored, loading a state ends the recording.
+		 * See {@link InputRecorder} for writing recordings to disk.
+		 *
+		 * @return the state the recording starts from
+		 */
+		public byte[] startRecording() {
+			long ptr = acquire();
+			try {
+				return start_recording(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * @return the cycles the recording lasted, or -1 when it was not recording. Entries can still be taken afterwards.
+		 */
+		public long stopRecording() {
+			long ptr = acquire();
+			try {
+				return stop_recording(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Takes the recorded entries not taken yet, as pairs of longs: the cycle shifted left by 8 with the event in the low byte,
+		 * then the frame hash for {@link InputRecorder#FRAME_CHECKPOINT} entries.
+		 *
+		 * @return the number of entries taken, or -1 once every entry of a stopped recording has been taken
+		 */
+		public int takeRecording(long[] entries) {
+			long ptr = acquire();
+			try {
+				return take_recording(ptr, entries);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Restores a state from {@link #saveState()}, between two frames. The context is left unchanged when this fails.
+		 *
+		 * @throws IllegalArgumentException with the reason, if the state is corrupt, from another ROM or from an incompatible version
+		 */
+		public void loadState(byte[] state) {
+			long ptr = acquire();
+			try {
+				load_state(ptr, state);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Sets the emulation speed relative to real time, from {@link #MIN_SPEED} up to {@link #UNTHROTTLED}.
+		 * Faster than real time, only frames that can be shown are drawn.
+		 */
+		public void setSpeed(double speed) {
+			if (!(speed >= MIN_SPEED)) {
+				throw new IllegalArgumentException("Speed must be at least " + MIN_SPEED + ", got " + speed);
+			}
+
+			long ptr = acquire();
+			try {
+				set_speed(ptr, speed);
+			} finally {
+				release();
+			}
+		}
+
+		public double getSpeed() {
+			long ptr = acquire();
+			try {
+				return get_speed(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * At real time speed, nudges the frame rate by up to half a percent to match the rate native audio is played at.
+		 * On by default, has no effect when audio goes through java.
+		 */
+		public void setAudioSync(boolean audioSync) {
+			long ptr = acquire();
+			try {
+				set_audio_sync(ptr, audioSync);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Prints the bytes the game sends over the serial port to stdout, such as test ROM results. Off by default,
+		 * and has no effect while a link cable or the printer is connected.
+		 */
+		public void setSerialOutput(boolean output) {
+			long ptr = acquire();
+			try {
+				set_serial_output(ptr, output);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Connects a link cable between this context and another, replacing any cable either was connected with.
+		 * The contexts can run on different threads; they are only kept in step while a transfer waits for the other end,
+		 * so for trading and versus games they should not share a thread, such as by scheduling both on an {@link EmulationScheduler}
+		 * with a worker for each.
+		 * The cable is disconnected when either context is closed.
+		 */
+		public void connectLink(Context other) {
+			if (other == this) {
+				throw new IllegalArgumentException("Cannot link a context to itself");
+			}
+
+			long ptr = acquire();
+			try {
+				long otherPtr = other.acquire();
+				try {
+					connect_link(ptr, otherPtr);
+				} finally {
+					other.release();
+				}
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Unplugs the link cable, after which transfers started by either end read 0xFF.
+		 */
+		public void disconnectLink() {
+			long ptr = acquire();
+			try {
+				disconnect_link(ptr);
+			} finally {
+				release();
+			}
 		}
 
+		/**
+		 * @return the size in bytes of the cartridge's RAM, 0 when it has none
+		 */
+		public int getSaveRamSize() {
+			long ptr = acquire();
+			try {
+				return get_save_ram_size(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Moves the cartridge RAM into the given direct buffer, such as a mapped save file, which the native side keeps alive.
+		 *
+		 * @param existing whether the buffer already holds a save to continue from, otherwise the current RAM is copied into it
+		 * @return false when the cartridge has no RAM, or the buffer is smaller than {@link #getSaveRamSize()}
+		 */
+		public boolean attachSaveRam(ByteBuffer buffer, boolean existing) {
+			long ptr = acquire();
+			try {
+				return attach_save_ram(ptr, buffer, existing);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Returns and clears a bitmap of the {@link SaveRam#PAGE_SIZE} pages of the attached RAM written since the last call.
+		 */
+		public long takeSaveRamDirtyPages() {
+			long ptr = acquire();
+			try {
+				return take_save_ram_dirty_pages(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Keeps a snapshot every {@code intervalFrames} frames for rewinding, using at most {@code budgetBytes} of native
+		 * memory and dropping the oldest snapshots beyond that. Replaces any existing history, a budget of 0 turns rewinding off.
+		 */
+		public void setRewind(long budgetBytes, int intervalFrames) {
+			long ptr = acquire();
+			try {
+				set_rewind(ptr, budgetBytes, intervalFrames);
+			} finally {
+				release();
+			}
+		}
+
+		public RewindStats getRewindStats() {
+			long[] stats = new long[6];
+			long ptr = acquire();
+			try {
+				get_rewind_stats(ptr, stats);
+			} finally {
+				release();
+			}
+			return new RewindStats((int) stats[0], stats[1], stats[2], (int) stats[3], stats[4], stats[5]);
+		}
+
+		/**
+		 * Returns the latest frame, or the previous one again if nothing new has been produced. Never blocks.
+		 */
 		public byte[] getGpuData() {
-			return get_gpu_data(ptr);
+			long ptr = acquire();
+			try {
+				return get_gpu_data(ptr);
+			} finally {
+				release();
+			}
 		}
-		
+
+		/**
+		 * Returns the latest frame, or null when no new frame has arrived since the last poll. Never blocks.
+		 */
+		@Nullable
+		public byte[] pollGpuData() {
+			long ptr = acquire();
+			try {
+				return poll_gpu_data(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Returns a direct buffer backed by the native frame memory, it stays valid until the context is closed and must not be read after that.
+		 * Use {@link #pollFrame()} to find out where in this buffer the latest frame is.
+		 */
+		public ByteBuffer getFrameBuffer() {
+			long ptr = acquire();
+			try {
+				return get_frame_buffer(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Hands the latest frame over to the caller without copying it. Never blocks.
+		 *
+		 * @return the offset of the latest frame within {@link #getFrameBuffer()}, or -1 when no new frame has arrived
+		 * since the last poll, in which case the previously returned offset remains valid.
+		 */
+		public int pollFrame() {
+			FlightEvents.NativeCall event = new FlightEvents.NativeCall();
+			event.begin();
+			long ptr = acquire();
+			try {
+				return poll_frame(ptr);
+			} finally {
+				release();
+				commit(event, "poll_frame");
+			}
+		}
+
+		/**
+		 * The layout of the latest polled frame, always {@link FrameFormat#RGB} unless indexed frames have been enabled.
+		 */
+		public FrameFormat getFrameFormat() {
+			long ptr = acquire();
+			try {
+				return FrameFormat.byId(get_frame_format(ptr));
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Asks for frames as palette indices from now on, 2bpp for DMG games and 8bpp for colour games.
+		 * Frames that can't be indexed, such as colour frames with more than 256 colours, are still produced as RGB,
+		 * so check {@link #getFrameFormat()} for every frame.
+		 */
+		public void setIndexedFrames(boolean indexed) {
+			long ptr = acquire();
+			try {
+				set_indexed_frames(ptr, indexed);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Fills a bitmap of the rows of the latest polled frame that changed since the previously polled frame.
+		 *
+		 * @param rows at least 3 longs, one bit per scanline
+		 */
+		public void getFrameDirtyRows(long[] rows) {
+			long ptr = acquire();
+			try {
+				get_frame_dirty_rows(ptr, rows);
+			} finally {
+				release();
+			}
+		}
+
+		public FrameStats getFrameStats() {
+			long[] stats = new long[3];
+			long ptr = acquire();
+			try {
+				get_frame_stats(ptr, stats);
+			} finally {
+				release();
+			}
+			return new FrameStats(stats[0], stats[1], stats[2]);
+		}
+
+		/**
+		 * The sequence of the last input passed to {@link #sendInput(int, long)} that was applied before the latest polled frame was completed.
+		 */
+		public long getFrameInputSequence() {
+			long ptr = acquire();
+			try {
+				return get_frame_input_sequence(ptr);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Starts timing JNI calls and sampling the audio queue, the counters that fall out of emulation are always kept.
+		 */
+		public void setMetricsEnabled(boolean enabled) {
+			long ptr = acquire();
+			try {
+				set_metrics_enabled(ptr, enabled);
+			} finally {
+				release();
+			}
+		}
+
+		public Metrics getMetrics() {
+			long[] metrics = new long[12];
+			long ptr = acquire();
+			try {
+				get_metrics(ptr, metrics);
+			} finally {
+				release();
+			}
+			return new Metrics(System.nanoTime(), metrics[0], metrics[1], metrics[2], metrics[3], metrics[4], metrics[5],
+				new CallMetrics(metrics[6], metrics[7], metrics[8]), new CallMetrics(metrics[9], metrics[10], metrics[11]));
+		}
+
+		/**
+		 * Sends an event to the emulator, {@link Events#STOP} is the same as {@link #stop()}.
+		 */
 		public void sendEvent(int event) {
-			send_event(ptr, event);
+			if (event == Events.STOP) {
+				stop();
+				return;
+			}
+
+			FlightEvents.NativeCall call = new FlightEvents.NativeCall();
+			call.begin();
+			long ptr = acquire();
+			try {
+				send_event(ptr, event);
+			} finally {
+				release();
+				commit(call, "send_event");
+			}
+		}
+
+		/**
+		 * Sends a key event that is applied at the next scanline, reporting its sequence back through {@link #getFrameInputSequence()}
+		 * once a frame reflects it. Sequences must increase, see {@link InputLatency#keyEvent()}.
+		 */
+		public void sendInput(int event, long inputSequence) {
+			FlightEvents.NativeCall call = new FlightEvents.NativeCall();
+			call.begin();
+			long ptr = acquire();
+			try {
+				send_input(ptr, event, inputSequence);
+			} finally {
+				release();
+				commit(call, "send_input");
+			}
+		}
+
+		/**
+		 * Every native call is made between this and {@link #release()}, so the context can't be freed underneath it.
+		 */
+		private long acquire() {
+			handle.lock.readLock().lock();
+
+			if (handle.state == State.CLOSED) {
+				handle.lock.readLock().unlock();
+				throw new IllegalStateException("Context has been closed");
+			}
+
+			return handle.ptr;
+		}
+
+		private void release() {
+			handle.lock.readLock().unlock();
+			// Otherwise the cleaner could free the context while the native call that only uses the ptr is still running
+			Reference.reachabilityFence(this);
+		}
+
+		private static void commit(FlightEvents.NativeCall event, String method) {
+			if (event.shouldCommit()) {
+				event.method = method;
+				event.commit();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Context[" + handle.state + "]";
+		}
+
+		/**
+		 * The native side of a context, kept apart from it so the cleaner does not keep the context reachable.
+		 */
+		private static final class Handle implements Runnable {
+			private final long ptr;
+			// Read locked around every native call, write locked to free the context once they have all returned
+			private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			private volatile State state = State.OPEN;
+
+			private Handle(long ptr) {
+				this.ptr = ptr;
+			}
+
+			private void stop() {
+				lock.readLock().lock();
+				try {
+					synchronized (this) {
+						if (state != State.OPEN) {
+							return;
+						}
+
+						state = State.STOPPED;
+					}
+
+					send_event(ptr, Events.STOP);
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			// Run once, by close or by the cleaner
+			@Override
+			public void run() {
+				// Makes a running runCpu or runFrames return, so the write lock can be taken
+				stop();
+
+				lock.writeLock().lock();
+				try {
+					state = State.CLOSED;
+					destroy_cpu(ptr);
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The lifecycle of a {@link Context}, which only ever moves forwards.
+	 */
+	public enum State {
+		/**
+		 * Can be run.
+		 */
+		OPEN,
+		/**
+		 * The emulator has been stopped, its state and frames can still be read.
+		 */
+		STOPPED,
+		/**
+		 * The native memory has been released, every call is rejected.
+		 */
+		CLOSED
+	}
+
+	/**
+	 * The ROM images shared by all contexts, an image is evicted a minute after the last context using it has been closed.
+	 */
+	public static RomCacheStats getRomCacheStats() {
+		long[] stats = new long[3];
+		get_rom_cache_stats(stats);
+		return new RomCacheStats((int) stats[0], stats[1], stats[2]);
+	}
+
+	/**
+	 * @param images ROM images held, including idle ones waiting to be evicted
+	 * @param bytes total size of those images
+	 * @param hits contexts created with an image that was already loaded, since the library was loaded
+	 */
+	public record RomCacheStats(int images, long bytes, long hits) {
+	}
+
+	/**
+	 * @param cycles the cycles executed, -1 once the emulator has been stopped
+	 * @param frameHash a hash of the RGB pixels of the last frame completed while stepping, 0 before the first one
+	 */
+	public record StepResult(long cycles, long frameHash) {
+		public static final StepResult STOPPED = new StepResult(-1, 0);
+
+		public boolean stopped() {
+			return cycles < 0;
+		}
+	}
+
+	/**
+	 * @param sequence the sequence number of the last frame handed to java
+	 * @param dropped frames produced by the emulator that were replaced before they could be polled
+	 * @param duplicated polls that found no new frame, and so reused the previous one
+	 */
+	public record FrameStats(long sequence, long dropped, long duplicated) {
+	}
+
+	/**
+	 * A snapshot of a context's counters, rates come from the difference between two snapshots, see {@link #cyclesPerSecond(Metrics)}.
+	 *
+	 * @param nanoTime when the snapshot was taken
+	 * @param framesProduced frames completed by the emulator, skipped frames while fast forwarding are not produced
+	 * @param lastDeliveredSequence the sequence number of the last frame handed to java
+	 * @param audioQueuedNanos audio waiting to be played by the native player, -1 when unknown or not enabled
+	 * @param pollFrame only timed while enabled
+	 * @param sendEvent only timed while enabled, includes {@link Context#sendInput(int, long)}
+	 */
+	public record Metrics(long nanoTime, long cycles, long framesProduced, long lastDeliveredSequence, long framesDropped, long framesDuplicated,
+						  long audioQueuedNanos, CallMetrics pollFrame, CallMetrics sendEvent) {
+		/**
+		 * Produced frames that were polled, rather than replaced by a newer frame first.
+		 */
+		public long framesDelivered() {
+			return lastDeliveredSequence - framesDropped;
+		}
+
+		public double cyclesPerSecond(Metrics previous) {
+			long nanos = nanoTime - previous.nanoTime;
+			return nanos <= 0 ? 0 : (cycles - previous.cycles) * 1e9 / nanos;
+		}
+
+		public double framesPerSecond(Metrics previous) {
+			long nanos = nanoTime - previous.nanoTime;
+			return nanos <= 0 ? 0 : (framesProduced - previous.framesProduced) * 1e9 / nanos;
+		}
+	}
+
+	public record CallMetrics(long calls, long totalNanos, long maxNanos) {
+		public double meanNanos() {
+			return calls == 0 ? 0 : (double) totalNanos / calls;
+		}
+	}
+
+	/**
+	 * @param snapshots snapshots currently held, how far back rewinding can go
+	 * @param bytesUsed native memory held by the history
+	 * @param captures snapshots taken since rewinding was enabled, including evicted ones
+	 * @param captureNanos total time spent taking those snapshots
+	 */
+	public record RewindStats(int snapshots, long bytesUsed, long budgetBytes, int intervalFrames, long captures, long captureNanos) {
+		public double historySeconds() {
+			return snapshots * intervalFrames / FRAME_RATE;
+		}
+
+		public double bytesPerSecond() {
+			double seconds = historySeconds();
+			return seconds == 0 ? 0 : bytesUsed / seconds;
+		}
+
+		/**
+		 * Snapshot cost spread over every frame, as only one in {@link #intervalFrames()} frames takes one.
+		 */
+		public double captureNanosPerFrame() {
+			return captures == 0 ? 0 : (double) captureNanos / captures / intervalFrames;
 		}
 	}
 }
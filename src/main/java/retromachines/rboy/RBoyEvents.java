@@ -1,26 +1,75 @@
 package retromachines.rboy;
 
-import net.fabricmc.fabric.api.event.Event;
-import net.fabricmc.fabric.api.event.EventFactory;
+import org.jetbrains.annotations.Nullable;
 
-public class RBoyEvents {
-	public static Event<AudioData> AUDIO_DATA = EventFactory.createArrayBacked(AudioData.class, callbacks -> (leftChannel, rightChannel) -> {
-		for (AudioData callback : callbacks) {
-			callback.onData(leftChannel, rightChannel);
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Callbacks from the emulator of a single context, see {@link RBoy.Context#getEvents()}. Listeners are invoked on the thread running the emulator.
+ *
+ * <p>The native side holds on to this until the context is closed, so listeners must not reference the context itself
+ * or it can never be cleaned up when it is dropped without being closed.
+ */
+public final class RBoyEvents {
+	@Nullable
+	private volatile AudioBatch audioBatch;
+	@Nullable
+	private volatile AudioData audioData;
+
+	public void setAudioBatch(@Nullable AudioBatch listener) {
+		audioBatch = listener;
+	}
+
+	/**
+	 * Only called when the context is created with an audio batch size of 0, prefer {@link #setAudioBatch(AudioBatch)}.
+	 */
+	public void setAudioData(@Nullable AudioData listener) {
+		audioData = listener;
+	}
+
+	// Invoked via JNI
+	@SuppressWarnings("unused")
+	public void audio_batch(ByteBuffer samples, int frames) {
+		AudioBatch listener = audioBatch;
+
+		if (listener == null) {
+			return;
 		}
-	});
+
+		try {
+			listener.onData(samples.order(ByteOrder.nativeOrder()), frames);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			throw t;
+		}
+	}
 
 	// Invoked via JNI
 	@SuppressWarnings("unused")
-	public static void audio_callback(float[] leftChannel, float[] rightChannel) {
+	public void audio_callback(float[] leftChannel, float[] rightChannel) {
+		AudioData listener = audioData;
+
+		if (listener == null) {
+			return;
+		}
+
 		try {
-			AUDIO_DATA.invoker().onData(leftChannel, rightChannel);
+			listener.onData(leftChannel, rightChannel);
 		} catch (Throwable t) {
 			t.printStackTrace();
 			throw t;
 		}
 	}
 
+	public interface AudioBatch {
+		/**
+		 * @param samples interleaved 16-bit stereo frames in native byte order, starting at index 0. Only valid for the duration of the call.
+		 * @param frames the number of frames in the buffer
+		 */
+		void onData(ByteBuffer samples, int frames);
+	}
+
 	public interface AudioData {
 		void onData(float[] leftChannel, float[] rightChannel);
 	}
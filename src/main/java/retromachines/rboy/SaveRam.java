@@ -0,0 +1,144 @@
+package retromachines.rboy;
+
+import com.mojang.logging.LogUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Battery backed cartridge RAM kept in a memory mapped save file. The emulator writes straight into the mapping,
+ * and the pages it dirtied are forced to disk periodically in the background, so there is no I/O on the emulator thread
+ * and a crash loses at most {@link #FLUSH_INTERVAL_SECONDS} of progress.
+ */
+public final class SaveRam implements AutoCloseable {
+	/**
+	 * Granularity of the native dirty page bitmap.
+	 */
+	public static final int PAGE_SIZE = 4096;
+	public static final long FLUSH_INTERVAL_SECONDS = 5;
+
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "RetroMachines save RAM flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final AtomicLong TOTAL_BYTES_FLUSHED = new AtomicLong();
+
+	private final RBoy.Context context;
+	private final MappedByteBuffer buffer;
+	private final Path path;
+	private final ScheduledFuture<?> flushTask;
+	private long bytesFlushed = 0;
+	private boolean closed = false;
+
+	private SaveRam(RBoy.Context context, MappedByteBuffer buffer, Path path) {
+		this.context = context;
+		this.buffer = buffer;
+		this.path = path;
+		this.flushTask = FLUSHER.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Maps the save file, creating it when needed, and moves the context's cartridge RAM into it.
+	 * An existing save file replaces the cartridge RAM, including any restored from a save state before this.
+	 * Must be done before the context starts running.
+	 *
+	 * @return null when the cartridge has no RAM
+	 */
+	@Nullable
+	public static SaveRam open(RBoy.Context context, Path path) throws IOException {
+		int size = context.getSaveRamSize();
+
+		if (size == 0) {
+			return null;
+		}
+
+		Files.createDirectories(path.getParent());
+
+		boolean existing;
+		MappedByteBuffer buffer;
+
+		// The mapping stays valid once the channel is closed
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// Saves from other emulators may have extra data, such as the clock, after the RAM
+			existing = channel.size() > 0;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		if (!context.attachSaveRam(buffer, existing)) {
+			throw new IllegalStateException("Failed to attach save RAM");
+		}
+
+		return new SaveRam(context, buffer, path);
+	}
+
+	/**
+	 * Bytes written to disk by all save files since startup.
+	 */
+	public static long getTotalBytesFlushed() {
+		return TOTAL_BYTES_FLUSHED.get();
+	}
+
+	public synchronized long getBytesFlushed() {
+		return bytesFlushed;
+	}
+
+	/**
+	 * Forces the pages written since the last flush to disk.
+	 */
+	public synchronized void flush() {
+		if (closed) {
+			return;
+		}
+
+		long pages = context.takeSaveRamDirtyPages();
+
+		while (pages != 0) {
+			int page = Long.numberOfTrailingZeros(pages);
+			pages &= pages - 1;
+
+			int offset = page * PAGE_SIZE;
+
+			if (offset >= buffer.capacity()) {
+				break;
+			}
+
+			// The last bit also covers any pages after it
+			int length = page == Long.SIZE - 1 ? buffer.capacity() - offset : Math.min(PAGE_SIZE, buffer.capacity() - offset);
+			buffer.force(offset, length);
+			bytesFlushed += length;
+			TOTAL_BYTES_FLUSHED.addAndGet(length);
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (UncheckedIOException e) {
+			LOGGER.error("Failed to flush save RAM to {}", path, e);
+		}
+	}
+
+	/**
+	 * Flushes anything left, must be called before the context is stopped.
+	 */
+	@Override
+	public synchronized void close() {
+		flushTask.cancel(false);
+		flush();
+		closed = true;
+	}
+}
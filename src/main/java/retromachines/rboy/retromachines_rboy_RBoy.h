@@ -10,10 +10,26 @@ extern "C" {
 /*
  * Class:     retromachines_rboy_RBoy
  * Method:    construct_cpu
- * Signature: ([BZ)J
+ * Signature: (Ljava/nio/ByteBuffer;ZILretromachines/rboy/RBoyEvents;)J
  */
 JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_construct_1cpu
-  (JNIEnv *, jclass, jbyteArray, jboolean);
+  (JNIEnv *, jclass, jobject, jboolean, jint, jobject);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    destroy_cpu
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_destroy_1cpu
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_rom_cache_stats
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_get_1rom_1cache_1stats
+  (JNIEnv *, jclass, jlongArray);
 
 /*
  * Class:     retromachines_rboy_RBoy
@@ -23,6 +39,158 @@ JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_construct_1cpu
 JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_run_1cpu
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    run_frames
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_run_1frames
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    step_frames
+ * Signature: (JI[J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_retromachines_rboy_RBoy_step_1frames
+  (JNIEnv *, jclass, jlong, jint, jlongArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    step_cycles
+ * Signature: (JJ[J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_retromachines_rboy_RBoy_step_1cycles
+  (JNIEnv *, jclass, jlong, jlong, jlongArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    start_recording
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_retromachines_rboy_RBoy_start_1recording
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    stop_recording
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_stop_1recording
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    take_recording
+ * Signature: (J[J)I
+ */
+JNIEXPORT jint JNICALL Java_retromachines_rboy_RBoy_take_1recording
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    save_state
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_retromachines_rboy_RBoy_save_1state
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    load_state
+ * Signature: (J[B)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_load_1state
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_save_ram_size
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_retromachines_rboy_RBoy_get_1save_1ram_1size
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    attach_save_ram
+ * Signature: (JLjava/nio/ByteBuffer;Z)Z
+ */
+JNIEXPORT jboolean JNICALL Java_retromachines_rboy_RBoy_attach_1save_1ram
+  (JNIEnv *, jclass, jlong, jobject, jboolean);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    take_save_ram_dirty_pages
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_take_1save_1ram_1dirty_1pages
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_speed
+ * Signature: (JD)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1speed
+  (JNIEnv *, jclass, jlong, jdouble);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_speed
+ * Signature: (J)D
+ */
+JNIEXPORT jdouble JNICALL Java_retromachines_rboy_RBoy_get_1speed
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_audio_sync
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1audio_1sync
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_serial_output
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1serial_1output
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    connect_link
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_connect_1link
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    disconnect_link
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_disconnect_1link
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_rewind
+ * Signature: (JJI)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1rewind
+  (JNIEnv *, jclass, jlong, jlong, jint);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_rewind_stats
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_get_1rewind_1stats
+  (JNIEnv *, jclass, jlong, jlongArray);
+
 /*
  * Class:     retromachines_rboy_RBoy
  * Method:    get_gpu_data
@@ -31,6 +199,86 @@ JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_run_1cpu
 JNIEXPORT jbyteArray JNICALL Java_retromachines_rboy_RBoy_get_1gpu_1data
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    poll_gpu_data
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_retromachines_rboy_RBoy_poll_1gpu_1data
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_frame_buffer
+ * Signature: (J)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_retromachines_rboy_RBoy_get_1frame_1buffer
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    poll_frame
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_retromachines_rboy_RBoy_poll_1frame
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_frame_format
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_retromachines_rboy_RBoy_get_1frame_1format
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_indexed_frames
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1indexed_1frames
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_frame_dirty_rows
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_get_1frame_1dirty_1rows
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_frame_stats
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_get_1frame_1stats
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_frame_input_sequence
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_retromachines_rboy_RBoy_get_1frame_1input_1sequence
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    set_metrics_enabled
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_set_1metrics_1enabled
+  (JNIEnv *, jclass, jlong, jboolean);
+
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    get_metrics
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_get_1metrics
+  (JNIEnv *, jclass, jlong, jlongArray);
+
 /*
  * Class:     retromachines_rboy_RBoy
  * Method:    send_event
@@ -39,6 +287,14 @@ JNIEXPORT jbyteArray JNICALL Java_retromachines_rboy_RBoy_get_1gpu_1data
 JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_send_1event
   (JNIEnv *, jclass, jlong, jint);
 
+/*
+ * Class:     retromachines_rboy_RBoy
+ * Method:    send_input
+ * Signature: (JIJ)V
+ */
+JNIEXPORT void JNICALL Java_retromachines_rboy_RBoy_send_1input
+  (JNIEnv *, jclass, jlong, jint, jlong);
+
 #ifdef __cplusplus
 }
 #endif
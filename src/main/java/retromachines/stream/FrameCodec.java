@@ -0,0 +1,263 @@
+package retromachines.stream;
+
+import io.netty.handler.codec.DecoderException;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import net.minecraft.network.PacketByteBuf;
+import retromachines.rboy.RBoy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses the RGB frames produced by the emulator so they can be sent over the network.
+ * Pixels are mapped to palette indices, XOR'd against the indices of the previous frame and the result is run length encoded.
+ * A Game Boy only shows a handful of colours and most of the screen stays the same between frames, so a frame is
+ * usually a few hundred bytes rather than the 69KB of RGB data.
+ *
+ * <p>Each encoded frame is a type byte, the palette entries added since the last frame, then runs of
+ * {@code <unchanged pixel count> <changed pixel count> <changed pixels...>} until the frame is covered.
+ * Keyframes start from an empty palette and all zero indices, so they can be decoded without any earlier frame.
+ */
+public final class FrameCodec {
+	public static final int WIDTH = 160;
+	public static final int HEIGHT = 144;
+	public static final int PIXELS = WIDTH * HEIGHT;
+	public static final int MAX_PALETTE = 256;
+	/**
+	 * Upper bound of an encoded frame, a raw frame plus its type byte.
+	 */
+	public static final int MAX_ENCODED_SIZE = RBoy.FRAME_SIZE + 1;
+
+	private static final byte KEYFRAME = 0;
+	private static final byte DELTA = 1;
+	// More colours on screen than fit in a palette, only possible with colour games changing palettes mid frame
+	private static final byte RAW = 2;
+	// Changed runs continue through this many unchanged pixels, ending a run costs more than it saves
+	private static final int MAX_LITERAL_GAP = 2;
+
+	private FrameCodec() {
+	}
+
+	public static final class Encoder {
+		private final int keyframeInterval;
+		private final Int2IntOpenHashMap colours = new Int2IntOpenHashMap();
+		private final int[] palette = new int[MAX_PALETTE];
+		private int paletteSize = 0;
+		// Palette entries the decoder already knows about
+		private int paletteSent = 0;
+		private byte[] previous = new byte[PIXELS];
+		private byte[] current = new byte[PIXELS];
+		private int framesSinceKeyframe = 0;
+		private boolean keyframeRequested = true;
+
+		/**
+		 * @param keyframeInterval the maximum number of delta frames between two keyframes
+		 */
+		public Encoder(int keyframeInterval) {
+			this.keyframeInterval = keyframeInterval;
+			colours.defaultReturnValue(-1);
+		}
+
+		/**
+		 * Makes the next frame a keyframe, for when a new decoder starts listening.
+		 */
+		public void requestKeyframe() {
+			keyframeRequested = true;
+		}
+
+		/**
+		 * Encodes the {@link RBoy#FRAME_SIZE} bytes of RGB data starting at the frame's position, the position is not changed.
+		 */
+		public void encode(ByteBuffer frame, PacketByteBuf out) {
+			boolean keyframe = keyframeRequested || framesSinceKeyframe >= keyframeInterval;
+
+			if (!index(frame)) {
+				// The palette filled up, start a new one
+				resetPalette();
+				keyframe = true;
+
+				if (!index(frame)) {
+					writeRaw(frame, out);
+					resetPalette();
+					keyframeRequested = true;
+					return;
+				}
+			}
+
+			if (keyframe) {
+				paletteSent = 0;
+				Arrays.fill(previous, (byte) 0);
+			}
+
+			out.writeByte(keyframe ? KEYFRAME : DELTA);
+			out.writeVarInt(paletteSent);
+			out.writeVarInt(paletteSize - paletteSent);
+
+			for (int i = paletteSent; i < paletteSize; i++) {
+				out.writeMedium(palette[i]);
+			}
+
+			paletteSent = paletteSize;
+			writeRuns(out);
+
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+
+			framesSinceKeyframe = keyframe ? 0 : framesSinceKeyframe + 1;
+			keyframeRequested = false;
+		}
+
+		private boolean index(ByteBuffer frame) {
+			int base = frame.position();
+			int lastColour = -1;
+			int lastIndex = 0;
+
+			for (int i = 0; i < PIXELS; i++) {
+				int offset = base + i * 3;
+				int colour = (frame.get(offset) & 0xFF) << 16 | (frame.get(offset + 1) & 0xFF) << 8 | (frame.get(offset + 2) & 0xFF);
+
+				if (colour != lastColour) {
+					int index = colours.get(colour);
+
+					if (index < 0) {
+						if (paletteSize == MAX_PALETTE) {
+							return false;
+						}
+
+						index = paletteSize++;
+						palette[index] = colour;
+						colours.put(colour, index);
+					}
+
+					lastColour = colour;
+					lastIndex = index;
+				}
+
+				current[i] = (byte) lastIndex;
+			}
+
+			return true;
+		}
+
+		private void writeRuns(PacketByteBuf out) {
+			int pixel = 0;
+
+			while (pixel < PIXELS) {
+				int unchanged = 0;
+
+				while (pixel + unchanged < PIXELS && current[pixel + unchanged] == previous[pixel + unchanged]) {
+					unchanged++;
+				}
+
+				pixel += unchanged;
+
+				int start = pixel;
+				int end = pixel;
+				int gap = 0;
+
+				while (pixel < PIXELS) {
+					if (current[pixel] != previous[pixel]) {
+						gap = 0;
+						end = pixel + 1;
+					} else if (++gap > MAX_LITERAL_GAP) {
+						break;
+					}
+
+					pixel++;
+				}
+
+				pixel = end;
+
+				out.writeVarInt(unchanged);
+				out.writeVarInt(end - start);
+
+				for (int i = start; i < end; i++) {
+					out.writeByte(current[i] ^ previous[i]);
+				}
+			}
+		}
+
+		private void writeRaw(ByteBuffer frame, PacketByteBuf out) {
+			out.writeByte(RAW);
+			out.writeBytes(frame.duplicate().limit(frame.position() + RBoy.FRAME_SIZE));
+		}
+
+		private void resetPalette() {
+			colours.clear();
+			paletteSize = 0;
+			paletteSent = 0;
+		}
+	}
+
+	public static final class Decoder {
+		private final byte[] indices = new byte[PIXELS];
+		private final int[] palette = new int[MAX_PALETTE];
+		private boolean hasKeyframe = false;
+
+		/**
+		 * Decodes a frame into {@link RBoy#FRAME_SIZE} bytes of RGB data starting at the output's position, the position is not changed.
+		 *
+		 * @return false when the frame is a delta against a keyframe this decoder has not seen, the output is left untouched
+		 */
+		public boolean decode(PacketByteBuf in, ByteBuffer out) {
+			byte type = in.readByte();
+			int base = out.position();
+
+			if (type == RAW) {
+				for (int i = 0; i < RBoy.FRAME_SIZE; i++) {
+					out.put(base + i, in.readByte());
+				}
+
+				// The indices no longer match what is on screen
+				hasKeyframe = false;
+				return true;
+			}
+
+			if (type == KEYFRAME) {
+				Arrays.fill(indices, (byte) 0);
+				hasKeyframe = true;
+			} else if (type != DELTA) {
+				throw new DecoderException("Unknown frame type " + type);
+			} else if (!hasKeyframe) {
+				return false;
+			}
+
+			int firstColour = in.readVarInt();
+			int colourCount = in.readVarInt();
+
+			if (firstColour < 0 || colourCount < 0 || firstColour + colourCount > MAX_PALETTE) {
+				throw new DecoderException("Invalid palette range " + firstColour + "+" + colourCount);
+			}
+
+			for (int i = 0; i < colourCount; i++) {
+				palette[firstColour + i] = in.readUnsignedMedium();
+			}
+
+			int pixel = 0;
+
+			while (pixel < PIXELS) {
+				pixel += in.readVarInt();
+				int changed = in.readVarInt();
+
+				if (pixel < 0 || changed < 0 || pixel + changed > PIXELS) {
+					throw new DecoderException("Run past the end of the frame");
+				}
+
+				for (int i = 0; i < changed; i++) {
+					indices[pixel++] ^= in.readByte();
+				}
+			}
+
+			for (int i = 0; i < PIXELS; i++) {
+				int colour = palette[indices[i] & 0xFF];
+				int offset = base + i * 3;
+				out.put(offset, (byte) (colour >> 16));
+				out.put(offset + 1, (byte) (colour >> 8));
+				out.put(offset + 2, (byte) colour);
+			}
+
+			return true;
+		}
+	}
+}
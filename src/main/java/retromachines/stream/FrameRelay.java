@@ -0,0 +1,126 @@
+package retromachines.stream;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.PlayerLookup;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Relays the frames players upload from the game they are playing to the players tracking them, so others can watch.
+ * Frames are encoded once by the streaming client and passed on as they are. Only accessed from the server thread.
+ */
+public final class FrameRelay {
+	// How often the players watching each stream are looked up again
+	private static final int WATCHER_UPDATE_TICKS = 10;
+	// Streaming player to the players watching them
+	private static final Map<UUID, Set<UUID>> STREAMS = new HashMap<>();
+
+	private FrameRelay() {
+	}
+
+	public static void register() {
+		ServerPlayNetworking.registerGlobalReceiver(FrameUploadPacket.TYPE, (packet, player, responseSender) -> receive(player, packet));
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> end(server, handler.player));
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			if (server.getTicks() % WATCHER_UPDATE_TICKS == 0) {
+				updateWatchers(server);
+			}
+		});
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> STREAMS.clear());
+	}
+
+	private static void receive(ServerPlayerEntity player, FrameUploadPacket packet) {
+		if (packet.isEnd()) {
+			end(player.getServer(), player);
+			return;
+		}
+
+		Set<UUID> watchers = STREAMS.get(player.getUuid());
+
+		if (watchers == null) {
+			// A new stream, its first frame is a keyframe
+			watchers = new HashSet<>();
+			STREAMS.put(player.getUuid(), watchers);
+			updateWatchers(player.getServer(), player, watchers);
+		}
+
+		FrameStreamPacket frame = new FrameStreamPacket(player.getId(), packet.frame());
+
+		for (UUID uuid : watchers) {
+			ServerPlayerEntity watcher = player.getServer().getPlayerManager().getPlayer(uuid);
+
+			if (watcher != null) {
+				ServerPlayNetworking.send(watcher, frame);
+			}
+		}
+	}
+
+	private static void updateWatchers(MinecraftServer server) {
+		for (Map.Entry<UUID, Set<UUID>> stream : STREAMS.entrySet()) {
+			ServerPlayerEntity player = server.getPlayerManager().getPlayer(stream.getKey());
+
+			if (player != null) {
+				updateWatchers(server, player, stream.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Starts sending the stream to players who began tracking the streaming player, and ends it for those who stopped.
+	 */
+	private static void updateWatchers(MinecraftServer server, ServerPlayerEntity player, Set<UUID> watchers) {
+		Set<UUID> current = new HashSet<>();
+		boolean joined = false;
+
+		for (ServerPlayerEntity watcher : PlayerLookup.tracking(player)) {
+			current.add(watcher.getUuid());
+			joined |= !watchers.contains(watcher.getUuid());
+		}
+
+		for (UUID uuid : watchers) {
+			if (!current.contains(uuid)) {
+				ServerPlayerEntity watcher = server.getPlayerManager().getPlayer(uuid);
+
+				if (watcher != null) {
+					ServerPlayNetworking.send(watcher, FrameStreamPacket.end(player.getId()));
+				}
+			}
+		}
+
+		boolean wasWatched = !watchers.isEmpty();
+		watchers.clear();
+		watchers.addAll(current);
+
+		if (joined) {
+			// New watchers can't decode deltas without a keyframe
+			ServerPlayNetworking.send(player, new StreamControlPacket(true));
+		} else if (wasWatched && current.isEmpty()) {
+			ServerPlayNetworking.send(player, new StreamControlPacket(false));
+		}
+	}
+
+	private static void end(MinecraftServer server, ServerPlayerEntity player) {
+		Set<UUID> watchers = STREAMS.remove(player.getUuid());
+
+		if (watchers == null) {
+			return;
+		}
+
+		for (UUID uuid : watchers) {
+			ServerPlayerEntity watcher = server.getPlayerManager().getPlayer(uuid);
+
+			if (watcher != null) {
+				ServerPlayNetworking.send(watcher, FrameStreamPacket.end(player.getId()));
+			}
+		}
+	}
+}
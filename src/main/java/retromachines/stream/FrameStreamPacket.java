@@ -0,0 +1,37 @@
+package retromachines.stream;
+
+import net.fabricmc.fabric.api.networking.v1.FabricPacket;
+import net.fabricmc.fabric.api.networking.v1.PacketType;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+
+/**
+ * Server to client, one {@link FrameCodec} encoded frame of the game a player is streaming, identified by the player's entity id.
+ * An empty frame means the stream has ended.
+ */
+public record FrameStreamPacket(int streamId, byte[] frame) implements FabricPacket {
+	public static final PacketType<FrameStreamPacket> TYPE = PacketType.create(new Identifier("retromachines", "frame_stream"), FrameStreamPacket::new);
+
+	public FrameStreamPacket(PacketByteBuf buf) {
+		this(buf.readVarInt(), buf.readByteArray(FrameUploadPacket.MAX_FRAME_SIZE));
+	}
+
+	public static FrameStreamPacket end(int streamId) {
+		return new FrameStreamPacket(streamId, new byte[0]);
+	}
+
+	public boolean isEnd() {
+		return frame.length == 0;
+	}
+
+	@Override
+	public void write(PacketByteBuf buf) {
+		buf.writeVarInt(streamId);
+		buf.writeByteArray(frame);
+	}
+
+	@Override
+	public PacketType<?> getType() {
+		return TYPE;
+	}
+}
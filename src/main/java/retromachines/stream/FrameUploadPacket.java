@@ -0,0 +1,40 @@
+package retromachines.stream;
+
+import net.fabricmc.fabric.api.networking.v1.FabricPacket;
+import net.fabricmc.fabric.api.networking.v1.PacketType;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+
+/**
+ * Client to server, one {@link FrameCodec} encoded frame of the game the player is playing, to be relayed by {@link FrameRelay}.
+ * An empty frame means the player stopped playing.
+ */
+public record FrameUploadPacket(byte[] frame) implements FabricPacket {
+	/**
+	 * Largest frame that fits in a serverbound custom payload along with its length, larger frames are not streamed.
+	 */
+	public static final int MAX_FRAME_SIZE = 32767 - 5;
+	public static final PacketType<FrameUploadPacket> TYPE = PacketType.create(new Identifier("retromachines", "frame_upload"), FrameUploadPacket::new);
+
+	public FrameUploadPacket(PacketByteBuf buf) {
+		this(buf.readByteArray(MAX_FRAME_SIZE));
+	}
+
+	public static FrameUploadPacket end() {
+		return new FrameUploadPacket(new byte[0]);
+	}
+
+	public boolean isEnd() {
+		return frame.length == 0;
+	}
+
+	@Override
+	public void write(PacketByteBuf buf) {
+		buf.writeByteArray(frame);
+	}
+
+	@Override
+	public PacketType<?> getType() {
+		return TYPE;
+	}
+}
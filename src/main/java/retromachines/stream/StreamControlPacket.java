@@ -0,0 +1,28 @@
+package retromachines.stream;
+
+import net.fabricmc.fabric.api.networking.v1.FabricPacket;
+import net.fabricmc.fabric.api.networking.v1.PacketType;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+
+/**
+ * Server to client, tells a streaming player whether anyone is watching. Frames are only uploaded while watched,
+ * and being told again that it is watched means a new player started watching, so the next frame must be a keyframe.
+ */
+public record StreamControlPacket(boolean watched) implements FabricPacket {
+	public static final PacketType<StreamControlPacket> TYPE = PacketType.create(new Identifier("retromachines", "stream_control"), StreamControlPacket::new);
+
+	public StreamControlPacket(PacketByteBuf buf) {
+		this(buf.readBoolean());
+	}
+
+	@Override
+	public void write(PacketByteBuf buf) {
+		buf.writeBoolean(watched);
+	}
+
+	@Override
+	public PacketType<?> getType() {
+		return TYPE;
+	}
+}
@@ -0,0 +1,80 @@
+package retromachines.gui;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class DirtyRowsTest {
+	private static final int ROWS = 144;
+
+	@Test
+	void mergesRunsSeparatedBySmallGaps() {
+		DirtyRows rows = new DirtyRows(ROWS);
+		rows.mark(0);
+		rows.mark(1);
+		// Two clean rows, merged
+		rows.mark(4);
+		// Three clean rows, split
+		rows.mark(8);
+		// Either side of a word boundary
+		rows.mark(63);
+		rows.mark(64);
+		rows.mark(143);
+
+		assertEquals(List.of(span(0, 5), span(8, 1), span(63, 2), span(143, 1)), drain(rows, 2));
+	}
+
+	@Test
+	void noGapKeepsEveryRunApart() {
+		DirtyRows rows = new DirtyRows(ROWS);
+		rows.mark(10);
+		rows.mark(11);
+		rows.mark(13);
+
+		assertEquals(List.of(span(10, 2), span(13, 1)), drain(rows, 0));
+	}
+
+	@Test
+	void emptyDrainPassesNothing() {
+		DirtyRows rows = new DirtyRows(ROWS);
+
+		assertEquals(List.of(), drain(rows, 8));
+	}
+
+	@Test
+	void fullInvalidationIsOneSpanOfTheFrame() {
+		DirtyRows rows = new DirtyRows(ROWS);
+		rows.markAll();
+
+		// The bits past the last row are set too, but are not part of the frame
+		assertEquals(List.of(span(0, ROWS)), drain(rows, 0));
+	}
+
+	@Test
+	void drainClears() {
+		DirtyRows rows = new DirtyRows(ROWS);
+		rows.markAll();
+		drain(rows, 0);
+
+		for (int row = 0; row < ROWS; row++) {
+			assertFalse(rows.isDirty(row));
+		}
+
+		assertEquals(List.of(), drain(rows, 0));
+	}
+
+	private static List<List<Integer>> drain(DirtyRows rows, int maxGap) {
+		List<List<Integer>> spans = new ArrayList<>();
+		int count = rows.drainSpans(maxGap, (firstRow, rowCount) -> spans.add(span(firstRow, rowCount)));
+		assertEquals(spans.size(), count);
+		return spans;
+	}
+
+	private static List<Integer> span(int firstRow, int rowCount) {
+		return List.of(firstRow, rowCount);
+	}
+}